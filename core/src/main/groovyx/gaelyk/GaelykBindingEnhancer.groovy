@@ -46,78 +46,81 @@ import groovy.transform.CompileStatic
 @CompileStatic
 class GaelykBindingEnhancer {
 
+    /**
+     * The names of the variables bound by {@link #bind(Binding)}, which can be resolved one by one
+     * with {@link #getVariable(String, HttpServletRequest)}
+     */
+    public static final Set<String> VARIABLE_NAMES = Collections.unmodifiableSet(new HashSet<String>([
+            'datastore', 'memcache', 'urlFetch', 'mail', 'images', 'users', 'user', 'defaultQueue', 'queues',
+            'localMode', 'blobstore', 'app', 'logger', 'oauth', 'namespace', 'capabilities', 'lifecycle',
+            'prospectiveSearch', 'logService', 'search', 'geo', 'session'
+    ]))
+
     /**
      * Bind the various Google App Engine services and variables
      *
      * @param binding Binding in which to bind the GAE services and variables
      */
     static void bind(Binding binding) {
-        // bind google app engine services
-        binding.setVariable("datastore", DatastoreServiceFactory.datastoreService)
-        binding.setVariable("memcache", MemcacheServiceFactory.memcacheService)
-        binding.setVariable("urlFetch", URLFetchServiceFactory.URLFetchService)
-        binding.setVariable("mail", MailServiceFactory.mailService)
-        binding.setVariable("images", ImagesServiceWrapper.instance)
-
-        // bind user service and current user
-        binding.setVariable("users", UserServiceFactory.userService)
-        binding.setVariable("user", getCurrentUser())
-
-        // New in GAE SDK 1.2.5: task queues
-        binding.setVariable("defaultQueue", QueueFactory.defaultQueue)
-        binding.setVariable("queues", getQueues())
-
-        // Tells whether the application is running in local development mode
-        // or is deployed on Google's cloud
-        binding.setVariable("localMode", getLocalMode())
-
-        // New in GAE SDK 1.3.0: blobstore support
-        binding.setVariable("blobstore", BlobstoreServiceFactory.blobstoreService)
-
-        // Since GAE SDK 1.3.3.1: special system properties
-        binding.setVariable("app", getApp())
-
-        // Add a logger variable to easily access any logger
-        binding.setVariable("logger", getLogger())
-
-        binding.setVariable("oauth", OAuthServiceFactory.OAuthService)
-
-        // Namespace added in SDK 1.3.7
-        binding.setVariable("namespace", getNamespaceManager())
-
-        // Capabilities service to know the status of the various GAE services
-        binding.setVariable("capabilities", CapabilitiesServiceFactory.capabilitiesService)
-
-
-        // Lifecycle manager in SDK 1.5.0
-        binding.setVariable("lifecycle", LifecycleManager.instance)
-
-        // Prospective search service in SDK 1.5.4
-        binding.setVariable("prospectiveSearch", ProspectiveSearchServiceFactory.prospectiveSearchService)
-
-        // Log service in SDK 1.6
-        binding.setVariable("logService", LogServiceFactory.logService)
-
-        // Search service in SDK 1.6.6
-        binding.setVariable("search", SearchServiceFactory.searchService)
-
-        // Geo headers
-        if(binding.hasVariable('request')) {
-            def req = binding.getVariable('request')
-            if(req instanceof HttpServletRequest){
-                def latlong = req.getHeader('X-AppEngine-CityLatLong')?.split(',').collect { String s -> s.toBigDecimal() } ?: [0,0]
-                binding.setVariable("geo", [
-                        country: req.getHeader('X-AppEngine-Country'),
-                        region:  req.getHeader('X-AppEngine-Region'),
-                        city:    req.getHeader('X-AppEngine-City'),
-                        latitude: latlong[0],
-                        longitude: latlong[1],
-                ])
+        def req = binding.hasVariable('request') ? binding.getVariable('request') : null
+        HttpServletRequest request = req instanceof HttpServletRequest ? (HttpServletRequest) req : null
+        for (String name in VARIABLE_NAMES) {
+            // geo headers and session need the current request, and an existing session is kept
+            if ((name == 'geo' || name == 'session') && request == null) {
+                continue
             }
-            if (!binding.hasVariable('session') || binding.hasVariable('session') && !binding.getVariable('session')) {
-                binding.setVariable('session', new LazySession(req as HttpServletRequest));
+            if (name == 'session' && binding.hasVariable('session') && binding.getVariable('session')) {
+                continue
             }
+            binding.setVariable(name, getVariable(name, request))
+        }
+    }
+
+    /**
+     * Resolves the value of a single variable bound by {@link #bind(Binding)},
+     * without looking up any of the other services.
+     *
+     * @param name the name of the variable
+     * @param request the current request, used for the <code>geo</code> and <code>session</code> variables
+     * @return the value of the variable, or null if it's not one of the variables bound by {@link #bind(Binding)}
+     */
+    static Object getVariable(String name, HttpServletRequest request) {
+        switch (name) {
+            case 'datastore':           return DatastoreServiceFactory.datastoreService
+            case 'memcache':            return MemcacheServiceFactory.memcacheService
+            case 'urlFetch':            return URLFetchServiceFactory.URLFetchService
+            case 'mail':                return MailServiceFactory.mailService
+            case 'images':              return ImagesServiceWrapper.instance
+            case 'users':               return UserServiceFactory.userService
+            case 'user':                return getCurrentUser()
+            case 'defaultQueue':        return QueueFactory.defaultQueue
+            case 'queues':              return getQueues()
+            case 'localMode':           return getLocalMode()
+            case 'blobstore':           return BlobstoreServiceFactory.blobstoreService
+            case 'app':                 return getApp()
+            case 'logger':              return getLogger()
+            case 'oauth':               return OAuthServiceFactory.OAuthService
+            case 'namespace':           return getNamespaceManager()
+            case 'capabilities':        return CapabilitiesServiceFactory.capabilitiesService
+            case 'lifecycle':           return LifecycleManager.instance
+            case 'prospectiveSearch':   return ProspectiveSearchServiceFactory.prospectiveSearchService
+            case 'logService':          return LogServiceFactory.logService
+            case 'search':              return SearchServiceFactory.searchService
+            case 'geo':                 return request != null ? getGeo(request) : null
+            case 'session':             return request != null ? new LazySession(request) : null
         }
+        return null
+    }
+
+    static Map getGeo(HttpServletRequest req) {
+        def latlong = req.getHeader('X-AppEngine-CityLatLong')?.split(',').collect { String s -> s.toBigDecimal() } ?: [0,0]
+        [
+                country: req.getHeader('X-AppEngine-Country'),
+                region:  req.getHeader('X-AppEngine-Region'),
+                city:    req.getHeader('X-AppEngine-City'),
+                latitude: latlong[0],
+                longitude: latlong[1],
+        ]
     }
 
     static User getCurrentUser() {
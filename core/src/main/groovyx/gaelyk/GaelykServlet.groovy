@@ -45,11 +45,22 @@ class GaelykServlet extends GroovyServlet {
     private boolean preferPrecompiled
     private boolean logErrors
 
+    private static final String PRECOMPILED_PATH = '/(.+)\\.groovy'
+
+    /**
+     * The constructors of the precompiled groovlets, by servlet path
+     */
+    private final PrecompiledScriptCache precompiledScripts = new PrecompiledScriptCache({ String path ->
+        path =~ PRECOMPILED_PATH ? getPrecompiledClassName(path) : null
+    } as PrecompiledScriptCache.ClassNames)
+
     @Override
     @CompileStatic
     void init(ServletConfig config) {
         preferPrecompiled = !GaelykBindingEnhancer.localMode || config.getInitParameter('preferPrecompiled') != 'false' && (config.getInitParameter('preferPrecompiled') == 'true')
         logErrors = config.getInitParameter('logErrors') != 'false' && (config.getInitParameter('logErrors') == 'true')
+        // groovlets compiled or redeployed during a development session are picked up
+        precompiledScripts.caching = !GaelykBindingEnhancer.localMode
         super.init(config)
         // Set up the scripting engine
         gse = createGroovyScriptEngine()
@@ -58,13 +69,16 @@ class GaelykServlet extends GroovyServlet {
     /**
      * Injects the default variables and GAE services in the binding of Groovlets
      * as well as the variables contributed by plugins, and a logger.
+     * The GAE services and variables are resolved on first use by a {@link LazyServletBinding}.
      *  
      * @param binding the binding to enhance
      */
     @Override
     @CompileStatic
     protected void setVariables(ServletBinding binding) {
-        GaelykBindingEnhancer.bind(binding)
+        if (!(binding instanceof LazyServletBinding)) {
+            GaelykBindingEnhancer.bind(binding)
+        }
         PluginsHandler.instance.enrich(binding)
         binding.setVariable("log", getLog((ServletRequest)binding.getVariable('request')))
     }
@@ -98,11 +112,7 @@ class GaelykServlet extends GroovyServlet {
     private doService(HttpServletRequest request, HttpServletResponse response) throws IOException {
 
         // Set up the script context
-        final ServletBinding binding = [
-            request,
-            response,
-            servletContext
-        ]
+        final ServletBinding binding = new LazyServletBinding(request, response, servletContext)
         setVariables(binding)
 
         // Get the script path from the request - include aware (GROOVY-815)
@@ -111,20 +121,17 @@ class GaelykServlet extends GroovyServlet {
         // Run the script
         try {
             if(preferPrecompiled){
-                try {
-                    result = runPrecompiled(getPrecompiledClassName(request.servletPath), binding)
-                } catch(ClassNotFoundException e){
-                    result = runGroovlet(scriptUri, binding)
-                }
+                Script precompiled = precompiledScripts.newInstance(request.servletPath ?: '', binding)
+                result = precompiled != null ? precompiled.run() : runGroovlet(scriptUri, binding)
             } else {
                 try {
                     result = runGroovlet(scriptUri, binding)
                 } catch(ResourceException re){
-                    try {
-                        result = runPrecompiled(getPrecompiledClassName(request.servletPath), binding)
-                    } catch(ClassNotFoundException e){
+                    Script precompiled = precompiledScripts.newInstance(request.servletPath ?: '', binding)
+                    if (precompiled == null) {
                         throw re
                     }
+                    result = precompiled.run()
                 }
             }
         } catch (Throwable e) {
@@ -160,18 +167,11 @@ class GaelykServlet extends GroovyServlet {
         gse.run(scriptUri, binding)
     }
 
-    // @CompileStatic
-    private runPrecompiled(String precompiledClassName, ServletBinding binding) {
-        Class<Script> precompiledClass = (Class<Script>) Class.forName(precompiledClassName)
-        Script precompiled = precompiledClass.newInstance([binding]as Object[])
-        precompiled.run()
-    }
-
     /**
      * @return name of the precompliled script class
      */
     static String getPrecompiledClassName(servletPath){
-        def match = servletPath =~ "/(.+)\\.groovy"
+        def match = servletPath =~ PRECOMPILED_PATH
         if(!match){
             throw new ClassNotFoundException('No class found for servlet path ' + servletPath)
         }
@@ -18,10 +18,21 @@ package groovyx.gaelyk
 import groovy.servlet.ServletBinding
 import groovy.servlet.TemplateServlet
 import groovy.text.Template
+import groovy.text.TemplateEngine
+import groovy.text.markup.MarkupTemplateEngine
+import groovy.text.markup.TemplateConfiguration
 import groovy.transform.CompileStatic
 import groovyx.gaelyk.logging.GroovyLogger
 import groovyx.gaelyk.plugins.PluginsHandler
 import groovyx.gaelyk.routes.RoutesFilter;
+import groovyx.gaelyk.templates.StreamingTemplateEngine
+import groovyx.gaelyk.templates.StreamingTemplateScript
+import groovyx.gaelyk.templates.TemplateResponse
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.regex.Matcher
+import java.util.regex.Pattern
 
 import javax.servlet.ServletConfig
 import javax.servlet.ServletRequest;
@@ -33,6 +44,14 @@ import org.codehaus.groovy.runtime.InvokerInvocationException
 /**
  * The Gaelyk template servlet extends Groovy's own template servlet 
  * to inject Google App Engine dedicated services in the binding of the Groolets.
+ * <p>
+ * The <code>templateEngine</code> init parameter selects an alternative template engine:
+ * <code>streaming</code> for the {@link StreamingTemplateEngine},
+ * or <code>markup</code> for Groovy's <code>MarkupTemplateEngine</code>.
+ * With both engines, the templates are rendered through a {@link TemplateResponse},
+ * written to the client in chunks rather than built in memory.
+ * The precompiled templates generated by the {@link groovyx.gaelyk.templates.TemplatePrecompiler}
+ * are rendered the same way, whatever the engine.
  *
  * @author Marcel Overdijk
  * @author Guillaume Laforge
@@ -42,27 +61,78 @@ import org.codehaus.groovy.runtime.InvokerInvocationException
 class GaelykTemplateServlet extends TemplateServlet {
 
     private static final String PRECOMPILED_TEMPLATE_PREFIX = '_gtpl_'
-    
+
+    private static final Pattern PRECOMPILED_PATH = ~/\/((.+?\/)*)(.+)\.gtpl/
+
+    /* Resolution of the URIs without template source */
+    private static final Object MISSING = new Object()
+
     private boolean preferPrecompiled = false
     private boolean logErrors
+    private boolean localMode
+    private boolean streamingOutput
+
+    /**
+     * The constructors of the precompiled templates, by servlet path
+     */
+    private final PrecompiledScriptCache precompiledTemplates = new PrecompiledScriptCache({ String path ->
+        precompiledClassNameFor(path)
+    } as PrecompiledScriptCache.ClassNames)
+
+    /**
+     * The templates compiled from their sources, or {@link #MISSING}, by URI, outside of local mode
+     */
+    private final ConcurrentHashMap<String, Object> sourceTemplates = new ConcurrentHashMap<String, Object>()
+
+    /**
+     * Number of URIs without template source in {@link #sourceTemplates}, which are all forgotten beyond
+     * {@link PrecompiledScriptCache#DEFAULT_MAX_MISSING}, as they come from the requests
+     */
+    private final AtomicInteger missingTemplates = new AtomicInteger()
 
     @Override
     @CompileStatic
     void init(ServletConfig config) {
         preferPrecompiled = !GaelykBindingEnhancer.localMode || config.getInitParameter('preferPrecompiled') != 'false' && (config.getInitParameter('preferPrecompiled') == 'true')
         logErrors = config.getInitParameter('logErrors') != 'false' && (config.getInitParameter('logErrors') == 'true')
+        localMode = GaelykBindingEnhancer.localMode
+        precompiledTemplates.caching = !localMode
+        streamingOutput = config.getInitParameter('templateEngine') in ['streaming', 'markup']
         super.init(config)
     }
 
+    /**
+     * Creates the template engine selected by the <code>templateEngine</code> init parameter,
+     * or the one of the <code>template.engine</code> init parameter of Groovy's template servlet.
+     */
+    @Override
+    @CompileStatic
+    protected TemplateEngine initTemplateEngine(ServletConfig config) {
+        String engine = config.getInitParameter('templateEngine')
+        if (engine == 'streaming') {
+            return new StreamingTemplateEngine(getClass().classLoader)
+        }
+        if (engine == 'markup') {
+            return new MarkupTemplateEngine(getClass().classLoader, new TemplateConfiguration())
+        }
+        if (engine) {
+            throw new IllegalArgumentException("Unknown template engine '$engine', expected 'streaming' or 'markup'")
+        }
+        super.initTemplateEngine(config)
+    }
+
     /**
      * Injects the default variables and GAE services in the binding of templates
      * as well as the variables contributed by plugins, and a logger.
+     * The GAE services and variables are resolved on first use by a {@link LazyServletBinding}.
      *
      * @param binding the binding to enhance
      */
     @Override
     protected void setVariables(ServletBinding binding) {
-        GaelykBindingEnhancer.bind(binding)
+        if (!(binding instanceof LazyServletBinding)) {
+            GaelykBindingEnhancer.bind(binding)
+        }
         PluginsHandler.instance.enrich(binding)
         binding.setVariable("log", GroovyLogger.forTemplateUri(super.getScriptUri(binding.request)))
     }
@@ -93,26 +163,25 @@ class GaelykTemplateServlet extends TemplateServlet {
     @CompileStatic
     private void doService(HttpServletRequest request, HttpServletResponse response) {
         response.setContentType(CONTENT_TYPE_TEXT_HTML + "; charset=" + encoding)
-        ServletBinding binding = new ServletBinding(request, response, servletContext)
+        TemplateResponse templateResponse = streamingOutput || isStreamingPrecompiled(request) ? new TemplateResponse(response) : null
+        HttpServletResponse output = templateResponse ?: response
+        ServletBinding binding = new LazyServletBinding(request, output, servletContext)
         setVariables(binding)
         try {
             if(preferPrecompiled) {
-                try {
-                    runPrecompiled(getPrecompiledClassName(request), binding, response)
-                } catch(ClassNotFoundException e) {
-                    runTemplate(request, response, binding)
+                if (!runPrecompiled(request, output, binding)) {
+                    runTemplate(request, output, binding)
                 }
             } else {
                 try {
-                    runTemplate(request, response, binding)
+                    runTemplate(request, output, binding)
                 } catch(ResourceException | FileNotFoundException e) {
-                    try {
-                        runPrecompiled(getPrecompiledClassName(request), binding, response)
-                    } catch(ClassNotFoundException cnfe){
+                    if (!runPrecompiled(request, output, binding)) {
                         throw e
                     }
                 }
             }
+            templateResponse?.finish()
         } catch (Throwable e) {
             e = RoutesFilter.filterStackTrace(request, e)
             StringWriter sw = []
@@ -143,7 +212,11 @@ class GaelykTemplateServlet extends TemplateServlet {
 
     @CompileStatic
     private runTemplate(HttpServletRequest request, HttpServletResponse response, ServletBinding binding) {
-        Template template = tryFindTemplate(request)
+        Template template = findTemplate(request)
+        if (response instanceof TemplateResponse) {
+            template.make(binding.getVariables()).writeTo(((TemplateResponse) response).output)
+            return
+        }
         Writer out = (Writer) binding.getVariable("out")
         if (out == null) {
             out = response.getWriter()
@@ -151,6 +224,35 @@ class GaelykTemplateServlet extends TemplateServlet {
         template.make(binding.getVariables()).writeTo(out)
     }
 
+    /**
+     * Finds the template of the request, resolved only once per URI outside of local mode,
+     * so that the template sources are neither looked up nor checked for modifications in production.
+     */
+    @CompileStatic
+    private Template findTemplate(HttpServletRequest request) {
+        if (localMode) {
+            return tryFindTemplate(request)
+        }
+        String uri = getScriptUri(request) ?: ''
+        Object template = sourceTemplates.get(uri)
+        if (template == null) {
+            try {
+                template = tryFindTemplate(request)
+            } catch (FileNotFoundException ignored) {
+                template = MISSING
+            }
+            if (sourceTemplates.putIfAbsent(uri, template) == null && template.is(MISSING)
+                    && missingTemplates.incrementAndGet() > PrecompiledScriptCache.DEFAULT_MAX_MISSING) {
+                missingTemplates.set(0)
+                sourceTemplates.values().removeAll(Collections.singleton(MISSING))
+            }
+        }
+        if (template.is(MISSING)) {
+            throw new FileNotFoundException("Cannot find template for URI $uri")
+        }
+        (Template) template
+    }
+
     @CompileStatic
     private Template tryFindTemplate(HttpServletRequest request) {
         String uri = getScriptUri(request)
@@ -170,32 +272,70 @@ class GaelykTemplateServlet extends TemplateServlet {
      * @return name of the precompiled script class
      */
     static String getPrecompiledClassName(HttpServletRequest request) {
-        String incServletPath = (String) request.getAttribute(INC_SERVLET_PATH)
-        String servletPath = incServletPath ?: request.servletPath
-
-        def match = servletPath =~ "/((.+?/)*)(.+)\\.gtpl"
-        if (!match) {
+        String servletPath = getServletPath(request)
+        String className = precompiledClassNameFor(servletPath)
+        if (className == null) {
             throw new ClassNotFoundException('No class found for servlet path ' + servletPath)
         }
+        className
+    }
+
+    /**
+     * @param servletPath the servlet path of a template
+     * @return name of the precompiled script class, or null if the path isn't a template path
+     */
+    @CompileStatic
+    static String precompiledClassNameFor(String servletPath) {
+        Matcher match = PRECOMPILED_PATH.matcher(servletPath)
+        if (!match.find()) {
+            return null
+        }
         String ret = ''
-        if (match[0][1]) {
-            ret += packageToDir(match[0][1])
+        if (match.group(1)) {
+            ret += packageToDir(match.group(1))
         }
         ret += PRECOMPILED_TEMPLATE_PREFIX
-        ret += match[0][3].replaceAll(/[^a-zA-Z0-9\$]/, '_')
+        ret += match.group(3).replaceAll(/[^a-zA-Z0-9\$]/, '_')
         ret
     }
 
+    @CompileStatic
+    private static String getServletPath(HttpServletRequest request) {
+        String incServletPath = (String) request.getAttribute(INC_SERVLET_PATH)
+        incServletPath ?: request.servletPath
+    }
+
     @CompileStatic
     static String packageToDir(String pkg) {
         return pkg.replaceAll(/[^a-zA-Z0-9\/]/, '_').replace('/', '.').toLowerCase()
     }
 
-    // @CompileStatic
-    private runPrecompiled(String precompiledClassName, ServletBinding binding, HttpServletResponse response) {
-        Class<Script> precompiledClass = (Class<Script>) Class.forName(precompiledClassName)
-        Script precompiled = precompiledClass.newInstance([binding]as Object[])
+    /**
+     * Runs the precompiled template of the request, if any.
+     *
+     * @return false if there's no precompiled template for the request
+     */
+    @CompileStatic
+    private boolean runPrecompiled(HttpServletRequest request, HttpServletResponse response, ServletBinding binding) {
+        Script precompiled = precompiledTemplates.newInstance(getServletPath(request) ?: '', binding)
+        if (precompiled == null) {
+            return false
+        }
+        if (precompiled instanceof StreamingTemplateScript) {
+            ((StreamingTemplateScript) precompiled).$setOutput(((TemplateResponse) response).output)
+        }
         precompiled.run()
+        true
+    }
+
+    /**
+     * @return true if the precompiled template of the request writes its static text as bytes,
+     * so that the response must be wrapped in a {@link TemplateResponse}
+     */
+    @CompileStatic
+    private boolean isStreamingPrecompiled(HttpServletRequest request) {
+        Class scriptClass = precompiledTemplates.getScriptClass(getServletPath(request) ?: '')
+        scriptClass != null && StreamingTemplateScript.isAssignableFrom(scriptClass)
     }
     
     private GroovyLogger getLog(ServletRequest request){
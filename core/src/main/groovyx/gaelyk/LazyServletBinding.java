@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk;
+
+import groovy.servlet.ServletBinding;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet binding of the groovlets and templates, resolving the Google App Engine services and variables
+ * of {@link GaelykBindingEnhancer} only when they are first used, like the {@link groovyx.gaelyk.plugins.LazyBinding}
+ * of the plugin descriptors resolves the unbound variables.
+ * <p>
+ * The resolved values are kept in the binding for the rest of the request,
+ * and the variables set by the plugins or the scripts take precedence over them.
+ * The map of the variables, which the templates are made with, resolves them the same way.
+ */
+public class LazyServletBinding extends ServletBinding {
+
+    private final HttpServletRequest request;
+    private Map<String, Object> variables;
+
+    public LazyServletBinding(HttpServletRequest request, HttpServletResponse response, ServletContext context) {
+        super(request, response, context);
+        this.request = request;
+    }
+
+    @Override public Object getVariable(String name) {
+        resolve(name);
+        return super.getVariable(name);
+    }
+
+    @Override public boolean hasVariable(String name) {
+        return GaelykBindingEnhancer.VARIABLE_NAMES.contains(name) || super.hasVariable(name);
+    }
+
+    @Override public Map getVariables() {
+        if (variables == null) {
+            variables = new Variables(boundVariables());
+        }
+        return variables;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> boundVariables() {
+        return super.getVariables();
+    }
+
+    /**
+     * Binds the value of a variable of {@link GaelykBindingEnhancer} if it isn't bound yet,
+     * or if it's the session the request didn't have yet.
+     */
+    private void resolve(Object name) {
+        if (!GaelykBindingEnhancer.VARIABLE_NAMES.contains(name)) {
+            return;
+        }
+        Map<String, Object> bound = boundVariables();
+        if (bound.get(name) == null && (!bound.containsKey(name) || "session".equals(name))) {
+            bound.put((String) name, GaelykBindingEnhancer.getVariable((String) name, request));
+        }
+    }
+
+    private void resolveAll() {
+        for (String name : GaelykBindingEnhancer.VARIABLE_NAMES) {
+            resolve(name);
+        }
+    }
+
+    /**
+     * View of the variables of the binding, resolving the lazy ones when they are read.
+     */
+    private class Variables extends AbstractMap<String, Object> {
+
+        private final Map<String, Object> bound;
+
+        Variables(Map<String, Object> bound) {
+            this.bound = bound;
+        }
+
+        @Override public Object get(Object key) {
+            resolve(key);
+            return bound.get(key);
+        }
+
+        @Override public boolean containsKey(Object key) {
+            return GaelykBindingEnhancer.VARIABLE_NAMES.contains(key) || bound.containsKey(key);
+        }
+
+        @Override public Object put(String key, Object value) {
+            return bound.put(key, value);
+        }
+
+        @Override public Object remove(Object key) {
+            resolve(key);
+            return bound.remove(key);
+        }
+
+        @Override public Set<Entry<String, Object>> entrySet() {
+            resolveAll();
+            return bound.entrySet();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk;
+
+import groovy.lang.Binding;
+import groovy.lang.Script;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of the precompiled script classes of the servlet paths.
+ * <p>
+ * The class of a path is resolved once, and its constructor taking a binding is kept as a method handle,
+ * so that running a precompiled script is a map lookup followed by a direct constructor call.
+ * Paths without precompiled class are cached too, so that they don't cost a class lookup
+ * and a thrown <code>ClassNotFoundException</code> for each request.
+ * As these paths come from the requests, they are all forgotten once there are more than a maximum number of them.
+ * <p>
+ * In local development mode, caching is disabled by the servlets, so that the classes compiled
+ * or redeployed during a development session are picked up.
+ */
+public class PrecompiledScriptCache {
+
+    /**
+     * Names the precompiled class of a servlet path.
+     */
+    public interface ClassNames {
+        /**
+         * @param path the servlet path
+         * @return the name of the precompiled class, or null if the path can't have any
+         */
+        String classNameFor(String path);
+    }
+
+    /** Default maximum number of paths without precompiled class kept in the cache */
+    public static final int DEFAULT_MAX_MISSING = 1000;
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Script.class, Binding.class);
+
+    /* Resolution of the paths without precompiled class */
+    private static final Resolution MISSING = new Resolution(null, null);
+
+    private final ConcurrentHashMap<String, Resolution> resolutions = new ConcurrentHashMap<String, Resolution>();
+    private final AtomicInteger missing = new AtomicInteger();
+    private final ClassNames classNames;
+    private final int maxMissing;
+    private volatile boolean caching = true;
+
+    /**
+     * @param classNames names the precompiled class of a servlet path
+     */
+    public PrecompiledScriptCache(ClassNames classNames) {
+        this(classNames, DEFAULT_MAX_MISSING);
+    }
+
+    /**
+     * @param classNames names the precompiled class of a servlet path
+     * @param maxMissing maximum number of paths without precompiled class kept in the cache
+     */
+    public PrecompiledScriptCache(ClassNames classNames, int maxMissing) {
+        this.classNames = classNames;
+        this.maxMissing = maxMissing;
+    }
+
+    /**
+     * Creates the precompiled script of a servlet path.
+     *
+     * @param path the servlet path
+     * @param binding the binding of the script
+     * @return the script, or null if there's no precompiled class for that path
+     */
+    public Script newInstance(String path, Binding binding) throws Throwable {
+        Resolution resolution = resolution(path);
+        if (resolution == MISSING) {
+            return null;
+        }
+        return (Script) resolution.constructor.invokeExact(binding);
+    }
+
+    /**
+     * @param path the servlet path
+     * @return true if there's a precompiled class for that path
+     */
+    public boolean isPrecompiled(String path) {
+        return resolution(path) != MISSING;
+    }
+
+    /**
+     * @param path the servlet path
+     * @return the precompiled class of that path, or null if there's none
+     */
+    public Class<?> getScriptClass(String path) {
+        return resolution(path).type;
+    }
+
+    /**
+     * Forgets the resolved classes, for instance when the classes may have changed in local development mode.
+     */
+    public void clear() {
+        resolutions.clear();
+        missing.set(0);
+    }
+
+    /**
+     * @param caching false to resolve the class of a path again each time it's requested,
+     * for instance in local development mode, true to resolve it once
+     */
+    public void setCaching(boolean caching) {
+        this.caching = caching;
+        if (!caching) {
+            clear();
+        }
+    }
+
+    /**
+     * @return whether the classes of the paths are only resolved once
+     */
+    public boolean isCaching() {
+        return caching;
+    }
+
+    /**
+     * @return the number of resolved paths, with or without precompiled class
+     */
+    public int size() {
+        return resolutions.size();
+    }
+
+    private Resolution resolution(String path) {
+        if (!caching) {
+            return resolve(path);
+        }
+        Resolution resolution = resolutions.get(path);
+        if (resolution == null) {
+            resolution = resolve(path);
+            Resolution previous = resolutions.putIfAbsent(path, resolution);
+            if (previous != null) {
+                resolution = previous;
+            } else if (resolution == MISSING && missing.incrementAndGet() > maxMissing) {
+                missing.set(0);
+                resolutions.values().removeAll(Collections.singleton(MISSING));
+            }
+        }
+        return resolution;
+    }
+
+    private Resolution resolve(String path) {
+        String className = classNames.classNameFor(path);
+        if (className == null) {
+            return MISSING;
+        }
+        try {
+            Class<?> type = Class.forName(className);
+            if (!Script.class.isAssignableFrom(type)) {
+                return MISSING;
+            }
+            return new Resolution(type, MethodHandles.publicLookup()
+                    .findConstructor(type, MethodType.methodType(void.class, Binding.class))
+                    .asType(CONSTRUCTOR_TYPE));
+        } catch (ClassNotFoundException e) {
+            return MISSING;
+        } catch (NoSuchMethodException e) {
+            return MISSING;
+        } catch (IllegalAccessException e) {
+            return MISSING;
+        }
+    }
+
+    /**
+     * Precompiled class of a path, with its constructor taking a binding.
+     */
+    private static final class Resolution {
+        final Class<?> type;
+        final MethodHandle constructor;
+
+        Resolution(Class<?> type, MethodHandle constructor) {
+            this.type = type;
+            this.constructor = constructor;
+        }
+    }
+}
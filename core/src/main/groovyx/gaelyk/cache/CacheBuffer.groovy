@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+
+/**
+ * Buffer capturing a page to be cached, while the page is streamed to the client.
+ * <p>
+ * The buffer stops capturing the page once it exceeds the maximum size of a cached page,
+ * as Memcache doesn't accept values bigger than 1 MB.
+ * Its backing array comes from a pool shared by the requests, and goes back to the pool once released,
+ * so that rendering cached pages doesn't allocate a new buffer each time.
+ */
+@CompileStatic
+class CacheBuffer extends OutputStream {
+
+    /** Maximum size of a cached page, leaving room under the Memcache limit for the other fields of the entry */
+    static final int MAX_SIZE = 1000 * 1000
+
+    private static final int INITIAL_SIZE = 8192
+
+    /* Bigger arrays are not kept in the pool, to bound the memory held by the pool */
+    private static final int MAX_POOLED_SIZE = 256 * 1024
+
+    private static final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<byte[]>(32)
+
+    private final int maxSize
+    private byte[] buffer
+    private int count
+    private boolean overflowed
+
+    CacheBuffer(int maxSize = MAX_SIZE) {
+        this.maxSize = maxSize
+        this.buffer = pool.poll() ?: new byte[INITIAL_SIZE]
+    }
+
+    void write(int b) {
+        if (ensureCapacity(1)) {
+            buffer[count++] = (byte) b
+        }
+    }
+
+    void write(byte[] bytes, int offset, int length) {
+        if (ensureCapacity(length)) {
+            System.arraycopy(bytes, offset, buffer, count, length)
+            count += length
+        }
+    }
+
+    /**
+     * @return true if the page has become too big to be cached
+     */
+    boolean isOverflowed() { overflowed }
+
+    /**
+     * @return the number of bytes captured
+     */
+    int size() { count }
+
+    /**
+     * @return a copy of the captured page, or null if it was too big to be cached
+     */
+    byte[] toByteArray() {
+        overflowed || buffer == null ? null : Arrays.copyOf(buffer, count)
+    }
+
+    /**
+     * Gives the backing array back to the pool, nothing is captured afterwards.
+     */
+    void release() {
+        if (buffer != null && buffer.length <= MAX_POOLED_SIZE) {
+            pool.offer(buffer)
+        }
+        buffer = null
+    }
+
+    private boolean ensureCapacity(int length) {
+        if (overflowed || buffer == null) {
+            return false
+        }
+        int required = count + length
+        if (required > maxSize) {
+            // keep streaming the page, but don't cache it
+            overflowed = true
+            release()
+            return false
+        }
+        if (required > buffer.length) {
+            byte[] grown = new byte[Math.min(Math.max(buffer.length * 2, required), maxSize)]
+            System.arraycopy(buffer, 0, grown, 0, count)
+            if (buffer.length <= MAX_POOLED_SIZE) {
+                pool.offer(buffer)
+            }
+            buffer = grown
+        }
+        return true
+    }
+}
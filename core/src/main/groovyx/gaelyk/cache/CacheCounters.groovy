@@ -0,0 +1,54 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Hit and miss counters of a tier of the page cache.
+ */
+@CompileStatic
+class CacheCounters {
+
+    private final AtomicLong hits = new AtomicLong()
+    private final AtomicLong misses = new AtomicLong()
+
+    void hit() { hits.incrementAndGet() }
+
+    void miss() { misses.incrementAndGet() }
+
+    long getHits() { hits.get() }
+
+    long getMisses() { misses.get() }
+
+    /**
+     * @return the ratio of hits, between 0 and 1
+     */
+    double getHitRatio() {
+        long h = hits.get()
+        long total = h + misses.get()
+        total ? (double) h / total : 0d
+    }
+
+    void reset() {
+        hits.set(0)
+        misses.set(0)
+    }
+
+    String toString() { "hits: $hits, misses: $misses" }
+}
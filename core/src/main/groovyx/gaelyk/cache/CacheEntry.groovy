@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+
+import java.security.MessageDigest
+import java.util.zip.Adler32
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Page cached in Memcache by the routes with a cache duration.
+ * <p>
+ * The content, its type, its last modification date and its entity tag are kept in a single Memcache value,
+ * so that serving a page from the cache or answering a conditional request costs only one Memcache call.
+ * The content is kept compressed with gzip when it's worth it, so that it can be served as is
+ * to the clients accepting gzip, and without compressing it again to the clients accepting deflate only.
+ */
+@CompileStatic
+class CacheEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L
+
+    /* Smaller pages are not worth compressing */
+    private static final int MIN_COMPRESSED_SIZE = 256
+
+    private static final int GZIP_HEADER_SIZE = 10
+    private static final int GZIP_TRAILER_SIZE = 8
+
+    /** Content of the page, compressed with gzip if {@link #compressed} is true */
+    final byte[] content
+
+    /** Whether the content is compressed with gzip */
+    final boolean compressed
+
+    /** Content type of the page */
+    final String contentType
+
+    /** Last modification date of the page, in milliseconds */
+    final long lastModified
+
+    /** Strong entity tag, computed from the hash of the uncompressed content */
+    final String etag
+
+    /** Generations of the tags of the page when it was rendered, by Memcache key of their counter */
+    final Map<String, Long> tagGenerations
+
+    /** Adler-32 checksum of the uncompressed content, needed by the deflate encoding, null for the entries of previous versions */
+    final Integer adler32
+
+    CacheEntry(byte[] content, String contentType, long lastModified, Map<String, Long> tagGenerations = null) {
+        this.contentType = contentType
+        this.lastModified = lastModified
+        this.tagGenerations = tagGenerations
+        this.etag = '"' + MessageDigest.getInstance('MD5').digest(content).encodeHex().toString() + '"'
+
+        byte[] gzipped = isCompressible(content, contentType) ? gzip(content) : null
+        this.compressed = gzipped != null && gzipped.length < content.length
+        this.content = compressed ? gzipped : content
+        this.adler32 = compressed ? adler32(content) : null
+    }
+
+    /**
+     * @return the entity tag of the compressed content, which is a different representation of the page
+     */
+    String getGzipEtag() {
+        etag.substring(0, etag.length() - 1) + '-gzip"'
+    }
+
+    /**
+     * @return the entity tag of the content compressed with deflate
+     */
+    String getDeflateEtag() {
+        etag.substring(0, etag.length() - 1) + '-deflate"'
+    }
+
+    /**
+     * The deflate encoding of HTTP is the zlib format, which wraps the same compressed data as gzip,
+     * so the content is served with a zlib header and trailer instead of the gzip ones, without compressing it again.
+     *
+     * @return the content compressed in the zlib format, or null if the content isn't compressed
+     */
+    byte[] getDeflatedContent() {
+        if (!compressed || adler32 == null) {
+            return null
+        }
+        // the gzip header written by GZIPOutputStream has no optional field, and the trailer is a CRC-32 and a size
+        int length = content.length - GZIP_HEADER_SIZE - GZIP_TRAILER_SIZE
+        byte[] deflated = new byte[2 + length + 4]
+        deflated[0] = (byte) 0x78
+        deflated[1] = (byte) 0x9C
+        System.arraycopy(content, GZIP_HEADER_SIZE, deflated, 2, length)
+        int checksum = adler32
+        for (int i = 0; i < 4; i++) {
+            deflated[2 + length + i] = (byte) (checksum >>> (24 - 8 * i))
+        }
+        deflated
+    }
+
+    /**
+     * @return the uncompressed content of the page
+     */
+    byte[] getDecodedContent() {
+        if (!compressed) {
+            return content
+        }
+        GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(content))
+        ByteArrayOutputStream output = new ByteArrayOutputStream(content.length * 4)
+        byte[] chunk = new byte[8192]
+        int read
+        while ((read = input.read(chunk)) > -1) {
+            output.write(chunk, 0, read)
+        }
+        output.toByteArray()
+    }
+
+    private static boolean isCompressible(byte[] content, String contentType) {
+        if (content.length < MIN_COMPRESSED_SIZE) {
+            return false
+        }
+        // images, videos and archives are already compressed
+        String type = contentType?.toLowerCase()
+        !(type?.startsWith('image/') && !type.startsWith('image/svg')) && !type?.startsWith('video/') && !type?.startsWith('audio/') &&
+                !type?.contains('zip') && !type?.contains('compressed')
+    }
+
+    private static Integer adler32(byte[] content) {
+        Adler32 checksum = new Adler32()
+        checksum.update(content, 0, content.length)
+        (int) checksum.value
+    }
+
+    private static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(content.length.intdiv(4).intValue() + 64)
+        GZIPOutputStream gzip = new GZIPOutputStream(output)
+        gzip.write(content)
+        gzip.close()
+        output.toByteArray()
+    }
+
+    /**
+     * @param ifNoneMatch the value of an <code>If-None-Match</code> header
+     * @return true if one of the entity tags of the header is the entity tag of this entry
+     */
+    boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch.trim() == '*') {
+            return true
+        }
+        for (String tag in ifNoneMatch.split(',')) {
+            tag = tag.trim()
+            // If-None-Match uses the weak comparison
+            if (tag.startsWith('W/')) {
+                tag = tag.substring(2)
+            }
+            if (tag == etag || tag == gzipEtag || tag == deflateEtag) {
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * @param generations the current generations of the tags, by Memcache key of their counter
+     * @return true if none of the tags of the page has been invalidated since the page was cached
+     */
+    boolean isCurrent(Map<String, ?> generations) {
+        if (tagGenerations) {
+            for (Map.Entry<String, Long> tag in tagGenerations.entrySet()) {
+                if (generations.get(tag.key) != tag.value) {
+                    return false
+                }
+            }
+        }
+        return true
+    }
+
+    /**
+     * @param since the date of an <code>If-Modified-Since</code> header, in milliseconds
+     * @return true if the page has not been modified since that date
+     */
+    boolean notModifiedSince(long since) {
+        // HTTP dates are precise to the second
+        lastModified - lastModified % 1000 <= since
+    }
+
+    /**
+     * @param seconds the time the page can be served from the cache
+     * @return true if the page has been cached for less than that time
+     */
+    boolean isFresh(int seconds) {
+        System.currentTimeMillis() < lastModified + seconds * 1000L
+    }
+}
@@ -19,8 +19,19 @@ import javax.servlet.http.HttpServletResponse
 import javax.servlet.http.HttpServletRequest
 import com.google.appengine.api.memcache.MemcacheServiceFactory
 import com.google.appengine.api.memcache.Expiration
-import java.text.SimpleDateFormat
+import com.google.appengine.api.memcache.MemcacheService
+import com.google.appengine.api.taskqueue.QueueFactory
+import com.google.appengine.api.taskqueue.TaskOptions
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
 import groovyx.gaelyk.routes.Route
+import groovyx.gaelyk.routes.RouteMatch
 import groovyx.gaelyk.routes.RoutesFilter
 import groovyx.gaelyk.logging.GroovyLogger
 
@@ -34,111 +45,682 @@ import groovyx.gaelyk.logging.GroovyLogger
 @groovy.transform.CompileStatic
 class CacheHandler {
 
-    // Date formatter for caching headers date creation
-    private static final SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US)
-    static {
-        httpDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"))
-    }
-
     private static final GroovyLogger log = new GroovyLogger("gaelyk.cache")
 
+    /**
+     * Optional in-memory tier in front of Memcache, enabled with the <code>cache.local.size</code>
+     * init parameter of the routes filter
+     */
+    static volatile LocalCache localCache
+
+    /**
+     * Whether a Memcache lease is taken before rendering a page missing from the cache,
+     * so that a single instance renders it. Enabled with the <code>cache.lease</code> init parameter of the routes filter.
+     */
+    static volatile boolean memcacheLeases
+
+    /** Maximum time to wait for a page rendered by another request, in milliseconds */
+    static volatile long coalescingTimeout = 10000
+
+    private static final long LEASE_POLLING_INTERVAL = 50
+
+    /* Keeping a margin under the 250 bytes limit of Memcache keys */
+    private static final int MAX_KEY_SIZE = 240
+
+    /** Header of the push tasks revalidating a stale page */
+    static final String REVALIDATION_HEADER = "X-Gaelyk-Revalidate"
+
+    /* Pages being rendered by this instance */
+    private static final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>()
+
+    /** Hit and miss counters of the Memcache tier */
+    static final CacheCounters memcacheCounters = new CacheCounters()
+
+    /**
+     * Clears the cache of a page.
+     * The in-memory tier is only cleared on the current instance,
+     * the other instances may serve the page until it expires.
+     * For routes normalizing the query string, the URI is expected with its normalized query string,
+     * and the variants of the routes varying on request headers are not cleared.
+     */
     static Set clearCacheForUri(String uri) {
-        MemcacheServiceFactory.memcacheService.deleteAll([
-                "content-for-$uri".toString(), "content-type-for-$uri".toString(), "last-modified-$uri".toString()
-        ])
+        localCache?.remove(contentKey(uri))
+        MemcacheServiceFactory.memcacheService.deleteAll([contentKey(uri)])
     }
 
-    static void serve(Route route, HttpServletRequest request, HttpServletResponse response) {
-        log.config "Serving for route $route"
+    /**
+     * Invalidates all the cached pages of the routes declaring the tag, on all the instances,
+     * by incrementing the generation of the tag.
+     *
+     * @param tag the tag, with the values of the path variables
+     */
+    static void clearCacheForTag(String tag) {
+        MemcacheServiceFactory.memcacheService.increment(tagKey(tag), 1L, System.currentTimeMillis())
+    }
+
+    /**
+     * @param tag a cache tag
+     * @return the Memcache key of the generation counter of the tag
+     */
+    static String tagKey(String tag) {
+        cacheKey("tag-generation-for-", tag)
+    }
+
+    static private List<String> tagKeys(List<String> tags) {
+        if (!tags) {
+            return Collections.<String>emptyList()
+        }
+        List<String> keys = new ArrayList<String>(tags.size())
+        for (String tag in tags) {
+            keys << tagKey(tag)
+        }
+        keys
+    }
+
+    /**
+     * Reads the generations of the tags, creating the missing counters.
+     * Counters start at the current time rather than zero, so that a counter evicted from Memcache and created again
+     * doesn't go back to a generation of pages still in the cache.
+     */
+    static private Map<String, Long> currentGenerations(List<String> tagKeys) {
+        new HashMap<String, Long>(MemcacheServiceFactory.memcacheService.incrementAll(tagKeys, 0L, System.currentTimeMillis()))
+    }
+
+    /**
+     * @return the hit and miss counters of both tiers of the cache,
+     * and the number and the size of the pages in the in-memory tier
+     */
+    static Map<String, Map<String, Object>> getStatistics() {
+        Map<String, Map<String, Object>> statistics = [
+                memcache: [hits: memcacheCounters.hits, misses: memcacheCounters.misses] as Map<String, Object>
+        ]
+        LocalCache local = localCache
+        if (local) {
+            statistics.local = [hits: local.counters.hits, misses: local.counters.misses, count: local.count, size: local.size, maxSize: local.maxSize] as Map<String, Object>
+        }
+        statistics
+    }
+
+    /**
+     * @param uri the URI of the page, with its query string
+     * @return the Memcache key of the cache entry of the page
+     */
+    static String contentKey(String uri) {
+        cacheKey("content-for-", uri)
+    }
+
+    /**
+     * @param uri the URI of the page, with its query string
+     * @return the Memcache key of the lease taken by the instance rendering the page
+     */
+    static String leaseKey(String uri) {
+        cacheKey("lease-for-", uri)
+    }
+
+    /**
+     * @param uri the URI of the page, with its query string
+     * @return the Memcache key marking a stale page as being revalidated
+     */
+    static String revalidationKey(String uri) {
+        cacheKey("revalidation-for-", uri)
+    }
+
+    /**
+     * Memcache doesn't accept keys longer than 250 bytes, so long keys are replaced by a digest of the URI.
+     */
+    static private String cacheKey(String prefix, String uri) {
+        String key = prefix + uri
+        if (key.length() * 3 <= MAX_KEY_SIZE || key.getBytes('UTF-8').length <= MAX_KEY_SIZE) {
+            return key
+        }
+        prefix + MessageDigest.getInstance('SHA-256').digest(uri.getBytes('UTF-8')).encodeHex().toString()
+    }
+
+    /**
+     * Builds the URI identifying the cached page of a request, according to the cache options of the route:
+     * the query parameters can be sorted and filtered, and the values of request headers added.
+     *
+     * @param route the route of the request
+     * @param requestURI the URI of the request, without its query string
+     * @param request the request
+     * @return the URI used in the cache keys of the page
+     */
+    static String cacheUri(Route route, String requestURI, HttpServletRequest request) {
+        String query = request.queryString
+        if (query && (route.sortParams || route.ignoreParams)) {
+            query = normalizeQuery(query, route.sortParams, route.ignoreParams)
+        }
+        if (!query && !route.vary) {
+            return requestURI
+        }
+        StringBuilder uri = new StringBuilder(requestURI)
+        if (query) {
+            uri.append('?').append(query)
+        }
+        for (String header in route.vary) {
+            uri.append('#').append(header.toLowerCase()).append('=').append(request.getHeader(header) ?: '')
+        }
+        uri.toString()
+    }
+
+    /**
+     * @param query a query string
+     * @param sort whether the parameters are sorted by name, the values of a same parameter keeping their order
+     * @param ignored the names of the parameters to remove, a trailing '*' matching any parameter with that prefix
+     * @return the query string without the empty and ignored parameters
+     */
+    static String normalizeQuery(String query, boolean sort, List<String> ignored) {
+        List<String> parameters = []
+        for (String parameter in query.split('&')) {
+            if (parameter && !isIgnored(parameterName(parameter), ignored)) {
+                parameters << parameter
+            }
+        }
+        if (sort) {
+            // the sort is stable
+            parameters.sort { String a, String b -> parameterName(a) <=> parameterName(b) }
+        }
+        parameters.join('&')
+    }
+
+    static private String parameterName(String parameter) {
+        int equals = parameter.indexOf('=')
+        equals > -1 ? parameter.substring(0, equals) : parameter
+    }
 
+    static private boolean isIgnored(String name, List<String> ignored) {
+        for (String pattern in ignored) {
+            if (pattern.endsWith('*') ? name.startsWith(pattern.substring(0, pattern.length() - 1)) : name == pattern) {
+                return true
+            }
+        }
+        return false
+    }
+
+    static void serve(Route route, HttpServletRequest request, HttpServletResponse response) {
         // should be 
         def requestURI = RoutesFilter.getIncludeAwareUri(request)
 
-        def uri = requestURI + (request.queryString ? "?$request.queryString" : "")
+        serveMatched(route, route.forUri(requestURI, request), requestURI, request, response)
+    }
 
-        log.config "Request URI to cache: $uri"
+    /**
+     * Serves a request for which the route has already been matched,
+     * so that the route is not evaluated again.
+     *
+     * @param route the matched route
+     * @param match the result of matching the request URI against the route
+     * @param request the request
+     * @param response the response
+     */
+    static void serve(Route route, RouteMatch match, HttpServletRequest request, HttpServletResponse response) {
+        serveMatched(route, match, RoutesFilter.getIncludeAwareUri(request), request, response)
+    }
 
-        def result = route.forUri(requestURI, request)
+    static private void serveMatched(Route route, RouteMatch result, String requestURI, HttpServletRequest request, HttpServletResponse response) {
+        log.config "Serving for route $route"
 
         if (route.cacheExpiration > 0) {
             log.config "Route cacheable"
 
-            def memcache = MemcacheServiceFactory.memcacheService
+            String uri = cacheUri(route, requestURI, request)
+
+            log.config "Request URI to cache: $uri"
 
-            def ifModifiedSince = request.getHeader("If-Modified-Since")
-            // if an "If-Modified-Since" header is present in the incoming requestion
-            if (ifModifiedSince) {
-                log.config "If-Modified-Since header present"
+            List<String> tagKeys = tagKeys(route.tagsFor(result))
+            CacheEntry entry = lookup(contentKey(uri), route, tagKeys)
+            CacheEntry stale = null
+            boolean revalidating = false
 
-                def sinceDate = httpDateFormat.parse(ifModifiedSince)
-                String lastModifiedKey = "last-modified-$uri"
-                String lastModifiedString = memcache.get(lastModifiedKey)
-                if (lastModifiedString && httpDateFormat?.parse(lastModifiedString).before(sinceDate)) {
-                    log.config "Sending NOT_MODIFIED"
+            if (entry && !entry.isFresh(route.cacheExpiration)) {
+                if (isRevalidation(request)) {
+                    log.config "Revalidating the stale page for URI $uri"
+                    revalidating = true
+                    stale = entry
+                    entry = null
+                } else if (entry.isFresh(route.cacheExpiration + route.staleWhileRevalidate)) {
+                    log.config "Serving the stale page while revalidating it in the background"
+                    revalidate(request, requestURI, uri, route)
+                } else {
+                    stale = entry
+                    entry = null
+                }
+            }
 
-                    response.sendError HttpServletResponse.SC_NOT_MODIFIED
-                    response.setHeader("Last-Modified", ifModifiedSince)
-                    return
+            if (!entry) {
+                try {
+                    entry = renderOnce(request, response, result.destination, uri, route, tagKeys, revalidating)
+                } catch (Exception e) {
+                    if (stale == null || !stale.isFresh(route.cacheExpiration + route.staleIfError) || response.committed) {
+                        if (e instanceof ServerError) {
+                            ((ServerError) e).response.sendDeferredError()
+                            return
+                        }
+                        throw e
+                    }
+                    log.warning "Serving the stale page for URI $uri after an error: $e.message"
+                    response.reset()
+                    entry = stale
                 }
             }
-            serveAndCacheOrServeFromCache(request, response, (String)result['destination'], uri, route.cacheExpiration)
+
+            // the resource is present in the cache, or has just been rendered by another request
+            if (entry) {
+                serveEntry(request, response, entry, route)
+            }
         } else {
             log.config "Route not cacheable"
 
-            request.getRequestDispatcher((String)result['destination']).forward request, response
+            request.getRequestDispatcher(result.destination).forward request, response
         }
     }
 
-    static private serveAndCacheOrServeFromCache(HttpServletRequest request, HttpServletResponse response, String destination, String uri, int cacheExpiration) {
-        log.config "Serve and/or cache for URI $uri"
+    /**
+     * Serves a cached page, compressed if the entry is compressed and the client accepts gzip or deflate,
+     * or answers with a 304 status if the page of the client is still valid.
+     */
+    static private void serveEntry(HttpServletRequest request, HttpServletResponse response, CacheEntry entry, Route route) {
+        String encoding = null
+        if (entry.compressed) {
+            String acceptEncoding = request.getHeader("Accept-Encoding")
+            if (acceptsGzip(acceptEncoding)) {
+                encoding = 'gzip'
+            } else if (entry.adler32 != null && acceptsDeflate(acceptEncoding)) {
+                encoding = 'deflate'
+            }
+        }
+        if (entry.compressed || route.vary) {
+            response.setHeader("Vary", vary(route, entry.compressed))
+        }
+        response.setHeader("ETag", encoding == 'gzip' ? entry.gzipEtag : encoding == 'deflate' ? entry.deflateEtag : entry.etag)
+        response.setHeader("Last-Modified", HttpDateCodec.format(entry.lastModified))
+
+        if (isNotModified(request, entry)) {
+            log.config "Sending NOT_MODIFIED"
+
+            response.status = HttpServletResponse.SC_NOT_MODIFIED
+            return
+        }
 
-        String contentKey = "content-for-$uri"
-        String typeKey = "content-type-for-$uri"
-        String lastModifiedKey = "last-modified-$uri"
+        log.config "Content present in the cache, outputing content-type and content"
 
+        // if it's in the cache, return the page from the cache
+        response.contentType = entry.contentType
+        if (encoding == 'gzip') {
+            response.setHeader("Content-Encoding", "gzip")
+            response.outputStream << entry.content
+        } else if (encoding == 'deflate') {
+            response.setHeader("Content-Encoding", "deflate")
+            response.outputStream << entry.deflatedContent
+        } else {
+            response.outputStream << entry.decodedContent
+        }
+    }
+
+    /**
+     * @param route the route of the page
+     * @param compressed whether the page may be served compressed or not
+     * @return the value of the <code>Vary</code> header of the page, so that the browsers and proxies
+     * don't serve a variant of the page to clients sending other values of those request headers
+     */
+    static private String vary(Route route, boolean compressed) {
+        List<String> headers = compressed ? ['Accept-Encoding'] : []
+        for (String header in route.vary) {
+            if (!header.equalsIgnoreCase('Accept-Encoding')) {
+                headers << header
+            }
+        }
+        headers.join(', ')
+    }
+
+    /**
+     * @param acceptEncoding the value of the <code>Accept-Encoding</code> header of the request
+     * @return true if the client accepts gzip compressed content
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        accepts(acceptEncoding, 'gzip')
+    }
+
+    /**
+     * @param acceptEncoding the value of the <code>Accept-Encoding</code> header of the request
+     * @return true if the client accepts deflate compressed content
+     */
+    static boolean acceptsDeflate(String acceptEncoding) {
+        accepts(acceptEncoding, 'deflate')
+    }
+
+    static private boolean accepts(String acceptEncoding, String encoding) {
+        if (!acceptEncoding) {
+            return false
+        }
+        for (String coding in acceptEncoding.split(',')) {
+            String[] parts = coding.split(';')
+            String name = parts[0].trim()
+            if (name.equalsIgnoreCase(encoding) || name == '*') {
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim()
+                    if (parameter.startsWith('q=') && parameter.substring(2).isDouble() && parameter.substring(2).toDouble() == 0d) {
+                        return false
+                    }
+                }
+                return true
+            }
+        }
+        return false
+    }
+
+    /**
+     * Looks the page up in the in-memory tier first, then in Memcache.
+     * The page is ignored if one of its tags has been invalidated since it was cached,
+     * the generations of the tags being fetched with the page.
+     */
+    static private CacheEntry lookup(String key, Route route, List<String> tagKeys) {
         def memcache = MemcacheServiceFactory.memcacheService
-        def asyncMemcache = MemcacheServiceFactory.asyncMemcacheService
+        LocalCache local = localCache
+        CacheEntry entry = local?.get(key)
+        if (entry) {
+            if (!tagKeys || entry.isCurrent(memcache.getAll(tagKeys))) {
+                return entry
+            }
+            local.remove(key)
+            return null
+        }
+        if (tagKeys) {
+            Map<String, Object> values = memcache.getAll([key] + tagKeys)
+            entry = asEntry(values.get(key))
+            if (entry && !entry.isCurrent(values)) {
+                entry = null
+            }
+        } else {
+            entry = asEntry(memcache.get(key))
+        }
+        if (entry) {
+            memcacheCounters.hit()
+            // the page expires from both tiers at the same time
+            local?.put(key, entry, entry.lastModified + retention(route) * 1000L)
+        } else {
+            memcacheCounters.miss()
+        }
+        entry
+    }
+
+    /**
+     * The pages cached by the previous versions under the same key, made of the bytes of the page only,
+     * are considered as missing.
+     */
+    static private CacheEntry asEntry(Object value) {
+        value instanceof CacheEntry ? (CacheEntry) value : null
+    }
 
-        byte[] content = (byte[])memcache.get(contentKey)
-        String type = memcache.get(typeKey)
+    /**
+     * Checks the conditional headers of the request against the cached page.
+     * As required by HTTP, <code>If-Modified-Since</code> is ignored when <code>If-None-Match</code> is present.
+     */
+    static private boolean isNotModified(HttpServletRequest request, CacheEntry entry) {
+        def ifNoneMatch = request.getHeader("If-None-Match")
+        if (ifNoneMatch) {
+            return entry.matches(ifNoneMatch)
+        }
+        def ifModifiedSince = request.getHeader("If-Modified-Since")
+        if (ifModifiedSince) {
+            Long since = HttpDateCodec.parse(ifModifiedSince)
+            if (since != null) {
+                return entry.notModifiedSince(since)
+            }
+            log.config "Ignoring invalid If-Modified-Since header: $ifModifiedSince"
+        }
+        return false
+    }
 
-        // the resource is still present in the cache
-        if (content && type) {
-            log.config "Content present in the cache, outputing content-type and content"
+    /**
+     * Makes sure a single request per URI renders a page missing from the cache.
+     * The concurrent requests for the same URI wait for the page rendered by the first one,
+     * and with Memcache leases, for the page rendered by another instance.
+     *
+     * @return the page to serve from the cache, or null if the page has been rendered and served by this request
+     */
+    static private CacheEntry renderOnce(HttpServletRequest request, HttpServletResponse response, String destination, String uri, Route route, List<String> tagKeys, boolean revalidating) {
+        String key = contentKey(uri)
+        Flight flight = new Flight()
+        Flight current = flights.putIfAbsent(key, flight)
+        boolean leased = false
+        try {
+            if (current != null) {
+                log.config "Waiting for the page being rendered for URI $uri"
+                CacheEntry entry = current.await(coalescingTimeout)
+                if (entry) {
+                    return entry
+                }
+                // the rendering failed or took too long, render the page anyway
+                serveAndCache(request, response, destination, uri, route, tagKeys, flight)
+                return null
+            }
 
-            // if it's in the cache, return the page from the cache
-            response.contentType = type
-            response.outputStream << content
-        } else { // serve and cache
-            log.config "Not in the cache"
+            if (memcacheLeases) {
+                leased = MemcacheServiceFactory.memcacheService.put(leaseKey(uri), System.currentTimeMillis(),
+                        Expiration.byDeltaMillis((int) coalescingTimeout), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)
+                if (!leased) {
+                    log.config "Waiting for the page being rendered by another instance for URI $uri"
+                    CacheEntry entry = awaitLeaseHolder(key, leaseKey(uri), route, tagKeys)
+                    if (entry) {
+                        flight.complete(entry)
+                        return entry
+                    }
+                }
+            }
+            CacheEntry entry = serveAndCache(request, response, destination, uri, route, tagKeys, flight)
+            flight.complete(entry)
+            return null
+        } finally {
+            // in case of failure, the waiting requests render the page themselves
+            flight.complete(null)
+            flights.remove(key, flight)
+            List<String> released = []
+            if (leased) {
+                released << leaseKey(uri)
+            }
+            // the page is revalidated again by the next request if the rendering failed
+            if (revalidating) {
+                released << revalidationKey(uri)
+            }
+            if (released) {
+                // the other instances stop waiting once the lease is released, and revalidate the page again
+                // once the marker is removed while the stale page is still in Memcache, so the page must be stored by then
+                flight.awaitStored(coalescingTimeout)
+                MemcacheServiceFactory.memcacheService.deleteAll(released)
+            }
+        }
+    }
 
-            def now = new Date()
-            def lastModifiedString = httpDateFormat.format(now)
+    /**
+     * Polls Memcache for the page rendered by the instance holding the lease.
+     * The stale pages and the pages of invalidated tags, still in Memcache while the lease holder replaces them, are ignored.
+     * The lease is fetched with the page, so that the wait ends as soon as the lease holder gives up without caching the page.
+     *
+     * @return the page rendered by the lease holder, or null if the page must be rendered by this request
+     */
+    static private CacheEntry awaitLeaseHolder(String key, String leaseKey, Route route, List<String> tagKeys) {
+        def memcache = MemcacheServiceFactory.memcacheService
+        long deadline = System.currentTimeMillis() + coalescingTimeout
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(LEASE_POLLING_INTERVAL)
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt()
+                return null
+            }
+            Map<String, Object> values = memcache.getAll([key, leaseKey] + tagKeys)
+            CacheEntry entry = asEntry(values.get(key))
+            if (entry && entry.isFresh(route.cacheExpiration) && (!tagKeys || entry.isCurrent(values))) {
+                localCache?.put(key, entry, entry.lastModified + retention(route) * 1000L)
+                return entry
+            }
+            if (!values.containsKey(leaseKey)) {
+                log.config "Lease released without a cached page for key $key"
+                return null
+            }
+        }
+        return null
+    }
 
-            // specify caching durations
-            response.addHeader "Cache-Control", "max-age=${cacheExpiration}"
-            response.addHeader "Last-Modified", lastModifiedString
-            response.addHeader "Expires", httpDateFormat.format(new Date(now.time + cacheExpiration * 1000))
-            //response.addHeader "ETag", "\"\""
-            def duration = Expiration.byDeltaSeconds(cacheExpiration)
+    static private CacheEntry serveAndCache(HttpServletRequest request, HttpServletResponse response, String destination, String uri, Route route, List<String> tagKeys, Flight flight) {
+        log.config "Not in the cache, serve and cache for URI $uri"
 
-            log.config "Wrapping a response for caching and forwarding to resource to be cached"
-            def cachedResponse = new CachedResponse(response)
+        def asyncMemcache = MemcacheServiceFactory.asyncMemcacheService
+
+        long now = System.currentTimeMillis()
+        int cacheExpiration = route.cacheExpiration
+
+        // specify caching durations
+        def cacheControl = new StringBuilder("max-age=").append(cacheExpiration)
+        if (route.staleWhileRevalidate > 0) {
+            cacheControl.append(", stale-while-revalidate=").append(route.staleWhileRevalidate)
+        }
+        if (route.staleIfError > 0) {
+            cacheControl.append(", stale-if-error=").append(route.staleIfError)
+        }
+        response.addHeader "Cache-Control", cacheControl.toString()
+        response.addHeader "Last-Modified", HttpDateCodec.format(now)
+        response.addHeader "Expires", HttpDateCodec.format(now + cacheExpiration * 1000L)
+        // the cached page may be served compressed or not, and is cached per value of the headers the route varies on
+        response.addHeader "Vary", vary(route, true)
+        // stale pages are kept in the cache until they can't be served anymore
+        def duration = Expiration.byDeltaSeconds(retention(route))
+
+        // the generations are read before rendering, so that an invalidation during the rendering isn't missed
+        Map<String, Long> generations = tagKeys ? currentGenerations(tagKeys) : null
+
+        log.config "Wrapping a response for caching and forwarding to resource to be cached"
+        def cachedResponse = new CachedResponse(response)
+        try {
             request.getRequestDispatcher(destination).forward request, cachedResponse
-            byte[] byteArray = cachedResponse.output.toByteArray()
+            cachedResponse.finish()
 
-            log.config "Serving content-type and byte array"
+            if (cachedResponse.errorDeferred) {
+                throw new ServerError(cachedResponse)
+            }
 
-            // output back to the screen
-            response.contentType = cachedResponse.contentType
-            response.outputStream << byteArray
+            if (!cachedResponse.cacheable) {
+                log.config "Page for URI $uri not cached because of its status $cachedResponse.status"
+                return null
+            }
+            byte[] content = cachedResponse.output.toByteArray()
+            if (content == null) {
+                log.info "Page for URI $uri is too big to be cached"
+                return null
+            }
+            if (content.length == 0) {
+                log.config "Empty page for URI $uri not cached"
+                return null
+            }
+            def entry = new CacheEntry(content, cachedResponse.contentType, now, generations)
 
-            log.config "Byte array of wrapped response will be put in memcache: ${new String(byteArray)}"
+            // the entity tag is only known once the page has been rendered
+            if (!response.committed) {
+                response.addHeader "ETag", entry.etag
+            }
 
             // put the output in memcache
-            asyncMemcache.put(contentKey, byteArray as byte[], duration)
-            asyncMemcache.put(typeKey, cachedResponse.contentType, duration)
-            asyncMemcache.put(lastModifiedKey, lastModifiedString, duration)
+            flight.stored = asyncMemcache.put(contentKey(uri), entry, duration)
+            localCache?.put(contentKey(uri), entry, now + retention(route) * 1000L)
+            return entry
+        } finally {
+            cachedResponse.output.release()
+        }
+    }
+
+    /**
+     * @return how long a page of the route is kept in the cache, in seconds, including the time it may be served stale
+     */
+    static private int retention(Route route) {
+        route.cacheExpiration + Math.max(route.staleWhileRevalidate, route.staleIfError)
+    }
+
+    /**
+     * Schedules the rendering of a stale page through a push task requesting the page again,
+     * unless the page is already being revalidated by any instance.
+     */
+    static private void revalidate(HttpServletRequest request, String requestURI, String uri, Route route) {
+        boolean scheduled = MemcacheServiceFactory.memcacheService.put(revalidationKey(uri), System.currentTimeMillis(),
+                Expiration.byDeltaSeconds(route.staleWhileRevalidate), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)
+        if (scheduled) {
+            try {
+                // the route URIs are relative to the context of the application, unlike the task URLs
+                def task = TaskOptions.Builder.withUrl((request.contextPath ?: '') + requestURI + (request.queryString ? "?$request.queryString" : ""))
+                        .method(TaskOptions.Method.GET).header(REVALIDATION_HEADER, 'true')
+                // the task renders the same variant of the page
+                for (String header in route.vary) {
+                    String value = request.getHeader(header)
+                    if (value != null) {
+                        task.header(header, value)
+                    }
+                }
+                QueueFactory.defaultQueue.add(task)
+            } catch (Exception e) {
+                log.warning "Cannot schedule the revalidation of the page for URI $uri: $e.message"
+                MemcacheServiceFactory.memcacheService.delete(revalidationKey(uri))
+            }
+        }
+    }
+
+    /**
+     * Revalidation requests are only accepted from the task queue,
+     * as App Engine removes the queue name header from external requests.
+     */
+    static private boolean isRevalidation(HttpServletRequest request) {
+        request.getHeader(REVALIDATION_HEADER) && request.getHeader("X-AppEngine-QueueName")
+    }
+
+    /**
+     * Server error sent by a page, deferred until it's known whether a stale page can be served instead.
+     */
+    private static class ServerError extends RuntimeException {
+        final CachedResponse response
+
+        ServerError(CachedResponse response) {
+            super("status ${response.status}".toString(), null, false, false)
+            this.response = response
+        }
+    }
+
+    /**
+     * Rendering of a page in progress, awaited by the concurrent requests for the same page.
+     */
+    private static class Flight {
+        private final CountDownLatch done = new CountDownLatch(1)
+        private volatile CacheEntry entry
+
+        /** Pending write of the rendered page in Memcache */
+        volatile Future<Void> stored
+
+        void complete(CacheEntry rendered) {
+            if (done.count) {
+                entry = rendered
+                done.countDown()
+            }
+        }
+
+        CacheEntry await(long timeout) {
+            try {
+                done.await(timeout, TimeUnit.MILLISECONDS)
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt()
+            }
+            entry
+        }
+
+        void awaitStored(long timeout) {
+            Future<Void> pending = stored
+            if (pending == null) {
+                return
+            }
+            try {
+                pending.get(timeout, TimeUnit.MILLISECONDS)
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt()
+            } catch (ExecutionException | TimeoutException e) {
+                log.warning "Page not stored in Memcache: $e.message"
+            }
         }
     }
 }
@@ -20,20 +20,100 @@ import javax.servlet.ServletOutputStream
 import javax.servlet.http.HttpServletResponse
 
 /**
- * Cached response used to implement the caching capabilities through the URL routing filter
+ * Cached response used to implement the caching capabilities through the URL routing filter.
+ * <p>
+ * The output is streamed to the wrapped response as it's produced, and captured in a {@link CacheBuffer}
+ * at the same time, so that the client doesn't wait for the whole page before receiving it.
+ * The status of the response is tracked, so that only the successful pages are cached,
+ * and the server errors are deferred, so that a stale page can be served instead.
  * 
  * @author Guillaume Laforge
  */
 @groovy.transform.CompileStatic
 class CachedResponse extends HttpServletResponseWrapper {
 
-    ByteArrayOutputStream output = new ByteArrayOutputStream(8192)
+    CacheBuffer output = new CacheBuffer()
     CustomServletOutputStream stream = new CustomServletOutputStream()
     PrintWriter writer = new PrintWriter(new OutputStreamWriter(stream, "UTF-8"))
 
+    private int status = SC_OK
+    private boolean errorDeferred
+    private String errorMessage
+
     CachedResponse(HttpServletResponse response) {
         super(response)
-        stream.out = output
+        stream.out = new TeeOutputStream(response, output)
+    }
+
+    /**
+     * @return the status of the response
+     */
+    int getStatus() { status }
+
+    /**
+     * @return true if the status of the response is a success, so that the page can be cached
+     */
+    boolean isCacheable() {
+        status >= 200 && status < 300
+    }
+
+    void setStatus(int status) {
+        this.status = status
+        super.setStatus(status)
+    }
+
+    void setStatus(int status, String message) {
+        this.status = status
+        super.setStatus(status, message)
+    }
+
+    void sendError(int status) {
+        sendError(status, null)
+    }
+
+    /**
+     * Server errors are not sent while the response isn't committed, but deferred until the page has been rendered,
+     * the rest of the output of the page being discarded.
+     */
+    void sendError(int status, String message) {
+        this.status = status
+        if (status >= 500 && !committed) {
+            errorDeferred = true
+            errorMessage = message
+            stream.out = new ByteArrayOutputStream()
+        } else if (message == null) {
+            super.sendError(status)
+        } else {
+            super.sendError(status, message)
+        }
+    }
+
+    /**
+     * @return true if a server error has been deferred
+     */
+    boolean isErrorDeferred() { errorDeferred }
+
+    /**
+     * Sends the deferred server error to the wrapped response.
+     */
+    void sendDeferredError() {
+        if (errorMessage == null) {
+            super.sendError(status)
+        } else {
+            super.sendError(status, errorMessage)
+        }
+    }
+
+    void sendRedirect(String location) {
+        status = SC_MOVED_TEMPORARILY
+        super.sendRedirect(location)
+    }
+
+    void reset() {
+        status = SC_OK
+        errorDeferred = false
+        errorMessage = null
+        super.reset()
     }
 
     /**
@@ -42,9 +122,28 @@ class CachedResponse extends HttpServletResponseWrapper {
     PrintWriter getWriter() { writer }
 
     /**
-     * @return the associated output stream
+     * @return the associated output stream, after what's pending in the writer,
+     * so that the bytes written to the stream come after the text already printed
+     */
+    ServletOutputStream getOutputStream() {
+        writer.flush()
+        stream
+    }
+
+    /**
+     * Flushes what's pending in the writer, to the client and to the cache buffer.
      */
-    ServletOutputStream getOutputStream() { stream }
+    void flushBuffer() {
+        writer.flush()
+        super.flushBuffer()
+    }
+
+    /**
+     * Flushes the writer once the page has been rendered.
+     */
+    void finish() {
+        writer.flush()
+    }
 
     /**
      * Custom extension of <code>CustomServletOutpuStream</code>
@@ -72,4 +171,44 @@ class CachedResponse extends HttpServletResponseWrapper {
             out.close()
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Stream writing both to the output stream of the response, obtained on the first write,
+     * and to the cache buffer.
+     */
+    private static class TeeOutputStream extends OutputStream {
+        private final HttpServletResponse response
+        private final CacheBuffer buffer
+        private OutputStream client
+
+        TeeOutputStream(HttpServletResponse response, CacheBuffer buffer) {
+            this.response = response
+            this.buffer = buffer
+        }
+
+        private OutputStream getClient() {
+            if (client == null) {
+                client = response.outputStream
+            }
+            client
+        }
+
+        void write(int i) {
+            getClient().write(i)
+            buffer.write(i)
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            getClient().write(bytes, offset, length)
+            buffer.write(bytes, offset, length)
+        }
+
+        void flush() {
+            client?.flush()
+        }
+
+        void close() {
+            client?.close()
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+import groovyx.gaelyk.datastore.DatastoreEntity
+import groovyx.gaelyk.datastore.DatastoreEntityCoercion
+
+import java.nio.charset.Charset
+
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.Key
+import com.google.appengine.api.datastore.KeyFactory
+
+/**
+ * Compact binary {@link MemcacheCodec} of the common values,
+ * much smaller and faster to encode and decode than their Java serialization.
+ * <p>
+ * The codec handles <code>null</code>, the primitive wrappers, big decimals and integers, strings, dates, byte arrays,
+ * lists, sets and maps of such values, datastore keys and entities,
+ * and the classes annotated with {@link groovyx.gaelyk.datastore.Entity},
+ * stored as their datastore entity, so that only their persistent properties are kept.
+ * Any other value is stored with its Java serialization.
+ * <p>
+ * Lists are decoded as <code>ArrayList</code>, sets as <code>LinkedHashSet</code>,
+ * and maps as <code>LinkedHashMap</code>.
+ */
+@CompileStatic
+class CompactMemcacheCodec implements MemcacheCodec {
+
+    private static final Charset UTF_8 = Charset.forName('UTF-8')
+
+    private static final int NULL = 0
+    private static final int TRUE = 1
+    private static final int FALSE = 2
+    private static final int INTEGER = 3
+    private static final int LONG = 4
+    private static final int DOUBLE = 5
+    private static final int FLOAT = 6
+    private static final int SHORT = 7
+    private static final int BYTE = 8
+    private static final int CHARACTER = 9
+    private static final int STRING = 10
+    private static final int DATE = 11
+    private static final int BYTES = 12
+    private static final int LIST = 13
+    private static final int SET = 14
+    private static final int MAP = 15
+    private static final int KEY = 16
+    private static final int ENTITY = 17
+    private static final int DATASTORE_ENTITY = 18
+    private static final int SERIALIZED = 19
+    private static final int BIG_DECIMAL = 20
+    private static final int BIG_INTEGER = 21
+
+    byte[] encode(Object value) {
+        Output output = new Output()
+        write(output, value)
+        output.toByteArray()
+    }
+
+    Object decode(byte[] bytes) {
+        read(new Input(bytes))
+    }
+
+    private void write(Output out, Object value) {
+        if (value == null) {
+            out.write(NULL)
+        } else if (value instanceof String) {
+            out.write(STRING)
+            out.writeString((String) value)
+        } else if (value instanceof Integer) {
+            out.write(INTEGER)
+            out.writeVarLong(zigzag((Integer) value))
+        } else if (value instanceof Long) {
+            out.write(LONG)
+            out.writeVarLong(zigzag((Long) value))
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE)
+        } else if (value instanceof Double) {
+            out.write(DOUBLE)
+            out.writeLong(Double.doubleToLongBits((Double) value))
+        } else if (value instanceof Float) {
+            out.write(FLOAT)
+            out.writeInt(Float.floatToIntBits((Float) value))
+        } else if (value instanceof Short) {
+            out.write(SHORT)
+            out.writeVarLong(zigzag((Short) value))
+        } else if (value instanceof Byte) {
+            out.write(BYTE)
+            out.write((Byte) value)
+        } else if (value instanceof Character) {
+            out.write(CHARACTER)
+            out.writeVarLong((long) ((Character) value).charValue())
+        } else if (value.getClass().is(BigDecimal)) {
+            // Groovy decimal literals are big decimals
+            BigDecimal decimal = (BigDecimal) value
+            out.write(BIG_DECIMAL)
+            out.writeVarLong(zigzag(decimal.scale()))
+            out.writeBytes(decimal.unscaledValue().toByteArray())
+        } else if (value.getClass().is(BigInteger)) {
+            out.write(BIG_INTEGER)
+            out.writeBytes(((BigInteger) value).toByteArray())
+        } else if (value instanceof GString) {
+            out.write(STRING)
+            out.writeString(value.toString())
+        } else if (value.getClass().is(Date)) {
+            out.write(DATE)
+            out.writeVarLong(zigzag(((Date) value).time))
+        } else if (value instanceof byte[]) {
+            out.write(BYTES)
+            out.writeBytes((byte[]) value)
+        } else if (value instanceof List) {
+            out.write(LIST)
+            writeAll(out, (List) value)
+        } else if (value instanceof Set) {
+            out.write(SET)
+            writeAll(out, (Set) value)
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value
+            out.write(MAP)
+            out.writeVarLong(map.size())
+            for (Map.Entry<?, ?> entry in map.entrySet()) {
+                write(out, entry.key)
+                write(out, entry.value)
+            }
+        } else if (value instanceof Key) {
+            out.write(KEY)
+            out.writeString(KeyFactory.keyToString((Key) value))
+        } else if (value instanceof Entity) {
+            out.write(ENTITY)
+            writeEntity(out, (Entity) value)
+        } else if (value instanceof DatastoreEntity) {
+            out.write(DATASTORE_ENTITY)
+            out.writeString(value.getClass().name)
+            writeEntity(out, DatastoreEntityCoercion.convert((DatastoreEntity) value))
+        } else {
+            out.write(SERIALIZED)
+            out.writeBytes(serialize(value))
+        }
+    }
+
+    private void writeAll(Output out, Collection<?> values) {
+        out.writeVarLong(values.size())
+        for (Object value in values) {
+            write(out, value)
+        }
+    }
+
+    private void writeEntity(Output out, Entity entity) {
+        Key key = entity.key
+        if (key.complete) {
+            out.write(TRUE)
+            out.writeString(KeyFactory.keyToString(key))
+        } else {
+            out.write(FALSE)
+            out.writeString(key.kind)
+            write(out, key.parent)
+        }
+        Map<String, Object> properties = entity.properties
+        out.writeVarLong(properties.size())
+        for (Map.Entry<String, Object> property in properties.entrySet()) {
+            out.writeString(property.key)
+            out.write(entity.isUnindexedProperty(property.key) ? FALSE : TRUE)
+            write(out, property.value)
+        }
+    }
+
+    private Object read(Input input) {
+        // an if chain, as a switch on the tag would be dispatched dynamically
+        int tag = input.read()
+        if (tag == NULL) {
+            return null
+        } else if (tag == STRING) {
+            return input.readString()
+        } else if (tag == INTEGER) {
+            return (Integer) (int) unzigzag(input.readVarLong())
+        } else if (tag == LONG) {
+            return (Long) unzigzag(input.readVarLong())
+        } else if (tag == TRUE) {
+            return Boolean.TRUE
+        } else if (tag == FALSE) {
+            return Boolean.FALSE
+        } else if (tag == DOUBLE) {
+            return (Double) Double.longBitsToDouble(input.readLong())
+        } else if (tag == FLOAT) {
+            return (Float) Float.intBitsToFloat(input.readInt())
+        } else if (tag == SHORT) {
+            return (Short) (short) unzigzag(input.readVarLong())
+        } else if (tag == BYTE) {
+            return (Byte) (byte) input.read()
+        } else if (tag == CHARACTER) {
+            return (Character) (char) input.readVarLong()
+        } else if (tag == BIG_DECIMAL) {
+            int scale = (int) unzigzag(input.readVarLong())
+            return new BigDecimal(new BigInteger(input.readBytes()), scale)
+        } else if (tag == BIG_INTEGER) {
+            return new BigInteger(input.readBytes())
+        } else if (tag == DATE) {
+            return new Date(unzigzag(input.readVarLong()))
+        } else if (tag == BYTES) {
+            return input.readBytes()
+        } else if (tag == LIST) {
+            int size = (int) input.readVarLong()
+            List<Object> list = new ArrayList<Object>(size)
+            for (int i = 0; i < size; i++) {
+                list.add(read(input))
+            }
+            return list
+        } else if (tag == SET) {
+            int size = (int) input.readVarLong()
+            Set<Object> set = new LinkedHashSet<Object>()
+            for (int i = 0; i < size; i++) {
+                set.add(read(input))
+            }
+            return set
+        } else if (tag == MAP) {
+            int size = (int) input.readVarLong()
+            Map<Object, Object> map = new LinkedHashMap<Object, Object>()
+            for (int i = 0; i < size; i++) {
+                Object key = read(input)
+                map.put(key, read(input))
+            }
+            return map
+        } else if (tag == KEY) {
+            return KeyFactory.stringToKey(input.readString())
+        } else if (tag == ENTITY) {
+            return readEntity(input)
+        } else if (tag == DATASTORE_ENTITY) {
+            Class type = Class.forName(input.readString(), true, classLoader)
+            return DatastoreEntityCoercion.convert(readEntity(input), type)
+        } else if (tag == SERIALIZED) {
+            return deserialize(input.readBytes())
+        }
+        throw new IllegalArgumentException("Unknown value type $tag in the cached value")
+    }
+
+    private Entity readEntity(Input input) {
+        Entity entity
+        if (input.read() == TRUE) {
+            entity = new Entity(KeyFactory.stringToKey(input.readString()))
+        } else {
+            String kind = input.readString()
+            Key parent = (Key) read(input)
+            entity = parent == null ? new Entity(kind) : new Entity(kind, parent)
+        }
+        int size = (int) input.readVarLong()
+        for (int i = 0; i < size; i++) {
+            String name = input.readString()
+            boolean indexed = input.read() == TRUE
+            Object value = read(input)
+            if (indexed) {
+                entity.setProperty(name, value)
+            } else {
+                entity.setUnindexedProperty(name, value)
+            }
+        }
+        entity
+    }
+
+    private static byte[] serialize(Object value) {
+        if (!(value instanceof Serializable)) {
+            throw new IllegalArgumentException("Cannot put a value of ${value.getClass().name} in Memcache, it is not serializable")
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+        ObjectOutputStream out = new ObjectOutputStream(bytes)
+        out.writeObject(value)
+        out.close()
+        bytes.toByteArray()
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        ClassLoader loader = classLoader
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                try {
+                    return Class.forName(desc.name, false, loader)
+                } catch (ClassNotFoundException ignored) {
+                    return super.resolveClass(desc)
+                }
+            }
+        }
+        try {
+            input.readObject()
+        } finally {
+            input.close()
+        }
+    }
+
+    private static ClassLoader getClassLoader() {
+        Thread.currentThread().contextClassLoader ?: CompactMemcacheCodec.classLoader
+    }
+
+    private static long zigzag(long value) {
+        (value << 1) ^ (value >> 63)
+    }
+
+    private static long unzigzag(long value) {
+        (value >>> 1) ^ -(value & 1)
+    }
+
+    /**
+     * Growable buffer of the encoded value.
+     */
+    private static class Output {
+        private byte[] buffer = new byte[64]
+        private int count
+
+        void write(int b) {
+            ensure(1)
+            buffer[count++] = (byte) b
+        }
+
+        void writeVarLong(long value) {
+            ensure(10)
+            long v = value
+            while ((v & -128L) != 0L) {
+                buffer[count++] = (byte) ((int) (v & 127L) | 0x80)
+                v = v >>> 7
+            }
+            buffer[count++] = (byte) v
+        }
+
+        void writeInt(int value) {
+            ensure(4)
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[count++] = (byte) (value >>> shift)
+            }
+        }
+
+        void writeLong(long value) {
+            ensure(8)
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[count++] = (byte) (value >>> shift)
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length)
+            ensure(bytes.length)
+            System.arraycopy(bytes, 0, buffer, count, bytes.length)
+            count += bytes.length
+        }
+
+        void writeString(String s) {
+            int length = s.length()
+            boolean ascii = true
+            for (int i = 0; i < length && ascii; i++) {
+                ascii = s.charAt(i) < 0x80
+            }
+            if (ascii) {
+                writeVarLong(length)
+                ensure(length)
+                for (int i = 0; i < length; i++) {
+                    buffer[count++] = (byte) s.charAt(i)
+                }
+            } else {
+                writeBytes(s.getBytes(UTF_8))
+            }
+        }
+
+        byte[] toByteArray() {
+            Arrays.copyOf(buffer, count)
+        }
+
+        private void ensure(int size) {
+            if (count + size > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + size))
+            }
+        }
+    }
+
+    /**
+     * Reader of an encoded value.
+     */
+    private static class Input {
+        private final byte[] buffer
+        private int position
+
+        Input(byte[] buffer) {
+            this.buffer = buffer
+        }
+
+        int read() {
+            if (position >= buffer.length) {
+                throw new IllegalArgumentException('Truncated cached value')
+            }
+            buffer[position++] & 0xFF
+        }
+
+        long readVarLong() {
+            long value = 0
+            int shift = 0
+            int b = read()
+            while ((b & 0x80) != 0) {
+                value |= (long) (b & 0x7F) << shift
+                shift += 7
+                b = read()
+            }
+            value | ((long) b << shift)
+        }
+
+        int readInt() {
+            int value = 0
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | read()
+            }
+            value
+        }
+
+        long readLong() {
+            long value = 0
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | read()
+            }
+            value
+        }
+
+        byte[] readBytes() {
+            int length = (int) readVarLong()
+            if (length < 0 || position + length > buffer.length) {
+                throw new IllegalArgumentException('Truncated cached value')
+            }
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length)
+            position += length
+            bytes
+        }
+
+        String readString() {
+            new String(readBytes(), UTF_8)
+        }
+    }
+}
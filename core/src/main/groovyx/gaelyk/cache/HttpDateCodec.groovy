@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+
+import java.time.Instant
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
+
+/**
+ * Thread-safe formatting and parsing of HTTP dates, such as <code>Sun, 06 Nov 1994 08:49:37 GMT</code>.
+ * <p>
+ * As most of the responses sent within the same second share the same <code>Last-Modified</code> date,
+ * the formatted date of the current second is kept and reused.
+ */
+@CompileStatic
+class HttpDateCodec {
+
+    /** Formatter of the preferred HTTP date format, in GMT */
+    static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC)
+
+    private static volatile FormattedSecond latest = new FormattedSecond(Long.MIN_VALUE, null)
+
+    /**
+     * @param millis a date in milliseconds
+     * @return the HTTP date, precise to the second
+     */
+    static String format(long millis) {
+        long second = Math.floorDiv(millis, 1000L)
+        FormattedSecond formatted = latest
+        if (formatted.second == second) {
+            return formatted.value
+        }
+        String value = FORMATTER.format(Instant.ofEpochSecond(second))
+        // only the current second is kept, dates in the future like Expires would never be reused
+        if (second == Math.floorDiv(System.currentTimeMillis(), 1000L)) {
+            latest = new FormattedSecond(second, value)
+        }
+        value
+    }
+
+    /**
+     * @param date an HTTP date
+     * @return the date in milliseconds, or null if it's not a valid HTTP date
+     */
+    static Long parse(String date) {
+        if (!date) {
+            return null
+        }
+        try {
+            return Instant.from(FORMATTER.parse(date.trim())).toEpochMilli()
+        } catch (DateTimeParseException e) {
+            try {
+                // some clients don't pad the day of the month
+                return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(date.trim())).toEpochMilli()
+            } catch (DateTimeParseException ignored) {
+                return null
+            }
+        }
+    }
+
+    /* Formatted date of a second, replaced atomically */
+    private static class FormattedSecond {
+        final long second
+        final String value
+
+        FormattedSecond(long second, String value) {
+            this.second = second
+            this.value = value
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+
+/**
+ * In-memory tier of the page cache, in front of Memcache, local to the instance.
+ * <p>
+ * The cache is bounded by the total size of the cached pages, the least recently used pages being evicted first.
+ * Each page expires at the same time as its Memcache entry.
+ */
+@CompileStatic
+class LocalCache {
+
+    /* Estimated size of an entry besides its content and its key */
+    private static final int ENTRY_OVERHEAD = 96
+
+    /** Maximum size of the cached pages, in bytes */
+    final long maxSize
+
+    /** Hit and miss counters */
+    final CacheCounters counters = new CacheCounters()
+
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<String, Slot>(64, 0.75f, true)
+    private long size
+
+    /**
+     * @param maxSize maximum size of the cached pages, in bytes
+     */
+    LocalCache(long maxSize) {
+        this.maxSize = maxSize
+    }
+
+    /**
+     * @param key the key of the page
+     * @return the cached page, or null if it's absent or expired
+     */
+    synchronized CacheEntry get(String key) {
+        Slot slot = slots.get(key)
+        if (slot != null && slot.expiresAt <= System.currentTimeMillis()) {
+            discard(key)
+            slot = null
+        }
+        if (slot == null) {
+            counters.miss()
+            return null
+        }
+        counters.hit()
+        slot.entry
+    }
+
+    /**
+     * Caches a page, evicting the least recently used pages if needed.
+     * Pages bigger than the whole cache are not cached.
+     *
+     * @param key the key of the page
+     * @param entry the page
+     * @param expiresAt expiration date of the page, in milliseconds
+     */
+    synchronized void put(String key, CacheEntry entry, long expiresAt) {
+        long entrySize = sizeOf(key, entry)
+        discard(key)
+        if (entrySize > maxSize || expiresAt <= System.currentTimeMillis()) {
+            return
+        }
+        Iterator<Map.Entry<String, Slot>> eldest = slots.entrySet().iterator()
+        while (size + entrySize > maxSize && eldest.hasNext()) {
+            size -= eldest.next().value.size
+            eldest.remove()
+        }
+        slots.put(key, new Slot(entry: entry, expiresAt: expiresAt, size: entrySize))
+        size += entrySize
+    }
+
+    /**
+     * @param key the key of the page to remove from the cache
+     */
+    synchronized void remove(String key) {
+        discard(key)
+    }
+
+    synchronized void clear() {
+        slots.clear()
+        size = 0
+    }
+
+    /**
+     * @return the number of cached pages
+     */
+    synchronized int getCount() { slots.size() }
+
+    /**
+     * @return the size of the cached pages, in bytes
+     */
+    synchronized long getSize() { size }
+
+    private void discard(String key) {
+        Slot slot = slots.remove(key)
+        if (slot != null) {
+            size -= slot.size
+        }
+    }
+
+    private static long sizeOf(String key, CacheEntry entry) {
+        ENTRY_OVERHEAD + 2L * key.length() + entry.content.length + 2L * (entry.contentType?.length() ?: 0) + 2L * entry.etag.length()
+    }
+
+    private static class Slot {
+        CacheEntry entry
+        long expiresAt
+        long size
+    }
+}
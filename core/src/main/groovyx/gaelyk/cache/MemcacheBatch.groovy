@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+import com.google.appengine.api.memcache.MemcacheService
+import com.google.appengine.api.memcache.MemcacheServiceException
+
+/**
+ * Batch of Memcache reads, fetched together with a single <code>getAll</code> call.
+ * <p>
+ * Reading a key with the subscript notation doesn't call Memcache, but returns a deferred value.
+ * The first deferred value used fetches all the keys read so far in the batch,
+ * so that a template reading a few keys before outputting them makes a single Memcache call:
+ * <pre><code>
+ * &lt;% def batch = memcache.batch()
+ *    def title = batch['title']
+ *    def summary = batch['summary'] %&gt;
+ * &lt;h1&gt;${title}&lt;/h1&gt; &lt;p&gt;${summary}&lt;/p&gt;
+ * </code></pre>
+ * The deferred values can be used in conditions, and are compared through their <code>value</code>,
+ * as a deferred value only equals itself, so that putting it in a set or a map doesn't call Memcache.
+ * <p>
+ * The plain subscript reads of the Memcache service, like <code>memcache['title']</code>, are not batched,
+ * as they return the values themselves rather than deferred values.
+ * A batch is meant to be used during a single request, by a single thread.
+ */
+@CompileStatic
+class MemcacheBatch {
+
+    private final MemcacheService memcache
+    private final Set<Object> pending = new LinkedHashSet<Object>()
+    private final Map<Object, Object> values = new HashMap<Object, Object>()
+
+    /** Number of calls made to Memcache */
+    int calls
+
+    MemcacheBatch(MemcacheService memcache) {
+        this.memcache = memcache
+    }
+
+    /**
+     * @param key the key to read, a GString being coerced to a String
+     * @return the deferred value of the key
+     */
+    Value getAt(Object key) {
+        Object k = key instanceof GString ? key.toString() : key
+        if (!values.containsKey(k)) {
+            pending << k
+        }
+        new Value(this, k)
+    }
+
+    /**
+     * @param key the key to read
+     * @return the deferred value of the key
+     */
+    Value getAt(String key) {
+        getAt((Object) key)
+    }
+
+    /**
+     * Fetches the keys read since the last call to Memcache.
+     */
+    void fetch() {
+        if (!pending) {
+            return
+        }
+        List<Object> keys = new ArrayList<Object>(pending)
+        pending.clear()
+        Map<Object, Object> fetched = Collections.emptyMap()
+        try {
+            calls++
+            fetched = MemcacheValues.decodeAll(memcache.getAll(keys))
+        } catch (MemcacheServiceException ignored) {
+            // like the other Memcache extension methods, errors are handled as cache misses
+        }
+        for (Object key in keys) {
+            values.put(key, fetched.get(key))
+        }
+    }
+
+    private Object valueOf(Object key) {
+        if (!values.containsKey(key)) {
+            pending << key
+            fetch()
+        } else if (pending) {
+            fetch()
+        }
+        values.get(key)
+    }
+
+    /**
+     * Deferred value of a key, fetched with the other keys of the batch when it's first used.
+     */
+    static class Value implements Future<Object> {
+        private final MemcacheBatch batch
+        private final Object key
+
+        private Value(MemcacheBatch batch, Object key) {
+            this.batch = batch
+            this.key = key
+        }
+
+        Object get() {
+            batch.valueOf(key)
+        }
+
+        Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            get()
+        }
+
+        /**
+         * @return the value of the key, or null if it isn't in the cache
+         */
+        Object getValue() {
+            get()
+        }
+
+        boolean cancel(boolean mayInterruptIfRunning) { false }
+
+        boolean isCancelled() { false }
+
+        boolean isDone() { batch.values.containsKey(key) }
+
+        /**
+         * @return the Groovy truth of the value of the key, false if it isn't in the cache
+         */
+        boolean asBoolean() {
+            get() as boolean
+        }
+
+        String toString() {
+            String.valueOf(get())
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+/**
+ * Codec of the values put in Memcache through the Gaelyk extension methods,
+ * in place of the Java serialization of the App Engine SDK.
+ *
+ * @see MemcacheValues
+ * @see CompactMemcacheCodec
+ */
+interface MemcacheCodec {
+
+    /**
+     * @param value the value to put in Memcache, not null
+     * @return the encoded value
+     */
+    byte[] encode(Object value)
+
+    /**
+     * @param bytes bytes returned by {@link #encode}
+     * @return the decoded value
+     */
+    Object decode(byte[] bytes)
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Encoding of the values put in Memcache through the Gaelyk extension methods with a pluggable {@link MemcacheCodec}.
+ * <p>
+ * Without codec, the values are stored as is, and serialized by the App Engine SDK.
+ * With a codec, for instance set by a plugin descriptor:
+ * <pre><code>
+ * MemcacheValues.codec = new CompactMemcacheCodec()
+ * </code></pre>
+ * the values are stored as byte arrays starting with a header telling them apart from other byte arrays,
+ * so that values put before setting the codec, or with the native Memcache methods, are still read as is.
+ * <p>
+ * The extension methods encode and decode the values of the subscript notation, of <code>getAll</code> and <code>putAll</code>,
+ * and of <code>get</code> and <code>put</code> with a String or GString key.
+ * The native <code>get</code> and <code>put</code> methods called with other keys bypass the codec.
+ */
+@CompileStatic
+class MemcacheValues {
+
+    /* Header of the encoded values: 'G', 'K', and the version of the header */
+    private static final byte[] HEADER = [0x47, 0x4B, 0x01] as byte[]
+
+    /** Codec of the values, null to let the App Engine SDK serialize them */
+    static volatile MemcacheCodec codec
+
+    /**
+     * @param value a value to put in Memcache
+     * @return the value to store
+     */
+    static Object encode(Object value) {
+        MemcacheCodec current = codec
+        if (current == null || value == null) {
+            return value
+        }
+        byte[] payload = current.encode(value)
+        byte[] bytes = new byte[HEADER.length + payload.length]
+        System.arraycopy(HEADER, 0, bytes, 0, HEADER.length)
+        System.arraycopy(payload, 0, bytes, HEADER.length, payload.length)
+        bytes
+    }
+
+    /**
+     * @param stored a value stored in Memcache
+     * @return the decoded value
+     */
+    static Object decode(Object stored) {
+        MemcacheCodec current = codec
+        if (current == null || !(stored instanceof byte[])) {
+            return stored
+        }
+        byte[] bytes = (byte[]) stored
+        if (bytes.length < HEADER.length || bytes[0] != HEADER[0] || bytes[1] != HEADER[1] || bytes[2] != HEADER[2]) {
+            return stored
+        }
+        current.decode(Arrays.copyOfRange(bytes, HEADER.length, bytes.length))
+    }
+
+    /**
+     * @param values values to put in Memcache, by key
+     * @return the values to store, by key
+     */
+    static Map<Object, Object> encodeAll(Map<Object, Object> values) {
+        if (codec == null) {
+            return values
+        }
+        Map<Object, Object> encoded = new LinkedHashMap<Object, Object>()
+        for (Map.Entry<Object, Object> entry in values.entrySet()) {
+            encoded.put(entry.key, encode(entry.value))
+        }
+        encoded
+    }
+
+    /**
+     * @param stored values stored in Memcache, by key
+     * @return the decoded values, by key
+     */
+    static <K> Map<K, Object> decodeAll(Map<K, Object> stored) {
+        if (codec == null) {
+            return stored
+        }
+        Map<K, Object> decoded = new LinkedHashMap<K, Object>()
+        for (Map.Entry<K, Object> entry in stored.entrySet()) {
+            decoded.put(entry.key, decode(entry.value))
+        }
+        decoded
+    }
+
+    /**
+     * @param future the future of a value stored in Memcache
+     * @return the future of the decoded value
+     */
+    static Future<Object> decoding(Future<?> future) {
+        new DecodingFuture(future, false)
+    }
+
+    /**
+     * @param future the future of values stored in Memcache, by key
+     * @return the future of the decoded values, by key
+     */
+    static Future<Map<Object, Object>> decodingAll(Future<? extends Map<?, ?>> future) {
+        (Future<Map<Object, Object>>) new DecodingFuture(future, true)
+    }
+
+    private static class DecodingFuture implements Future<Object> {
+        private final Future<?> future
+        private final boolean all
+
+        DecodingFuture(Future<?> future, boolean all) {
+            this.future = future
+            this.all = all
+        }
+
+        Object get() throws InterruptedException, ExecutionException {
+            decodeResult(future.get())
+        }
+
+        Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            decodeResult(future.get(timeout, unit))
+        }
+
+        boolean cancel(boolean mayInterruptIfRunning) { future.cancel(mayInterruptIfRunning) }
+
+        boolean isCancelled() { future.cancelled }
+
+        boolean isDone() { future.done }
+
+        private Object decodeResult(Object result) {
+            all ? decodeAll((Map<Object, Object>) result) : decode(result)
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+
+import com.google.appengine.api.memcache.Expiration
+import com.google.appengine.api.memcache.MemcacheService
+import com.google.appengine.api.memcache.MemcacheServiceException
+
+import org.codehaus.groovy.runtime.InvokerHelper
+
+/**
+ * Closure whose results are cached in Memcache, under a name stable across instances and deployments.
+ * <p>
+ * The results are looked up in an optional in-memory tier local to the instance, then in Memcache,
+ * and only computed on a miss. Concurrent calls of the closure with the same arguments on an instance
+ * wait for a single computation. Null results are cached too.
+ * <p>
+ * The in-memory tier, the pending computations and the counters are shared by all the memoized closures
+ * of the same name on the instance, so that a closure memoized again on each request of a groovlet still uses them.
+ * The size of the in-memory tier is the one given to the first closure of that name.
+ *
+ * @see groovyx.gaelyk.extensions.MemcacheExtensions#memoize(MemcacheService, Map, Closure)
+ */
+@CompileStatic
+class MemoizedClosure<T> extends Closure<T> {
+
+    private static final long serialVersionUID = 1L
+
+    /** Name of the memoized function, part of the key of the cached results */
+    final String name
+
+    /** Expiration of the cached results, in seconds */
+    final int expiration
+
+    /** Maximum number of results cached in memory by the closures of that name, 0 for no in-memory tier */
+    final int localSize
+
+    /** Hits and misses of the closures of that name, a miss being a computation of the closure */
+    final CacheCounters counters
+
+    /* State of the memoized closures, by name */
+    private static final ConcurrentHashMap<String, Shared> SHARED = new ConcurrentHashMap<String, Shared>()
+
+    private final transient MemcacheService memcache
+    private final Closure<T> closure
+    private final transient Map<List<Object>, Slot> local
+    private final transient ConcurrentHashMap<List<Object>, FutureTask<Object>> flights
+
+    /**
+     * @param memcache the Memcache service
+     * @param name the name of the memoized function
+     * @param expiration expiration of the cached results, in seconds
+     * @param localSize maximum number of results cached in memory, 0 for no in-memory tier,
+     * ignored if a closure of that name already exists
+     * @param closure the closure to memoize
+     */
+    MemoizedClosure(MemcacheService memcache, String name, int expiration, int localSize, Closure<T> closure) {
+        super(closure.owner, closure.thisObject)
+        if (!name) {
+            throw new IllegalArgumentException('A memoized closure needs a name')
+        }
+        if (expiration <= 0) {
+            throw new IllegalArgumentException("The expiration of memoized closure $name must be positive")
+        }
+        this.memcache = memcache
+        this.name = name
+        this.expiration = expiration
+        this.closure = closure
+        this.@maximumNumberOfParameters = closure.maximumNumberOfParameters
+        this.@parameterTypes = closure.parameterTypes
+        Shared shared = SHARED.get(name)
+        if (shared == null) {
+            shared = new Shared(localSize)
+            Shared existing = SHARED.putIfAbsent(name, shared)
+            if (existing != null) {
+                shared = existing
+            }
+        }
+        this.localSize = shared.localSize
+        this.counters = shared.counters
+        this.local = shared.local
+        this.flights = shared.flights
+    }
+
+    @Override
+    T call(Object... args) {
+        List<Object> key = keyFor(args)
+        Object result = cached(key)
+        if (result == null) {
+            result = computeOnce(key, args)
+        } else {
+            counters.hit()
+        }
+        (T) (result == NullResult.INSTANCE ? null : result)
+    }
+
+    /**
+     * Properties of a closure are resolved against its owner first,
+     * the properties of the memoized closure itself are resolved here.
+     */
+    @Override
+    Object getProperty(String property) {
+        switch (property) {
+            case 'name': return name
+            case 'expiration': return expiration
+            case 'localSize': return localSize
+            case 'counters': return counters
+            default: return super.getProperty(property)
+        }
+    }
+
+    /**
+     * Removes the cached result of the closure for the given arguments.
+     *
+     * @param args the arguments of the call
+     */
+    void forget(Object... args) {
+        List<Object> key = keyFor(args)
+        if (local != null) {
+            synchronized (local) {
+                local.remove(key)
+            }
+        }
+        try {
+            memcache.delete(key)
+        } catch (MemcacheServiceException ignored) {
+            // the result expires anyway
+        }
+    }
+
+    private List<Object> keyFor(Object[] args) {
+        List<Object> arguments = new ArrayList<Object>(args.length)
+        for (Object arg in args) {
+            arguments << (arg instanceof GString ? arg.toString() : arg)
+        }
+        ['memoized', name, arguments] as List<Object>
+    }
+
+    private Object cached(List<Object> key) {
+        if (local != null) {
+            synchronized (local) {
+                Slot slot = local.get(key)
+                if (slot != null && slot.expiresAt > System.currentTimeMillis()) {
+                    return slot.value
+                }
+            }
+        }
+        Object value = null
+        try {
+            value = MemcacheValues.decode(memcache.get(key))
+        } catch (MemcacheServiceException ignored) {
+            // handled as a miss
+        }
+        if (value != null) {
+            keepLocally(key, value)
+        }
+        value
+    }
+
+    private Object computeOnce(List<Object> key, Object[] args) {
+        FutureTask<Object> flight = new FutureTask<Object>({ compute(key, args) })
+        FutureTask<Object> running = flights.putIfAbsent(key, flight)
+        if (running == null) {
+            try {
+                flight.run()
+            } finally {
+                flights.remove(key, flight)
+            }
+            running = flight
+        } else {
+            // the result computed by the concurrent call is shared
+            counters.hit()
+        }
+        try {
+            running.get()
+        } catch (ExecutionException e) {
+            throw e.cause
+        }
+    }
+
+    private Object compute(List<Object> key, Object[] args) {
+        // another instance or a previous flight may have cached the result meanwhile
+        Object value = cached(key)
+        if (value != null) {
+            counters.hit()
+            return value
+        }
+        counters.miss()
+        value = InvokerHelper.invokeClosure(closure, args)
+        if (value == null) {
+            value = NullResult.INSTANCE
+        }
+        try {
+            memcache.put(key, MemcacheValues.encode(value), Expiration.byDeltaSeconds(expiration))
+        } catch (MemcacheServiceException ignored) {
+            // the result is computed again next time
+        }
+        keepLocally(key, value)
+        value
+    }
+
+    private void keepLocally(List<Object> key, Object value) {
+        if (local != null) {
+            synchronized (local) {
+                local.put(key, new Slot(value: value, expiresAt: System.currentTimeMillis() + expiration * 1000L))
+            }
+        }
+    }
+
+    /**
+     * Result cached in place of null, to tell null results apart from misses.
+     */
+    static enum NullResult {
+        INSTANCE
+    }
+
+    /**
+     * State shared by the memoized closures of the same name.
+     */
+    private static class Shared {
+        final int localSize
+        final CacheCounters counters = new CacheCounters()
+        final Map<List<Object>, Slot> local
+        final ConcurrentHashMap<List<Object>, FutureTask<Object>> flights = new ConcurrentHashMap<List<Object>, FutureTask<Object>>()
+
+        Shared(int localSize) {
+            this.localSize = localSize
+            local = localSize > 0 ? new LruMap(localSize) : null
+        }
+    }
+
+    private static class Slot {
+        Object value
+        long expiresAt
+    }
+
+    private static class LruMap extends LinkedHashMap<List<Object>, Slot> {
+        private final int maxEntries
+
+        LruMap(int maxEntries) {
+            super(16, 0.75f, true)
+            this.maxEntries = maxEntries
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Slot> eldest) {
+            size() > maxEntries
+        }
+    }
+}
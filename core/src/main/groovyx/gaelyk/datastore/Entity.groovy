@@ -42,6 +42,8 @@ import org.codehaus.groovy.transform.GroovyASTTransformationClass
  * 
  * All classes annotated by this annotation will implement {@link DatastoreEntity} interface.
  *
+ * Set {@link #cached()} to <code>true</code> to read the entities through a Memcache cache when they are fetched by key.
+ *
  * @author Vladimir Orany
  */
 
@@ -52,4 +54,11 @@ import org.codehaus.groovy.transform.GroovyASTTransformationClass
 @Inherited
 @interface Entity {
     boolean unindexed() default true
+
+    /**
+     * Set to <code>true</code> to cache the entities in Memcache when they are read by key,
+     * with the <code>get</code> methods of the class or of their keys.
+     * See {@link EntityCache}.
+     */
+    boolean cached() default false
 }
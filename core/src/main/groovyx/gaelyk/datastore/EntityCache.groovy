@@ -0,0 +1,277 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.datastore
+
+import groovy.transform.CompileStatic
+import groovyx.gaelyk.cache.MemcacheValues
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.EntityNotFoundException
+import com.google.appengine.api.datastore.Key
+import com.google.appengine.api.datastore.KeyFactory
+import com.google.appengine.api.datastore.Transaction
+import com.google.appengine.api.memcache.Expiration
+import com.google.appengine.api.memcache.MemcacheService
+import com.google.appengine.api.memcache.MemcacheServiceException
+import com.google.appengine.api.memcache.MemcacheServiceFactory
+
+/**
+ * Read-through Memcache cache of the entities of some kinds, for the gets by key.
+ * <p>
+ * The entities of the classes annotated with <code>@Entity(cached = true)</code> are cached,
+ * and other kinds can be cached with {@link #cacheKind(String)}.
+ * The cached entities are invalidated by the <code>save()</code> and <code>delete()</code> methods
+ * of the entities, keys and annotated classes, but not by the native methods of the datastore service.
+ * <p>
+ * Inside a transaction, the entities are read from the datastore, so that the transaction sees its own entity groups,
+ * and the writes still invalidate the cached entities.
+ * An invalidated entity cannot be cached again during {@link #invalidationDelay} milliseconds,
+ * so that a concurrent get which read the previous version from the datastore doesn't cache it back.
+ * <p>
+ * The writes which take effect later are invalidated again once they have:
+ * the writes of a transaction when it's committed by <code>withTransaction</code>,
+ * and the asynchronous writes when their future completes.
+ * The asynchronous writes also block caching for {@link #asyncInvalidationDelay} milliseconds,
+ * in case their future is never waited for.
+ */
+@CompileStatic
+class EntityCache {
+
+    private static final Set<String> kinds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>())
+
+    /** Expiration of the cached entities, in seconds */
+    static volatile int expiration = 3600
+
+    /** Delay during which an invalidated entity isn't cached again, in milliseconds */
+    static volatile long invalidationDelay = 1000
+
+    /** Delay during which an entity written asynchronously isn't cached again, in milliseconds */
+    static volatile long asyncInvalidationDelay = 10000
+
+    /* Keys of the cached entities written by the transactions of the current thread */
+    private static final ThreadLocal<Map<Transaction, Set<Key>>> transactionWrites = new ThreadLocal<Map<Transaction, Set<Key>>>()
+
+    /**
+     * Caches the entities of a kind.
+     *
+     * @param kind the kind of the entities
+     */
+    static void cacheKind(String kind) {
+        kinds << kind
+    }
+
+    /**
+     * Caches the entities of a class annotated with <code>@Entity(cached = true)</code>.
+     *
+     * @param type the annotated class
+     */
+    static void cacheKind(Class<?> type) {
+        cacheKind(type.simpleName)
+    }
+
+    /**
+     * Stops caching the entities of a kind.
+     *
+     * @param kind the kind of the entities
+     */
+    static void uncacheKind(String kind) {
+        kinds.remove(kind)
+    }
+
+    /**
+     * @param kind the kind of the entities
+     * @return true if the entities of that kind are cached
+     */
+    static boolean isCached(String kind) {
+        kinds.contains(kind)
+    }
+
+    /**
+     * Gets an entity from the cache, or from the datastore if it isn't cached yet or if a transaction is active.
+     *
+     * @param key the key of the entity
+     * @return the entity
+     * @throws EntityNotFoundException if the entity doesn't exist
+     */
+    static Entity get(Key key) throws EntityNotFoundException {
+        if (!kinds.contains(key.kind) || inTransaction()) {
+            return DatastoreServiceFactory.datastoreService.get(key)
+        }
+        MemcacheService memcache = MemcacheServiceFactory.memcacheService
+        String cacheKey = cacheKey(key)
+        try {
+            Object cached = MemcacheValues.decode(memcache.get(cacheKey))
+            if (cached instanceof Entity) {
+                return (Entity) cached
+            }
+        } catch (MemcacheServiceException ignored) {
+            // read from the datastore
+        }
+        Entity entity = DatastoreServiceFactory.datastoreService.get(key)
+        try {
+            memcache.put(cacheKey, MemcacheValues.encode(entity), Expiration.byDeltaSeconds(expiration), MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)
+        } catch (MemcacheServiceException ignored) {
+            // read from the datastore next time
+        }
+        entity
+    }
+
+    /**
+     * Removes an entity from the cache, after it has been saved or deleted.
+     *
+     * @param key the key of the entity
+     */
+    static void invalidate(Key key) {
+        invalidateDuring(key, invalidationDelay)
+    }
+
+    /**
+     * Removes an entity from the cache, after it has been written asynchronously,
+     * and once again when the write completes.
+     *
+     * @param key the key of the entity
+     * @param write the future of the write
+     * @return the future of the write, invalidating the entity when it completes
+     */
+    static <T> Future<T> invalidateAsync(Key key, Future<T> write) {
+        if (!isCachedKey(key)) {
+            return write
+        }
+        invalidateDuring(key, asyncInvalidationDelay)
+        new CompletionFuture<T>(write, { invalidate(key) })
+    }
+
+    /**
+     * Invalidates again the entities written in a transaction, once it has been committed.
+     *
+     * @param transaction the committed transaction
+     */
+    static void committed(Transaction transaction) {
+        Set<Key> keys = transactionWrites.get()?.remove(transaction)
+        if (keys) {
+            for (Key key in keys) {
+                delete(key, invalidationDelay)
+            }
+        }
+    }
+
+    /**
+     * Forgets the entities written in a transaction which has been rolled back.
+     *
+     * @param transaction the rolled back transaction
+     */
+    static void rolledBack(Transaction transaction) {
+        transactionWrites.get()?.remove(transaction)
+    }
+
+    /**
+     * @param transaction the transaction being committed asynchronously
+     * @param commit the future of the commit
+     * @return the future of the commit, invalidating the entities written in the transaction when it completes
+     */
+    static Future<Void> committedAsync(Transaction transaction, Future<Void> commit) {
+        new CompletionFuture<Void>(commit, { committed(transaction) })
+    }
+
+    private static boolean isCachedKey(Key key) {
+        key != null && key.complete && kinds.contains(key.kind)
+    }
+
+    private static void invalidateDuring(Key key, long delay) {
+        if (!isCachedKey(key)) {
+            return
+        }
+        delete(key, delay)
+        Transaction transaction = DatastoreServiceFactory.datastoreService.getCurrentTransaction(null)
+        if (transaction != null) {
+            Map<Transaction, Set<Key>> writes = transactionWrites.get()
+            if (writes == null) {
+                // the transactions committed with the native methods are forgotten once collected
+                writes = new WeakHashMap<Transaction, Set<Key>>()
+                transactionWrites.set(writes)
+            }
+            Set<Key> keys = writes.get(transaction)
+            if (keys == null) {
+                keys = new HashSet<Key>()
+                writes.put(transaction, keys)
+            }
+            keys << key
+        }
+    }
+
+    private static void delete(Key key, long delay) {
+        try {
+            MemcacheServiceFactory.memcacheService.delete(cacheKey(key), delay)
+        } catch (MemcacheServiceException ignored) {
+            // the entity expires anyway
+        }
+    }
+
+    /**
+     * @param key the key of an entity
+     * @return the key of the entity in Memcache
+     */
+    static String cacheKey(Key key) {
+        'entity-' + KeyFactory.keyToString(key)
+    }
+
+    private static boolean inTransaction() {
+        DatastoreServiceFactory.datastoreService.getCurrentTransaction(null) != null
+    }
+
+    /**
+     * Future of a write, running an action once the write has completed successfully.
+     */
+    private static class CompletionFuture<T> implements Future<T> {
+        private final Future<T> write
+        private final Closure<?> completion
+        private boolean completed
+
+        CompletionFuture(Future<T> write, Closure<?> completion) {
+            this.write = write
+            this.completion = completion
+        }
+
+        T get() throws InterruptedException, ExecutionException {
+            complete(write.get())
+        }
+
+        T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            complete(write.get(timeout, unit))
+        }
+
+        private synchronized T complete(T result) {
+            if (!completed) {
+                completed = true
+                completion.call()
+            }
+            result
+        }
+
+        boolean cancel(boolean mayInterruptIfRunning) { write.cancel(mayInterruptIfRunning) }
+
+        boolean isCancelled() { write.cancelled }
+
+        boolean isDone() { write.done }
+    }
+}
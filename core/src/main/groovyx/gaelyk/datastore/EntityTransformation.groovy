@@ -38,6 +38,7 @@ import org.codehaus.groovy.ast.expr.ConstantExpression
 import org.codehaus.groovy.ast.expr.Expression
 import org.codehaus.groovy.ast.expr.ListExpression
 import org.codehaus.groovy.ast.expr.MethodCallExpression
+import org.codehaus.groovy.ast.expr.StaticMethodCallExpression
 import org.codehaus.groovy.ast.expr.VariableExpression
 import org.codehaus.groovy.ast.stmt.BlockStatement
 import org.codehaus.groovy.ast.stmt.EmptyStatement;
@@ -79,6 +80,10 @@ class EntityTransformation extends AbstractASTTransformation {
 
         addDatastoreEntityInterface(keyType, parent)
 
+        if (memberHasValue(anno, 'cached', true)) {
+            addEntityCacheRegistration(parent)
+        }
+
         parent.addMethod(addDelegatedMethod('save', keyCN))
         parent.addMethod(addDelegatedMethod('delete'))
         if(hasParent){
@@ -113,6 +118,13 @@ class EntityTransformation extends AbstractASTTransformation {
         parent.addInterface(GenericsUtils.makeClassSafeWithGenerics(ClassHelper.make(DatastoreEntity), new GenericsType(keyType)))
     }
 
+    private static addEntityCacheRegistration(ClassNode parent) {
+        parent.addStaticInitializerStatements([
+            new ExpressionStatement(new StaticMethodCallExpression(ClassHelper.make(EntityCache).plainNodeReference, 'cacheKind',
+                new ArgumentListExpression(new ClassExpression(parent.plainNodeReference))))
+        ], false)
+    }
+
     private static ClassNode getPogoIteratorNode(ClassNode parent) {
         GenericsUtils.makeClassSafeWithGenerics(ClassHelper.make(Iterator), new GenericsType(parent))
     }
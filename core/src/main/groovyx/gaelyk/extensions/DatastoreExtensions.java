@@ -20,6 +20,7 @@ import groovy.lang.DelegatesTo;
 import groovy.lang.GString;
 import groovy.lang.Script;
 import groovyx.gaelyk.UnindexedEntityWrapper;
+import groovyx.gaelyk.datastore.EntityCache;
 import groovyx.gaelyk.datastore.PogoEntityCoercion;
 import groovyx.gaelyk.query.QueryBuilder;
 
@@ -187,7 +188,9 @@ public class DatastoreExtensions {
      * Usage: <code>entity.save()</code>
      */
     public static Key save(Entity entity) {
-        return DatastoreServiceFactory.getDatastoreService().put(entity);
+        Key key = DatastoreServiceFactory.getDatastoreService().put(entity);
+        EntityCache.invalidate(key);
+        return key;
     }
 
     /**
@@ -195,7 +198,8 @@ public class DatastoreExtensions {
      * Usage: <code>entity.asyncSave()</code>
      */
     public static Future<Key> asyncSave(Entity entity) {
-        return DatastoreServiceFactory.getAsyncDatastoreService().put(entity);
+        Future<Key> key = DatastoreServiceFactory.getAsyncDatastoreService().put(entity);
+        return EntityCache.invalidateAsync(entity.getKey(), key);
     }
 
     /**
@@ -203,7 +207,7 @@ public class DatastoreExtensions {
      * Usage: <code>entity.delete()</code>
      */
     public static void delete(Entity entity) {
-        DatastoreServiceFactory.getDatastoreService().delete(entity.getKey());
+        delete(entity.getKey());
     }
 
     /**
@@ -211,7 +215,7 @@ public class DatastoreExtensions {
      * Usage: <code>entity.asyncDelete()</code>
      */
     public static Future<Void> asyncDelete(Entity entity) {
-        return DatastoreServiceFactory.getAsyncDatastoreService().delete(entity.getKey());
+        return asyncDelete(entity.getKey());
     }
 
     /**
@@ -220,6 +224,7 @@ public class DatastoreExtensions {
      */
     public static void delete(Key key) {
         DatastoreServiceFactory.getDatastoreService().delete(key);
+        EntityCache.invalidate(key);
     }
 
     /**
@@ -230,7 +235,7 @@ public class DatastoreExtensions {
      * @returns an entity
      */
     public static Entity get(Key key) throws EntityNotFoundException {
-        return DatastoreServiceFactory.getDatastoreService().get(key);
+        return EntityCache.get(key);
     }
 
     /**
@@ -268,7 +273,8 @@ public class DatastoreExtensions {
      * Usage: <code>key.delete()</code>
      */
     public static Future<Void> asyncDelete(Key key) {
-        return DatastoreServiceFactory.getAsyncDatastoreService().delete(key);
+        Future<Void> deletion = DatastoreServiceFactory.getAsyncDatastoreService().delete(key);
+        return EntityCache.invalidateAsync(key, deletion);
     }
 
     /**
@@ -305,11 +311,13 @@ public class DatastoreExtensions {
             c.call(transaction);
             // commit the transaction if the Closure<?> executed without throwing an exception
             transaction.commit();
+            EntityCache.committed(transaction);
         } catch (Exception e) {
             // rollback on error
             if (transaction.isActive()) {
                 transaction.rollback();
             }
+            EntityCache.rolledBack(transaction);
             // rethrow the exception
             throw e;
         }
@@ -355,6 +363,7 @@ public class DatastoreExtensions {
             // commit the transaction if the Closure<?> executed without throwing an exception
             // blocks on the result of all async calls made since the transaction started
             transaction.get().commit();
+            EntityCache.committed(transaction.get());
         } catch (Exception e) {
             // rollback on error
             if (transaction.get().isActive()) {
@@ -362,6 +371,7 @@ public class DatastoreExtensions {
                     transaction.get().rollback();
                 } catch (IllegalArgumentException iae) {}
             }
+            EntityCache.rolledBack(transaction.get());
             // rethrow the exception
             throw e;
         }
@@ -388,12 +398,13 @@ public class DatastoreExtensions {
             // pass the transaction as single parameter of the closure
             c.call(transaction);
             // commit the transaction asynchronously if the Closure<?> executed without throwing an exception
-            return transaction.get().commitAsync();
+            return EntityCache.committedAsync(transaction.get(), transaction.get().commitAsync());
         } catch (Exception e) {
             // rollback on error
             if (transaction.get().isActive()) {
                 transaction.get().rollback();
             }
+            EntityCache.rolledBack(transaction.get());
             // rethrow the exception
             throw e;
         }
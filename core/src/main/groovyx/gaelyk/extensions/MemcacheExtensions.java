@@ -18,9 +18,16 @@ package groovyx.gaelyk.extensions;
 import groovy.lang.Closure;
 import groovy.lang.GString;
 import groovyx.gaelyk.cache.CacheHandler;
+import groovyx.gaelyk.cache.MemcacheBatch;
+import groovyx.gaelyk.cache.MemcacheValues;
+import groovyx.gaelyk.cache.MemoizedClosure;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Future;
@@ -47,7 +54,7 @@ public class MemcacheExtensions {
      */
     public static Object get(MemcacheService memcache, Object key) {
         try {
-            return memcache.get(key);
+            return MemcacheValues.decode(memcache.get(key));
         } catch (MemcacheServiceException mse) {}
         return null;
     }
@@ -62,7 +69,7 @@ public class MemcacheExtensions {
      */
     public static void put(MemcacheService memcache, Object key, Object value, Expiration expiration, MemcacheService.SetPolicy policy) {
         try {
-            memcache.put(key, (Object)value, expiration, policy);
+            memcache.put(key, MemcacheValues.encode(value), expiration, policy);
         } catch (MemcacheServiceException mse) {}
     }
 
@@ -108,6 +115,65 @@ public class MemcacheExtensions {
        return  get(memcache, (Object)key);
     }
 
+    /**
+     * Get several objects from the cache with a single call, GString keys being coerced to Strings,
+     * ignoring any exceptions.
+     *
+     * @param keys the keys of the objects
+     * @return a map of the keys found in the cache and their values
+     */
+    public static Map<Object, Object> getAll(MemcacheService memcache, List<?> keys) {
+        try {
+            return MemcacheValues.decodeAll(memcache.getAll(coerceKeys(keys)));
+        } catch (MemcacheServiceException mse) {}
+        return new HashMap<Object, Object>();
+    }
+
+    /**
+     * Put several objects in the cache with a single call, GString keys being coerced to Strings,
+     * ignoring any exceptions.
+     *
+     * @param values the keys and values to put in the cache
+     * @param seconds expiration of the keys in seconds, like <code>10.minutes</code>
+     */
+    public static void putAll(MemcacheService memcache, Map<?, ?> values, int seconds) {
+        try {
+            memcache.putAll(MemcacheValues.encodeAll(coerceKeys(values)), Expiration.byDeltaSeconds(seconds));
+        } catch (MemcacheServiceException mse) {}
+    }
+
+    /**
+     * Start a batch of reads, fetched together with a single call when the first value is used:
+     * <pre><code>
+     * def batch = memcache.batch()
+     * def title = batch['title']
+     * def summary = batch['summary']
+     * println "$title: $summary"
+     * </code></pre>
+     *
+     * @return a new batch of reads
+     */
+    public static MemcacheBatch batch(MemcacheService memcache) {
+        return new MemcacheBatch(memcache);
+    }
+
+    private static List<Object> coerceKeys(Collection<?> keys) {
+        List<Object> coerced = new ArrayList<Object>(keys.size());
+        for (Object key : keys) {
+            coerced.add(key instanceof GString ? key.toString() : key);
+        }
+        return coerced;
+    }
+
+    private static Map<Object, Object> coerceKeys(Map<?, ?> values) {
+        Map<Object, Object> coerced = new LinkedHashMap<Object, Object>();
+        for (Map.Entry<?, ?> entry : values.entrySet()) {
+            Object key = entry.getKey();
+            coerced.put(key instanceof GString ? key.toString() : key, entry.getValue());
+        }
+        return coerced;
+    }
+
     /**
      * Put an object in the cache under a GString key, coerced to a String.
      *
@@ -118,6 +184,42 @@ public class MemcacheExtensions {
         put(memcache, (Object)key, value, null, MemcacheService.SetPolicy.SET_ALWAYS);
     }
 
+    /**
+     * Put an object in the cache under a String key, encoded like the values put with the other extension methods.
+     *
+     * @param key a String key
+     * @param value the value to put in the cache
+     */
+    public static void put(MemcacheService memcache, String key, Object value) {
+        memcache.put(key, MemcacheValues.encode(value));
+    }
+
+    /**
+     * Put an object in the cache under a String key, with an expiration,
+     * encoded like the values put with the other extension methods.
+     *
+     * @param key a String key
+     * @param value the value to put in the cache
+     * @param expiration expiration of the key/value
+     */
+    public static void put(MemcacheService memcache, String key, Object value, Expiration expiration) {
+        memcache.put(key, MemcacheValues.encode(value), expiration);
+    }
+
+    /**
+     * Put an object in the cache under a String key, with an expiration and a SetPolicy,
+     * encoded like the values put with the other extension methods.
+     *
+     * @param key a String key
+     * @param value the value to put in the cache
+     * @param expiration expiration of the key/value
+     * @param policy a SetPolicy
+     * @return true if the value was put in the cache
+     */
+    public static boolean put(MemcacheService memcache, String key, Object value, Expiration expiration, MemcacheService.SetPolicy policy) {
+        return memcache.put(key, MemcacheValues.encode(value), expiration, policy);
+    }
+
     /**
      * Put an object in the cache under a GString key, coerced to a String.
      *
@@ -196,10 +298,21 @@ public class MemcacheExtensions {
         return CacheHandler.clearCacheForUri(uri);
     }
 
+    /**
+     * Clear the cached content of all the pages of the routes declaring a given tag.
+     *
+     * @param tag the tag, with the values of the path variables, like <code>article-42</code>
+     */
+    public static void clearCacheForTag(MemcacheService memcache, String tag) {
+        CacheHandler.clearCacheForTag(tag);
+    }
+
     /**
      * Memoize a closure invocation in memcache.
      * Closure call result are stored in memcache, retaining the closure hashCode and the argument values as key.
      * The results are kept in memcache only up to the 30 seconds request time limit of Google App Engine.
+     * As the closure hashCode differs between instances, prefer naming the memoized closure
+     * with {@link #memoize(MemcacheService, Map, Closure)}.
      *
      * <pre><code>
      * def countEntities = memcache.memoize { String kind -> datastore.prepare( new Query(kind) ).countEntities() }
@@ -233,6 +346,36 @@ public class MemcacheExtensions {
         };
     }
 
+    /**
+     * Memoize a closure invocation in memcache, under a name identifying the closure across instances and deployments.
+     * <p>
+     * The results, null included, are kept in memcache for the given expiration,
+     * and optionally in a per-instance in-memory tier of the given size.
+     * Concurrent invocations with the same arguments on an instance wait for a single computation.
+     * <pre><code>
+     * def countEntities = memcache.memoize(name: 'countEntities', expiration: 10.minutes, localSize: 100) { String kind ->
+     *     datastore.prepare( new Query(kind) ).countEntities()
+     * }
+     * def totalPhotos = countEntities('photos')
+     * println countEntities.counters.hitRatio
+     * </pre></code>
+     *
+     * @param options <code>name</code> (required), <code>expiration</code> in seconds (60 by default)
+     * and <code>localSize</code>, the maximum number of results cached in memory (0 by default)
+     * @param closure the closure to memoize
+     * @return a memoized closure
+     */
+    public static <T> MemoizedClosure<T> memoize(MemcacheService memcache, Map<String, ?> options, Closure<T> closure) {
+        Object name = options.get("name");
+        Object expiration = options.get("expiration");
+        Object localSize = options.get("localSize");
+        return new MemoizedClosure<T>(memcache,
+                name == null ? null : name.toString(),
+                expiration == null ? 60 : ((Number) expiration).intValue(),
+                localSize == null ? 0 : ((Number) localSize).intValue(),
+                closure);
+    }
+
     // Asynchronous memcache service
 
     /**
@@ -253,7 +396,7 @@ public class MemcacheExtensions {
      * @return the value stored under that key
      */
     public static Future<? extends Object> get(AsyncMemcacheService memcache, String key) {
-        return memcache.get((Object)key);
+        return MemcacheValues.decoding(memcache.get((Object)key));
     }
 
     /**
@@ -263,7 +406,7 @@ public class MemcacheExtensions {
      * @return the value stored under that key
      */
     public static Future<? extends Object> get(AsyncMemcacheService memcache, GString key) {
-        return memcache.get(key.toString());
+        return MemcacheValues.decoding(memcache.get(key.toString()));
     }
 
     /**
@@ -273,7 +416,7 @@ public class MemcacheExtensions {
      * @param key the key identifying the object to get from the cache
      */
     public static Future<? extends Object> getAt(AsyncMemcacheService memcache, Object key) {
-        return memcache.get(key);
+        return MemcacheValues.decoding(memcache.get(key));
     }
 
     /**
@@ -285,7 +428,28 @@ public class MemcacheExtensions {
     public static Future<? extends Object> getAt(AsyncMemcacheService memcache, String key) {
         //TODO this method should be removed once we only need a getAt() method taking Object key
         // looks like a bug in current Groovy where the two variants are needed
-        return memcache.get(key);
+        return MemcacheValues.decoding(memcache.get(key));
+    }
+
+    /**
+     * Get several objects from the async cache with a single call, GString keys being coerced to Strings.
+     *
+     * @param keys the keys of the objects
+     * @return a future of the map of the keys found in the cache and their values
+     */
+    public static Future<Map<Object, Object>> getAll(AsyncMemcacheService memcache, List<?> keys) {
+        return MemcacheValues.decodingAll(memcache.getAll(coerceKeys(keys)));
+    }
+
+    /**
+     * Put several objects in the async cache with a single call, GString keys being coerced to Strings.
+     *
+     * @param values the keys and values to put in the cache
+     * @param seconds expiration of the keys in seconds, like <code>10.minutes</code>
+     * @return a future completed once all the values are in the cache
+     */
+    public static Future<Void> putAll(AsyncMemcacheService memcache, Map<?, ?> values, int seconds) {
+        return memcache.putAll(MemcacheValues.encodeAll(coerceKeys(values)), Expiration.byDeltaSeconds(seconds));
     }
 
     /**
@@ -295,7 +459,42 @@ public class MemcacheExtensions {
      * @param value the value to put in the cache
      */
     public static Future<Void> set(AsyncMemcacheService memcache, String key, Object value) {
-        return memcache.put(key, value);
+        return memcache.put(key, MemcacheValues.encode(value));
+    }
+
+    /**
+     * Put an object in the async cache under a String key, encoded like the values put with the other extension methods.
+     *
+     * @param key a String key
+     * @param value the value to put in the cache
+     */
+    public static Future<Void> put(AsyncMemcacheService memcache, String key, Object value) {
+        return memcache.put(key, MemcacheValues.encode(value));
+    }
+
+    /**
+     * Put an object in the async cache under a String key, with an expiration,
+     * encoded like the values put with the other extension methods.
+     *
+     * @param key a String key
+     * @param value the value to put in the cache
+     * @param expiration expiration of the key/value
+     */
+    public static Future<Void> put(AsyncMemcacheService memcache, String key, Object value, Expiration expiration) {
+        return memcache.put(key, MemcacheValues.encode(value), expiration);
+    }
+
+    /**
+     * Put an object in the async cache under a String key, with an expiration and a SetPolicy,
+     * encoded like the values put with the other extension methods.
+     *
+     * @param key a String key
+     * @param value the value to put in the cache
+     * @param expiration expiration of the key/value
+     * @param policy a SetPolicy
+     */
+    public static Future<Boolean> put(AsyncMemcacheService memcache, String key, Object value, Expiration expiration, MemcacheService.SetPolicy policy) {
+        return memcache.put(key, MemcacheValues.encode(value), expiration, policy);
     }
 
     /**
@@ -305,7 +504,7 @@ public class MemcacheExtensions {
      * @param value the value to put in the cache
      */
     public static Future<Void> put(AsyncMemcacheService memcache, GString key, Object value) {
-        return memcache.put(key.toString(), value);
+        return memcache.put(key.toString(), MemcacheValues.encode(value));
     }
 
     /**
@@ -316,7 +515,7 @@ public class MemcacheExtensions {
      * @param expiration expiration of the key/value
      */
     public static Future<Void> put(AsyncMemcacheService memcache, GString key, Object value, Expiration expiration) {
-        return memcache.put(key.toString(), value, expiration);
+        return memcache.put(key.toString(), MemcacheValues.encode(value), expiration);
     }
 
     /**
@@ -328,7 +527,7 @@ public class MemcacheExtensions {
      * @param policy a SetPolicy
      */
     public static Future<Boolean> put(AsyncMemcacheService memcache, GString key, Object value, Expiration expiration, MemcacheService.SetPolicy policy) {
-        return memcache.put(key.toString(), value, expiration, policy);
+        return memcache.put(key.toString(), MemcacheValues.encode(value), expiration, policy);
     }
 
     /**
@@ -341,7 +540,7 @@ public class MemcacheExtensions {
     public static Future<Void> putAt(AsyncMemcacheService memcache, String key, Object value) {
         //TODO this method should be removed once we only need a putAt() method taking Object key
         // looks like a bug in current Groovy where the two variants are needed
-        return memcache.put(key, value);
+        return memcache.put(key, MemcacheValues.encode(value));
     }
 
     /**
@@ -352,6 +551,6 @@ public class MemcacheExtensions {
      * @param value the value to put in the cache
      */
     public static Future<Void> putAt(AsyncMemcacheService memcache, Object key, Object value) {
-        return memcache.put(key, value);
+        return memcache.put(key, MemcacheValues.encode(value));
     }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.routes
+
+import groovy.transform.CompileStatic
+
+/**
+ * Destination of a route, precompiled into literal parts and variable references,
+ * so that the values of the variables are substituted in a single pass.
+ * <p>
+ * A variable reference is the longest route variable name found after an <code>@</code> sign,
+ * so that <code>@id</code> is replaced in <code>/show.groovy?id=@id</code> and <code>/@idx.html</code>.
+ */
+@CompileStatic
+class DestinationTemplate {
+
+    /* Literal parts, there's one more literal part than variable references */
+    private final String[] literals
+
+    /* Position of the referenced variables in the route */
+    private final int[] references
+
+    /* Total length of the literal parts */
+    private final int length
+
+    /**
+     * @param destination the destination of the route
+     * @param names the names of the variables of the route, starting with '@'
+     */
+    DestinationTemplate(String destination, List<String> names) {
+        List<String> parts = []
+        List<Integer> refs = []
+        int start = 0
+        int at = destination.indexOf('@')
+        while (at > -1) {
+            int reference = -1
+            for (int i = 0; i < names.size(); i++) {
+                String name = names[i]
+                if (name.length() > 1 && destination.startsWith(name, at) && (reference == -1 || name.length() > names[reference].length())) {
+                    reference = i
+                }
+            }
+            if (reference == -1) {
+                at = destination.indexOf('@', at + 1)
+            } else {
+                parts << destination.substring(start, at)
+                refs << reference
+                start = at + names[reference].length()
+                at = destination.indexOf('@', start)
+            }
+        }
+        parts << destination.substring(start)
+
+        literals = (String[]) parts.toArray(new String[parts.size()])
+        length = (int) parts.sum { String part -> part.length() }
+        references = new int[refs.size()]
+        for (int i = 0; i < references.length; i++) {
+            references[i] = refs[i]
+        }
+    }
+
+    /**
+     * @param match a matching result for the route
+     * @return the destination with the values of the variables of the match
+     */
+    String apply(RouteMatch match) {
+        if (references.length == 0) {
+            return literals[0]
+        }
+        StringBuilder builder = new StringBuilder(length + 16 * references.length)
+        for (int i = 0; i < references.length; i++) {
+            builder.append(literals[i])
+            match.appendVariable(builder, references[i])
+        }
+        builder.append(literals[references.length]).toString()
+    }
+}
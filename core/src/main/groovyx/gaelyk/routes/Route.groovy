@@ -16,8 +16,9 @@
 package groovyx.gaelyk.routes
 
 import groovy.transform.Canonical
-import groovyx.gaelyk.GaelykBindingEnhancer
+import groovy.transform.CompileStatic
 
+import java.util.concurrent.ConcurrentHashMap
 import java.util.regex.Matcher
 import java.util.regex.Pattern
 
@@ -45,6 +46,27 @@ class Route implements Comparable<Route>{
     /** The time in seconds the resource to stay in memcache */
     int cacheExpiration
 
+    /** The time in seconds an expired cached resource can still be served while it's rendered again in the background */
+    int staleWhileRevalidate
+
+    /** The time in seconds an expired cached resource can still be served when rendering it again fails */
+    int staleIfError
+
+    /** Whether the query parameters are sorted in the cache key, so that their order doesn't matter */
+    boolean sortParams
+
+    /** The query parameters left out of the cache key, a trailing '*' matching any parameter with that prefix */
+    List<String> ignoreParams = []
+
+    /** The request headers whose values are part of the cache key */
+    List<String> vary = []
+
+    /** The tags of the cached pages, which can reference the path variables, like <code>article-@id</code> */
+    List<String> tags = []
+
+    /* The precompiled tags */
+    private List<DestinationTemplate> tagTemplates = []
+
     /** Closure defining a namespace for the scope of the request */
     Closure namespace
 
@@ -57,6 +79,18 @@ class Route implements Comparable<Route>{
     /* Closure validating the variables match the required regex patterns */
     private Closure validator
 
+    /* Delegate of the validator, resolving only the variables the validator uses */
+    private ValidatorContext validatorContext
+
+    /* Matcher of the regex reused by each thread, to avoid creating one for each URI */
+    private final ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>()
+
+    /* The precompiled destination, when the destination is a String */
+    private DestinationTemplate destinationTemplate
+
+    /* The precompiled destinations of the capability aware routing rules */
+    private final Map<String, DestinationTemplate> ruleTemplates = new ConcurrentHashMap<String, DestinationTemplate>()
+
     /** Should a uri matching this route just be ignored? */
     boolean ignore
 
@@ -82,7 +116,12 @@ class Route implements Comparable<Route>{
         this.redirectionType = redirectionType
         this.namespace = namespace
         this.cacheExpiration = cacheExpiration
-        this.validator = validator
+        if (validator) {
+            this.validatorContext = new ValidatorContext()
+            this.validator = (Closure) validator.clone()
+            this.validator.delegate = validatorContext
+            this.validator.resolveStrategy = Closure.DELEGATE_ONLY
+        }
         this.ignore = ignore
         this.email = email
         this.jabber = jabber
@@ -99,6 +138,31 @@ class Route implements Comparable<Route>{
         this.destination = destination instanceof String || ignore == true ?
             destination :
             RoutingRule.buildRoutingRule((Closure) destination)
+
+        if (this.destination instanceof String) {
+            this.destinationTemplate = new DestinationTemplate((String) this.destination, variables)
+        }
+    }
+
+    void setTags(List<String> tags) {
+        this.tags = tags
+        this.tagTemplates = tags.collect { String tag -> new DestinationTemplate(tag, variables) }
+    }
+
+    /**
+     * @param match a matching result for the route
+     * @return the tags of the cached page, with the values of the path variables
+     */
+    @CompileStatic
+    List<String> tagsFor(RouteMatch match) {
+        if (!tagTemplates) {
+            return Collections.<String>emptyList()
+        }
+        List<String> values = new ArrayList<String>(tagTemplates.size())
+        for (DestinationTemplate template in tagTemplates) {
+            values << template.apply(match)
+        }
+        values
     }
 
     /**
@@ -125,80 +189,112 @@ class Route implements Comparable<Route>{
     }
 
     /**
-     * Checks whether a URI matches a route.
+     * Removes the parts of the URI which are not considered when matching a route.
      *
-     * @return a map with a 'matches' boolean key telling whether the route is matched
-     * and a variables key containing a map of the variable key and matched value.
+     * @param uri the URI
+     * @return the URI without the appended <code>;jsessionid=xxx</code> or <code>?x=y</code> parameters
      */
-    def forUri(String uri, HttpServletRequest request) {
+    @CompileStatic
+    static String withoutParameters(String uri) {
+        int end = pathEnd(uri)
+        end == uri.length() ? uri : uri.substring(0, end)
+    }
+
+    @CompileStatic
+    private static int pathEnd(String uri) {
         // disregarding URL parts with appended ;jsessionid=xxx
         int cutoff = uri.indexOf(';')
         if (cutoff > -1) {
-            uri = uri.substring(0, cutoff)
+            return cutoff
+        }
+        // disregarding URL parts with parameters ?x=y
+        cutoff = uri.indexOf('?')
+        cutoff > -1 ? cutoff : uri.length()
+    }
+
+    /**
+     * Checks whether a URI matches a route.
+     * <p>
+     * URIs which don't match the route all get the shared {@link RouteMatch#NO_MATCH} result,
+     * without creating any new object.
+     *
+     * @return a route match telling whether the route is matched,
+     * with the variables map of the variable key and matched value,
+     * the destination and the namespace for the request.
+     */
+    @CompileStatic
+    RouteMatch forUri(String uri, HttpServletRequest request) {
+        int end = pathEnd(uri)
+
+        Matcher matcher = matchers.get()
+        if (matcher == null) {
+            matcher = regex.matcher(uri)
+            matchers.set(matcher)
         } else {
-            // disregarding URL parts with parameters ?x=y
-            cutoff = uri.indexOf('?')
-            if (cutoff > -1) {
-                uri = uri.substring(0, cutoff)
-            }
+            matcher.reset(uri)
         }
+        matcher.region(0, end)
 
-        Matcher matcher = regex.matcher(uri)
-
-        String finalDestination = destination instanceof String || ignore == true ? 
-            destination : destination.finalDestination
-
-        if (matcher.matches()) {
-            def variableMap = variables ?
-                // a map like ['year': '2009', 'month': '11']
-                variables.inject([:]) { map, variable ->
-                    map[variable.substring(1)] = matcher[0][map.size()+1]
-                    return map
-                } : [:] // an empty variables map if no variables were present
-
-            // if a closure validator was defined, check all the variables match the regex pattern
-            if (validator) {
-                def clonedValidator = this.validator.clone()
-
-                // adds the request to the variables available for validation
-                def binding = new Binding()
-                GaelykBindingEnhancer.bind(binding)
-                def validatorDelegate = binding.variables
-                validatorDelegate += variableMap.clone()
-                validatorDelegate.request = request
-                clonedValidator.delegate = validatorDelegate
-                clonedValidator.resolveStrategy = Closure.DELEGATE_ONLY
-
-                boolean validated = false
-                    validated = clonedValidator()
-                if (!validated) {
-                    return [matches: false]
-                }
-            }
+        if (!matcher.matches()) {
+            return RouteMatch.NO_MATCH
+        }
 
-            // replace all the variables
-            def effectiveDestination = variableMap.inject (finalDestination) { String dest, var ->
-                dest.replaceAll('@' + var.key, var.value)
+        int count = Math.min(variables.size(), matcher.groupCount())
+        int[] groups = null
+        if (count) {
+            groups = new int[2 * count]
+            for (int i = 0; i < count; i++) {
+                groups[2 * i] = matcher.start(i + 1)
+                groups[2 * i + 1] = matcher.end(i + 1)
             }
+        }
+        // release the reference to the URI
+        matcher.reset('')
 
-            def result = [matches: true, variables: variableMap, destination: effectiveDestination]
+        RouteMatch result = new RouteMatch(true, uri, (List<String>) variables, groups)
 
-            // if a closure namespace was defined, clone it, and inject the variables if any
-            if (namespace) {
-                def ns = namespace.clone()
-                ns.resolveStrategy = Closure.DELEGATE_ONLY
-                ns.delegate = variableMap
+        // if a closure validator was defined, check all the variables match the regex pattern
+        if (validator && !validate(result, request)) {
+            return RouteMatch.NO_MATCH
+        }
 
-                // add the namespace to the found matching route
-                result.namespace = ns()
-            }
+        // replace all the variables
+        DestinationTemplate template = destinationFor(result)
+        result.destination = template?.apply(result)
 
-            request.setAttribute("originalURI", uri)
+        // if a closure namespace was defined, clone it, and inject the variables if any
+        if (namespace) {
+            Closure ns = (Closure) namespace.clone()
+            ns.resolveStrategy = Closure.DELEGATE_ONLY
+            ns.delegate = result.variables
 
-            return result
-        } else {
-            [matches: false]
+            // add the namespace to the found matching route
+            result.namespace = ns.call()
+        }
+
+        request.setAttribute("originalURI", end == uri.length() ? uri : uri.substring(0, end))
+
+        return result
+    }
+
+    @CompileStatic
+    private boolean validate(RouteMatch result, HttpServletRequest request) {
+        validatorContext.validate(validator, request, result)
+    }
+
+    @CompileStatic
+    private DestinationTemplate destinationFor(RouteMatch result) {
+        if (destinationTemplate != null || ignore || destination == null) {
+            return destinationTemplate
+        }
+        // capability aware destinations depend on the current status of the services
+        String finalDestination = ((RoutingRule) destination).finalDestination
+        DestinationTemplate template = ruleTemplates.get(finalDestination)
+        if (template == null) {
+            template = new DestinationTemplate(finalDestination, (List<String>) variables)
+            ruleTemplates.put(finalDestination, template)
         }
+        template
     }
 
     @Override public int compareTo(Route o) {
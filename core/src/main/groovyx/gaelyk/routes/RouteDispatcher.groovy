@@ -0,0 +1,174 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.routes
+
+import groovy.transform.CompileStatic
+
+import java.util.regex.Pattern
+
+/**
+ * Compiled dispatch table for the routes.
+ * <p>
+ * The table is immutable once compiled: the routes are frozen into arrays,
+ * and reloading the routes means compiling and publishing a new table.
+ * <p>
+ * Routes are grouped by HTTP method, then stored in a tree of the literal path segments
+ * their definition starts with (ie. <code>/blog/archive/@year</code> is stored under
+ * <code>blog</code> &rarr; <code>archive</code>). Looking up a URI walks that tree along the segments
+ * of the URI and only returns the routes which can possibly match it, so that only those
+ * need to be evaluated against their regular expression.
+ * <p>
+ * The candidates are always returned in the order of the route index,
+ * as they would have been evaluated by iterating over the whole routes set.
+ */
+@CompileStatic
+class RouteDispatcher {
+
+    /* Segments only made of those characters are compared literally by the route regex */
+    private static final Pattern LITERAL_SEGMENT = ~/[^*@?()\[\]{}+|^$\\]*/
+
+    /* The dispatched routes, by index order */
+    private final Route[] table
+
+    /* Tree used for the HTTP methods which don't have any dedicated route */
+    private final Node allMethods
+
+    /* Trees containing the routes for a given HTTP method and the routes for all methods */
+    private final Map<String, Node> methods = [:]
+
+    /**
+     * Compiles the dispatch table.
+     *
+     * @param routes the routes to dispatch to, routes with the same index are only kept once
+     */
+    RouteDispatcher(Collection<Route> routes) {
+        SortedSet<Route> sorted = new TreeSet<Route>(routes)
+        table = (Route[]) sorted.toArray(new Route[sorted.size()])
+        List<Route> ordered = Arrays.asList(table)
+
+        allMethods = build(ordered, HttpMethod.ALL)
+        for (HttpMethod method in HttpMethod.values()) {
+            if (method != HttpMethod.ALL) {
+                methods[method.toString()] = build(ordered, method)
+            }
+        }
+    }
+
+    /**
+     * @return the dispatched routes, by index order
+     */
+    List<Route> getRoutes() {
+        Collections.unmodifiableList(Arrays.asList(table))
+    }
+
+    /**
+     * Finds the routes which may match the given URI.
+     *
+     * @param method the HTTP method of the request
+     * @param uri the include-aware URI of the request
+     * @return the candidate routes in the order they should be evaluated,
+     * the returned array is shared and must not be modified
+     */
+    Route[] candidates(String method, String uri) {
+        Node node = methods.get(method) ?: allMethods
+        String path = Route.withoutParameters(uri)
+        if (!path.startsWith('/')) {
+            return node.candidates
+        }
+        int start = 1
+        while (true) {
+            int end = path.indexOf('/', start)
+            Node child = node.children.get(end == -1 ? path.substring(start) : path.substring(start, end))
+            if (child == null) {
+                break
+            }
+            node = child
+            if (end == -1) {
+                break
+            }
+            start = end + 1
+        }
+        node.candidates
+    }
+
+    /**
+     * Extracts the leading path segments of a route which are compared literally.
+     * Routes not starting with a slash don't have any literal segment.
+     *
+     * @param route the route pattern
+     * @return the list of literal leading segments
+     */
+    static List<String> literalSegments(String route) {
+        List<String> literals = []
+        if (!route?.startsWith('/')) {
+            return literals
+        }
+        for (String segment in route.substring(1).split('/', -1)) {
+            if (!LITERAL_SEGMENT.matcher(segment).matches()) {
+                break
+            }
+            literals << segment
+        }
+        literals
+    }
+
+    private static Node build(List<Route> ordered, HttpMethod method) {
+        Node root = new Node()
+        Map<Route, Integer> positions = new IdentityHashMap<Route, Integer>()
+        for (Route route in ordered) {
+            if (route.method != HttpMethod.ALL && route.method != method) {
+                continue
+            }
+            positions.put(route, positions.size())
+            Node node = root
+            for (String segment in literalSegments(route.route)) {
+                Node child = node.children.get(segment)
+                if (child == null) {
+                    child = new Node()
+                    node.children.put(segment, child)
+                }
+                node = child
+            }
+            node.own << route
+        }
+        root.compile(Collections.<Route>emptyList(), positions)
+        root
+    }
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<String, Node>()
+        final List<Route> own = []
+
+        /* Routes stored in this node and in all its ancestors, by index order */
+        Route[] candidates
+
+        void compile(List<Route> inherited, Map<Route, Integer> positions) {
+            List<Route> merged = new ArrayList<Route>(inherited.size() + own.size())
+            int i = 0, j = 0
+            while (i < inherited.size() || j < own.size()) {
+                if (j == own.size() || i < inherited.size() && positions.get(inherited[i]) < positions.get(own[j])) {
+                    merged << inherited[i++]
+                } else {
+                    merged << own[j++]
+                }
+            }
+            candidates = (Route[]) merged.toArray(new Route[merged.size()])
+            for (Node child in children.values()) {
+                child.compile(merged, positions)
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.routes
+
+import groovy.transform.CompileStatic
+
+/**
+ * Result of matching a URI against a {@link Route}.
+ * <p>
+ * A single shared instance, {@link #NO_MATCH}, represents all the URIs which don't match a route.
+ * For matching URIs, the values of the path variables are only kept as offsets in the URI
+ * and the variables map is only created when it is requested.
+ * <p>
+ * Like the map returned by previous versions, the match is also a map of its <code>matches</code>,
+ * <code>variables</code>, <code>destination</code> and <code>namespace</code>,
+ * in which other entries can be put, except in the shared {@link #NO_MATCH} instance.
+ */
+@CompileStatic
+class RouteMatch extends AbstractMap<String, Object> {
+
+    /** Result returned for all the URIs not matching a route */
+    static final RouteMatch NO_MATCH = new RouteMatch(false, null, null, null)
+
+    /** Whether the URI matches the route */
+    final boolean matches
+
+    /** The destination with all the variables replaced by their values */
+    String destination
+
+    /** The namespace computed by the namespace closure of the route, if any */
+    def namespace
+
+    /* The matched URI */
+    private final String uri
+
+    /* Names of the variables, starting with '@' */
+    private final List<String> names
+
+    /* Start and end offsets in the URI of the value of each variable */
+    private final int[] groups
+
+    private Map<String, String> variables
+
+    /* Other entries put in the match, created on first use */
+    private Map<String, Object> entries
+
+    RouteMatch(boolean matches, String uri, List<String> names, int[] groups) {
+        this.matches = matches
+        this.uri = uri
+        this.names = names
+        this.groups = groups
+    }
+
+    /**
+     * @return a map like <code>['year': '2009', 'month': '11']</code> of the variables of the route
+     */
+    Map<String, String> getVariables() {
+        if (variables == null) {
+            // the map can be changed by the callers, like the variables map of previous versions
+            Map<String, String> values = new LinkedHashMap<String, String>()
+            for (int i = 0; groups != null && i < groups.length.intdiv(2); i++) {
+                values.put(names[i].substring(1), uri.substring(groups[2 * i], groups[2 * i + 1]))
+            }
+            variables = values
+        }
+        variables
+    }
+
+    @Override
+    Object get(Object key) {
+        if (key == 'matches') {
+            return matches
+        } else if (key == 'variables') {
+            return matches ? getVariables() : null
+        } else if (key == 'destination') {
+            return destination
+        } else if (key == 'namespace') {
+            return namespace
+        }
+        entries?.get(key)
+    }
+
+    @Override
+    boolean containsKey(Object key) {
+        key == 'matches' || (matches && (key == 'variables' || key == 'destination')) ||
+                (key == 'namespace' && namespace != null) || entries?.containsKey(key)
+    }
+
+    @Override
+    Object put(String key, Object value) {
+        if (this.is(NO_MATCH)) {
+            throw new UnsupportedOperationException("The result shared by the URIs not matching a route can't be changed")
+        }
+        Object previous = get(key)
+        if (key == 'matches' || key == 'variables') {
+            throw new UnsupportedOperationException("The $key entry of a route match can't be replaced")
+        } else if (key == 'destination') {
+            destination = value?.toString()
+        } else if (key == 'namespace') {
+            namespace = value
+        } else {
+            if (entries == null) {
+                entries = new LinkedHashMap<String, Object>()
+            }
+            entries.put(key, value)
+        }
+        previous
+    }
+
+    @Override
+    Object remove(Object key) {
+        entries?.remove(key)
+    }
+
+    /**
+     * @return a snapshot of the entries of the match
+     */
+    @Override
+    Set<Map.Entry<String, Object>> entrySet() {
+        Map<String, Object> all = new LinkedHashMap<String, Object>()
+        all.put('matches', matches)
+        if (matches) {
+            all.put('variables', getVariables())
+            all.put('destination', destination)
+        }
+        if (namespace != null) {
+            all.put('namespace', namespace)
+        }
+        if (entries) {
+            all.putAll(entries)
+        }
+        Collections.unmodifiableSet(all.entrySet())
+    }
+
+    /**
+     * Appends the value of a variable to a string builder, without creating an intermediate string.
+     *
+     * @param builder the builder to append to
+     * @param variable the position of the variable in the route
+     */
+    void appendVariable(StringBuilder builder, int variable) {
+        builder.append(uri, groups[2 * variable], groups[2 * variable + 1])
+    }
+}
@@ -80,7 +80,11 @@ abstract class RoutesBaseScript extends Script {
      *
      * @param m a map containing the forward or redirect location,
      * as well as potential validation rules for the variables appearing in the route,
-     * a definition of a caching duration, and the ability to ignore certain paths
+     * a definition of a caching duration, with the durations an expired cached page can still be served
+     * while it's rendered again (<code>staleWhileRevalidate</code>) or when rendering it fails (<code>staleIfError</code>),
+     * how the cache key is built from the query parameters (<code>sortParams</code>, <code>ignoreParams</code>)
+     * and the request headers (<code>vary</code>), the tags invalidating the cached pages together (<code>tags</code>),
+     * and the ability to ignore certain paths
      * like GAE's /_ah/* special URLs.
      */
     protected handle(Map m, String route, HttpMethod method) {
@@ -95,11 +99,21 @@ abstract class RoutesBaseScript extends Script {
         if(destination instanceof String){
             int counter = 0
             for(Entry<String, String> e in OptionalRoutesHelper.generateRoutes(route, destination)){
-                routes << new Route(e.key, e.value, method, redirectionType, validator, ns, cacheExpiration, ignore, false, false, m.containsKey('index') ? (Integer.valueOf(m.index) + counter) : (firstRouteIndex + routes.size()))
+                routes << withCacheOptions(m, new Route(e.key, e.value, method, redirectionType, validator, ns, cacheExpiration, ignore, false, false, m.containsKey('index') ? (Integer.valueOf(m.index) + counter) : (firstRouteIndex + routes.size())))
                 counter++
             }
         } else {
-                routes << new Route(route, destination, method, redirectionType, validator, ns, cacheExpiration, ignore, false, false, m.containsKey('index') ? Integer.valueOf(m.index) : (firstRouteIndex + routes.size()))
+                routes << withCacheOptions(m, new Route(route, destination, method, redirectionType, validator, ns, cacheExpiration, ignore, false, false, m.containsKey('index') ? Integer.valueOf(m.index) : (firstRouteIndex + routes.size())))
         }
     }
-}
\ No newline at end of file
+
+    private Route withCacheOptions(Map m, Route r) {
+        r.staleWhileRevalidate = m.staleWhileRevalidate ?: 0
+        r.staleIfError = m.staleIfError ?: 0
+        r.sortParams = m.sortParams ?: false
+        r.ignoreParams = (m.ignoreParams ?: []) as List<String>
+        r.vary = (m.vary ?: []) as List<String>
+        r.tags = (m.tags ?: []) as List<String>
+        r
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.routes
+
+import groovy.transform.CompileStatic
+import groovyx.gaelyk.logging.GroovyLogger
+
+import com.google.apphosting.api.ApiProxy
+
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.FileSystems
+import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchEvent
+import java.nio.file.WatchKey
+import java.nio.file.WatchService
+
+/**
+ * Background watcher of the routes definition file, used in local development mode.
+ * <p>
+ * The watcher thread calls the reload closure each time the file is created, modified or deleted,
+ * so that the routes are recompiled off the request path.
+ * As the routes script may use the GAE services, the watcher thread runs within the API environment
+ * of the thread starting the watcher.
+ */
+@CompileStatic
+class RoutesFileWatcher {
+
+    private final Path file
+    private final Closure reload
+    private final GroovyLogger log
+    private WatchService watchService
+    private Thread thread
+    private ApiProxy.Environment environment
+
+    /**
+     * @param file the routes definition file
+     * @param reload the closure called when the file has changed
+     * @param log the logger of the routes filter
+     */
+    RoutesFileWatcher(File file, Closure reload, GroovyLogger log) {
+        this.file = file.absoluteFile.toPath()
+        this.reload = reload
+        this.log = log
+    }
+
+    /**
+     * Starts watching the routes file.
+     *
+     * @return false if the file cannot be watched in the current environment
+     */
+    synchronized boolean start() {
+        try {
+            watchService = FileSystems.default.newWatchService()
+            file.parent.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE)
+            environment = ApiProxy.currentEnvironment
+            thread = new Thread(this.&watch, 'gaelyk-routes-watcher')
+            thread.daemon = true
+            thread.start()
+            return true
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            log.warning "Cannot watch the routes file $file: $e.message"
+            stop()
+            return false
+        }
+    }
+
+    /**
+     * Stops watching the routes file.
+     */
+    synchronized void stop() {
+        try {
+            watchService?.close()
+        } catch (IOException ignored) {
+            // nothing to close anymore
+        }
+        thread?.interrupt()
+        watchService = null
+        thread = null
+    }
+
+    private void watch() {
+        WatchService service = watchService
+        if (environment != null) {
+            ApiProxy.environmentForCurrentThread = environment
+        }
+        try {
+            while (true) {
+                WatchKey key = service.take()
+                boolean changed = false
+                for (WatchEvent<?> event in key.pollEvents()) {
+                    if (event.context() instanceof Path && file.fileName == event.context()) {
+                        changed = true
+                    }
+                }
+                key.reset()
+                if (changed) {
+                    try {
+                        reload.call()
+                    } catch (Exception e) {
+                        log.warning "Cannot reload the routes file $file: $e.message"
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            // the filter has been destroyed
+        }
+    }
+}
@@ -21,11 +21,10 @@ import groovyx.gaelyk.GaelykBindingEnhancer
 import groovyx.gaelyk.GaelykServlet;
 import groovyx.gaelyk.GaelykTemplateServlet;
 import groovyx.gaelyk.cache.CacheHandler
+import groovyx.gaelyk.cache.LocalCache
 import groovyx.gaelyk.logging.GroovyLogger
 import groovyx.gaelyk.plugins.PluginsHandler
 
-import java.util.concurrent.ConcurrentSkipListSet
-
 import javax.servlet.Filter
 import javax.servlet.FilterChain
 import javax.servlet.FilterConfig
@@ -37,6 +36,7 @@ import javax.servlet.http.HttpServletResponse
 import org.codehaus.groovy.control.CompilerConfiguration
 
 import com.google.appengine.api.NamespaceManager
+import com.google.appengine.api.users.UserServiceFactory
 import com.google.appengine.api.utils.SystemProperty
 
 /**
@@ -47,8 +47,23 @@ import com.google.appengine.api.utils.SystemProperty
  * It is possible to customize the location of the routes definition file by using the
  * <code>routes.location</code> init parameter in the declaration of the filter in <code>web.xml</code>.
  * <p>
- * In development mode, routes will be reloaded automatically on each request, but when the application
- * is deployed on the Google cloud, all the routes will be set in stone.
+ * The pages cached by the routes can also be kept in the memory of the instance, in front of Memcache,
+ * by setting the maximum size in bytes of this in-memory cache with the <code>cache.local.size</code> init parameter.
+ * When a cached page expires, a single request per instance renders it again,
+ * and a single request for all the instances when the <code>cache.lease</code> init parameter is <code>true</code>.
+ * <p>
+ * When deployed, or when the <code>preferPrecompiled</code> init parameter is <code>true</code>,
+ * the filter loads the routes from the precompiled routes script if it is on the classpath,
+ * instead of compiling the routes file. The class is named after the routes file (<code>routes</code>
+ * for <code>WEB-INF/routes.groovy</code>) unless the <code>routes.class</code> init parameter is set.
+ * <p>
+ * In development mode, routes will be reloaded automatically in the background when the routes file changes,
+ * but when the application is deployed on the Google cloud, all the routes will be set in stone.
+ * <p>
+ * The loaded routes are kept in an immutable table which is replaced as a whole when the routes are reloaded.
+ * When the <code>routes.reload</code> init parameter is set to a URI, administrators of the application
+ * can ask for evaluating the routes file again by sending a POST request to that URI,
+ * for example to take into account routes enabled by feature flags.
  *
  * @author Guillaume Laforge
  */
@@ -60,9 +75,24 @@ class RoutesFilter implements Filter {
      * Location of the routes file definition
      */
     private String routesFileLocation
-    private long lastRoutesFileModification = 0
-    private SortedSet<Route> routes = new TreeSet<Route>()
-    private SortedSet<Route> routesFromRoutesFile = new TreeSet<Route>()
+    private volatile long lastRoutesFileModification = 0
+    private List<Route> routesFromRoutesFile = []
+    /* Compiled routes table, replaced as a whole each time the routes are reloaded */
+    private volatile RouteDispatcher dispatcher = new RouteDispatcher([])
+    private RoutesFileWatcher watcher
+    /* Whether the routes file must be checked on each request, when it cannot be watched */
+    private boolean checkRoutesFile = false
+    /* URI on which administrators can ask for reloading the routes, if any */
+    private String reloadUri
+    /* Precompiled routes script, used instead of the routes file when available */
+    private Class<? extends RoutesBaseScript> precompiledRoutes
+    /**
+     * Time spent loading the routes when the filter was initialized, in milliseconds,
+     * from the precompiled class or by compiling the routes file.
+     * The time saved by the precompiled class is the difference with the time logged without it,
+     * as measuring it directly would require the compilation it saves.
+     */
+    long routesLoadingTime
     private FilterConfig filterConfig
     private GroovyLogger log
 
@@ -70,67 +100,140 @@ class RoutesFilter implements Filter {
     void init(FilterConfig filterConfig) {
         this.filterConfig = filterConfig
         this.routesFileLocation = filterConfig.getInitParameter("routes.location") ?: "WEB-INF/routes.groovy"
+        this.reloadUri = filterConfig.getInitParameter("routes.reload")
         this.log = new GroovyLogger('gaelyk.routesfilter')
-        if (SystemProperty.environment.value() == SystemProperty.Environment.Value.Development) {
-            routes = new ConcurrentSkipListSet<Route>()
-            routesFromRoutesFile =  new ConcurrentSkipListSet<Route>()
+
+        def localCacheSize = filterConfig.getInitParameter("cache.local.size")
+        if (localCacheSize?.isLong()) {
+            CacheHandler.localCache = new LocalCache(localCacheSize.toLong())
+            log.config "Caching pages in memory up to $localCacheSize bytes"
         }
+        CacheHandler.memcacheLeases = filterConfig.getInitParameter("cache.lease") == 'true'
+
+        boolean preferPrecompiled = !GaelykBindingEnhancer.localMode || filterConfig.getInitParameter('preferPrecompiled') == 'true'
+        if (preferPrecompiled) {
+            precompiledRoutes = findPrecompiledRoutes(filterConfig.getInitParameter("routes.class") ?: getPrecompiledClassName(routesFileLocation))
+        }
+
+        long start = System.nanoTime()
         loadRoutes()
+        routesLoadingTime = (System.nanoTime() - start).intdiv(1000000L).longValue()
+        if (precompiledRoutes) {
+            log.info "Routes loaded in $routesLoadingTime ms from the precompiled class ${precompiledRoutes.name} instead of compiling $routesFileLocation"
+        } else {
+            log.info "Routes compiled and loaded in $routesLoadingTime ms from $routesFileLocation"
+        }
+
+        if (!precompiledRoutes && SystemProperty.environment.value() == SystemProperty.Environment.Value.Development) {
+            watcher = new RoutesFileWatcher(new File(routesFileLocation), { loadRoutes(true) }, log)
+            checkRoutesFile = !watcher.start()
+        }
+    }
+
+    /**
+     * @return the currently loaded routes, by order of evaluation
+     */
+    @CompileStatic
+    List<Route> getRoutes() {
+        dispatcher.routes
+    }
+
+    /**
+     * Evaluates the routes file again and publishes the new routes,
+     * for example when routes depend on feature flags which have changed.
+     */
+    @CompileStatic
+    void reloadRoutes() {
+        loadRoutes(true)
     }
 
     /**
-     * Load the routes configuration
+     * Load the routes configuration.
+     * <p>
+     * The new routes are compiled aside, then published at once,
+     * so that requests being served keep on using the previous routes meanwhile.
+     *
+     * @param force whether the routes file should be evaluated again even if it has not been modified
      */
-    synchronized void loadRoutes() {
+    synchronized void loadRoutes(boolean force = false) {
         log.config "Loading routes configuration"
-        routes.clear()
+        SortedSet<Route> routes = new TreeSet<Route>()
         def routesFile = new File(this.routesFileLocation)
 
-        if (routesFile.exists()) {
+        if (precompiledRoutes) {
+            // the precompiled script saves the compilation of the routes file
+            for(Route r in evaluateRoutes(precompiledRoutes.newInstance())){
+                log.config "Adding route $r from precompiled routes"
+                routes.add r
+            }
+        } else if (routesFile.exists()) {
             def lastModified = routesFile.lastModified()
 
             // if the file has changed since the last check, reload the routes
-            if (lastModified > lastRoutesFileModification) {
+            if (force || lastModified > lastRoutesFileModification) {
                 def config = new CompilerConfiguration()
                 config.scriptBaseClass = RoutesBaseScript.class.name
 
-                // define a binding for the routes definition,
-                // and inject the Google services
-                def binding = new Binding()
-                GaelykBindingEnhancer.bind(binding)
-
-                // adds three nouns for the XMPP support
-                binding.setVariable('chat',         'chat')
-                binding.setVariable('presence',     'presence')
-                binding.setVariable('subscription', 'subscription')
-
                 // evaluate the route definitions
-                RoutesBaseScript script = (RoutesBaseScript) new GroovyShell(binding, config).parse(routesFile)
-
-                script.run()
-
-                routesFromRoutesFile.clear()
-                List<Route> scriptRoutes = script.routes
-                for(Route r in scriptRoutes){
-                    log.config "Adding route $r from routes file"
-                    routes.add r
-                    routesFromRoutesFile.add r
-                }
+                routesFromRoutesFile = evaluateRoutes((RoutesBaseScript) new GroovyShell(config).parse(routesFile))
 
                 // update the last modified flag
                 lastRoutesFileModification = lastModified
-            } else {
-                for(Route r in routesFromRoutesFile){
-                    log.config "Adding route $r from routes file"
-                    routes.add r
-                }
             }
+            for(Route r in routesFromRoutesFile){
+                log.config "Adding route $r from routes file"
+                routes.add r
+            }
+        } else {
+            routesFromRoutesFile = []
+            lastRoutesFileModification = 0
         }
         // add the routes defined by the plugins
         for(Route r in PluginsHandler.instance.routes){
             log.config "Adding route $r from plugins"
             routes.add r            
         }
+        // compile the dispatch table used for matching the requests and publish it
+        dispatcher = new RouteDispatcher(routes)
+    }
+
+    private List<Route> evaluateRoutes(RoutesBaseScript script) {
+        // define a binding for the routes definition,
+        // and inject the Google services
+        def binding = new Binding()
+        GaelykBindingEnhancer.bind(binding)
+
+        // adds three nouns for the XMPP support
+        binding.setVariable('chat',         'chat')
+        binding.setVariable('presence',     'presence')
+        binding.setVariable('subscription', 'subscription')
+
+        script.binding = binding
+        script.run()
+
+        new ArrayList<Route>(script.routes)
+    }
+
+    private Class<? extends RoutesBaseScript> findPrecompiledRoutes(String className) {
+        try {
+            Class<?> routesClass = Class.forName(className)
+            if (RoutesBaseScript.isAssignableFrom(routesClass)) {
+                return (Class<? extends RoutesBaseScript>) routesClass
+            }
+            log.warning "Class $className is not a precompiled routes script"
+        } catch (ClassNotFoundException e) {
+            log.config "No precompiled routes class $className found"
+        }
+        return null
+    }
+
+    /**
+     * @return name of the class of the precompiled routes file
+     */
+    @CompileStatic
+    static String getPrecompiledClassName(String routesFileLocation) {
+        String name = new File(routesFileLocation).name
+        name.endsWith('.groovy') ? name[0..-8] : name
     }
 
     /**
@@ -138,7 +241,6 @@ class RoutesFilter implements Filter {
      * Otherwise, the normal filter chain and routing applies.
      */
     void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) {
-        // reload the routes in local dev mode in case the routes definition has changed since the last request
         try {
             doFilterInternal(servletRequest, servletResponse, filterChain)            
         } catch (Throwable t) {
@@ -147,8 +249,9 @@ class RoutesFilter implements Filter {
     }
 
     private doFilterInternal(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain) {
-        if (SystemProperty.environment.value() == SystemProperty.Environment.Value.Development) {
-            loadRoutes()
+        // fallback when the routes file cannot be watched in local dev mode
+        if (checkRoutesFile && new File(routesFileLocation).lastModified() != lastRoutesFileModification) {
+            loadRoutes(true)
         }
 
         HttpServletRequest request = (HttpServletRequest)servletRequest
@@ -158,36 +261,39 @@ class RoutesFilter implements Filter {
             request.setAttribute(ORIGINAL_URI, getIncludeAwareUri(request))
         }
 
-        def method = request.method
+        def uri = getIncludeAwareUri(request)
+
+        if (reloadUri && uri == reloadUri) {
+            handleReloadRequest(request, response)
+            return
+        }
 
         boolean foundRoute = false
-        for (Route route in routes) {
-            // first, check that the HTTP methods are compatible
-            if (route.method == HttpMethod.ALL || route.method.toString() == method) {
-                def result = route.forUri(getIncludeAwareUri(request), request)
-                if (result.matches) {
-                    if (route.ignore) {
-                        // skip out completely
-                        break
-                    }
-                    if (route.redirectionType == RedirectionType.FORWARD) {
-                        if (route.namespace) {
-                            NamespaceManager.of(result.namespace) {
-                                CacheHandler.serve(route, request, response)
-                            }
-                        } else {
-                            CacheHandler.serve(route, request, response)
+        // only the routes compatible with the HTTP method and the URI prefix are evaluated
+        for (Route route in dispatcher.candidates(request.method, uri)) {
+            def result = route.forUri(uri, request)
+            if (result.matches) {
+                if (route.ignore) {
+                    // skip out completely
+                    break
+                }
+                if (route.redirectionType == RedirectionType.FORWARD) {
+                    if (route.namespace) {
+                        NamespaceManager.of(result.namespace) {
+                            CacheHandler.serve(route, result, request, response)
                         }
-                    } else if (route.redirectionType == RedirectionType.REDIRECT301) {
-                        response.setStatus(301)
-                        response.setHeader("Location", result.destination)
-                        response.setHeader("Connection", "close")
                     } else {
-                        response.sendRedirect result.destination
+                        CacheHandler.serve(route, result, request, response)
                     }
-                    foundRoute = true
-                    break
+                } else if (route.redirectionType == RedirectionType.REDIRECT301) {
+                    response.setStatus(301)
+                    response.setHeader("Location", result.destination)
+                    response.setHeader("Connection", "close")
+                } else {
+                    response.sendRedirect result.destination
                 }
+                foundRoute = true
+                break
             }
         }
 
@@ -196,8 +302,28 @@ class RoutesFilter implements Filter {
         }
     }
 
+    /**
+     * Reloads the routes if the request is a POST request made by an administrator of the application.
+     */
     @CompileStatic
-    void destroy() { }
+    private void handleReloadRequest(HttpServletRequest request, HttpServletResponse response) {
+        def users = UserServiceFactory.userService
+        if (!users.userLoggedIn || !users.userAdmin) {
+            response.sendError HttpServletResponse.SC_FORBIDDEN
+        } else if (request.method != 'POST') {
+            response.sendError HttpServletResponse.SC_METHOD_NOT_ALLOWED
+        } else {
+            log.info "Reloading routes on request of ${users.currentUser}"
+            reloadRoutes()
+            response.contentType = 'text/plain'
+            response.writer.write("${dispatcher.routes.size()} routes loaded".toString())
+        }
+    }
+
+    @CompileStatic
+    void destroy() {
+        watcher?.stop()
+    }
 
     /**
     * Returns the include-aware uri.
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.routes
+
+import groovy.transform.CompileStatic
+import groovyx.gaelyk.GaelykBindingEnhancer
+
+import javax.servlet.http.HttpServletRequest
+
+/**
+ * Delegate of a route validator closure, set once when the route is created.
+ * <p>
+ * Instead of building a whole binding with all the GAE services for each validation,
+ * the variables are resolved only when the validator references them, in that order:
+ * the <code>request</code>, the path variables of the route,
+ * and the variables bound by {@link GaelykBindingEnhancer}.
+ * The state of the validation is kept per thread, so a single validator closure
+ * can be shared by all the requests.
+ */
+@CompileStatic
+class ValidatorContext extends GroovyObjectSupport {
+
+    private final ThreadLocal<Frame> frames = new ThreadLocal<Frame>()
+
+    /**
+     * Runs the validator for a request matching the route.
+     *
+     * @param validator the validator closure, delegating to this context
+     * @param request the request
+     * @param match the result of the match of the route
+     * @return true if the validator accepts the request
+     */
+    boolean validate(Closure validator, HttpServletRequest request, RouteMatch match) {
+        Frame previous = frames.get()
+        frames.set(new Frame(request: request, match: match))
+        try {
+            return validator.call() as boolean
+        } finally {
+            if (previous == null) {
+                frames.remove()
+            } else {
+                frames.set(previous)
+            }
+        }
+    }
+
+    @Override
+    Object getProperty(String name) {
+        Frame frame = frames.get()
+        if (frame == null) {
+            return null
+        }
+        if (frame.values == null) {
+            frame.values = new HashMap<String, Object>()
+        } else if (frame.values.containsKey(name)) {
+            return frame.values.get(name)
+        }
+        Object value
+        if (name == 'request') {
+            value = frame.request
+        } else if (frame.match.variables.containsKey(name)) {
+            value = frame.match.variables.get(name)
+        } else {
+            value = GaelykBindingEnhancer.getVariable(name, frame.request)
+        }
+        frame.values.put(name, value)
+        value
+    }
+
+    @Override
+    void setProperty(String name, Object value) {
+        Frame frame = frames.get()
+        if (frame != null) {
+            if (frame.values == null) {
+                frame.values = new HashMap<String, Object>()
+            }
+            frame.values.put(name, value)
+        }
+    }
+
+    private static class Frame {
+        HttpServletRequest request
+        RouteMatch match
+        Map<String, Object> values
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.templates
+
+import groovy.text.Template
+import groovy.transform.CompileStatic
+
+import org.codehaus.groovy.runtime.InvokerHelper
+
+/**
+ * Template compiled by the {@link StreamingTemplateEngine}.
+ * <p>
+ * When written to a {@link TemplateOutput}, the template is rendered straight to it,
+ * otherwise it's rendered through an output buffering the given writer.
+ */
+@CompileStatic
+class StreamingTemplate implements Template {
+
+    private final Class scriptClass
+
+    /**
+     * @param scriptClass the class of the script generated for the template
+     */
+    StreamingTemplate(Class scriptClass) {
+        this.scriptClass = scriptClass
+    }
+
+    @Override
+    Writable make() {
+        make(null)
+    }
+
+    @Override
+    Writable make(Map binding) {
+        new StreamingWritable(binding)
+    }
+
+    private class StreamingWritable implements Writable {
+        private final Map variables
+
+        StreamingWritable(Map variables) {
+            this.variables = variables
+        }
+
+        @Override
+        Writer writeTo(Writer out) throws IOException {
+            TemplateOutput output = out instanceof TemplateOutput ? (TemplateOutput) out : new TemplateOutput(out)
+            Binding binding = variables == null ? new Binding() : new Binding(variables)
+            StreamingTemplateScript script = (StreamingTemplateScript) InvokerHelper.createScript(scriptClass, binding)
+            script.$setOutput(output)
+            script.setProperty('out', new PrintWriter(output))
+            script.run()
+            output.flush()
+            out
+        }
+
+        @Override
+        String toString() {
+            StringWriter writer = new StringWriter()
+            writeTo(writer)
+            writer.toString()
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.templates
+
+import groovy.text.Template
+import groovy.text.TemplateEngine
+import groovy.transform.CompileStatic
+
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.codehaus.groovy.control.CompilationFailedException
+import org.codehaus.groovy.control.CompilerConfiguration
+
+/**
+ * Template engine compiling the <code>.gtpl</code> templates to scripts writing to a {@link TemplateOutput}.
+ * <p>
+ * The templates have the same syntax as with the <code>SimpleTemplateEngine</code>:
+ * <code>&lt;% %&gt;</code> code blocks, <code>&lt;%= %&gt;</code> expressions,
+ * and <code>${}</code> or <code>$name</code> GString expressions.
+ * But instead of printing GStrings made of the static text and of the expressions,
+ * the generated scripts write each expression on its own,
+ * and the static text segments, kept as constants of the script class along with their UTF-8 bytes.
+ */
+@CompileStatic
+class StreamingTemplateEngine extends TemplateEngine {
+
+    /* Maximum length of a string literal in the generated scripts, below the constant pool limit */
+    private static final int MAX_LITERAL_LENGTH = 16384
+
+    private static final AtomicInteger counter = new AtomicInteger()
+
+    private final GroovyClassLoader loader
+
+    StreamingTemplateEngine() {
+        this(StreamingTemplateEngine.classLoader)
+    }
+
+    /**
+     * @param parent the class loader of the classes used by the templates
+     */
+    StreamingTemplateEngine(ClassLoader parent) {
+        CompilerConfiguration configuration = new CompilerConfiguration()
+        configuration.scriptBaseClass = StreamingTemplateScript.name
+        loader = new GroovyClassLoader(parent, configuration)
+    }
+
+    @Override
+    Template createTemplate(Reader reader) throws CompilationFailedException, ClassNotFoundException, IOException {
+        String source = toScript(reader.text)
+        Class scriptClass = loader.parseClass(source, "StreamingTemplateScript${counter.incrementAndGet()}.groovy")
+        new StreamingTemplate(scriptClass)
+    }
+
+    /**
+     * Generates the source of the script of a template.
+     * <p>
+     * The lines of the script match the lines of the template, for the errors to point at the right line,
+     * the static text segments being declared on the last line.
+     *
+     * @param template the source of the template
+     * @return the source of a script extending {@link StreamingTemplateScript}
+     */
+    static String toScript(String template) {
+        String input = template.replace('\r\n', '\n').replace('\r', '\n')
+        int length = input.length()
+        StringBuilder script = new StringBuilder(length + 256)
+        script.append('final ').append(TemplateOutput.name).append(' $out = get$out(); final ')
+              .append(TextSegment.name).append('[] $s = $init($segments); ')
+        List<String> segments = []
+        StringBuilder text = new StringBuilder()
+        int i = 0
+        while (i < length) {
+            char c = input.charAt(i)
+            char next = i + 1 < length ? input.charAt(i + 1) : (char) 0
+            if (c == '<' as char && next == '%' as char) {
+                boolean expression = i + 2 < length && input.charAt(i + 2) == '=' as char
+                int start = i + (expression ? 3 : 2)
+                int end = input.indexOf('%>', start)
+                if (end < 0) {
+                    throw new GroovyRuntimeException("Unterminated ${expression ? '<%=' : '<%'} block in template at offset $i")
+                }
+                appendText(script, segments, text)
+                String code = input.substring(start, end)
+                if (expression) {
+                    script.append('$out.printValue(').append(code).append(');')
+                } else {
+                    script.append(code).append(';')
+                    if (code.substring(code.lastIndexOf('\n') + 1).contains('//')) {
+                        script.append('\n')
+                    }
+                }
+                i = end + 2
+            } else if (c == '$' as char && next == '{' as char) {
+                int end = closingBrace(input, i + 2)
+                if (end < 0) {
+                    throw new GroovyRuntimeException("Unterminated \${ expression in template at offset $i")
+                }
+                appendText(script, segments, text)
+                script.append('$out.writeValue(').append(input, i + 2, end).append(');')
+                i = end + 1
+            } else if (c == '$' as char && isIdentifierStart(next)) {
+                int end = identifierEnd(input, i + 1)
+                while (end + 1 < length && input.charAt(end) == '.' as char && isIdentifierStart(input.charAt(end + 1))) {
+                    end = identifierEnd(input, end + 1)
+                }
+                appendText(script, segments, text)
+                script.append('$out.writeValue(').append(input, i + 1, end).append(');')
+                i = end
+            } else if (c == '\\' as char && i + 1 < length) {
+                i = unescape(input, i, text)
+            } else {
+                text.append(c)
+                i++
+            }
+        }
+        appendText(script, segments, text)
+
+        script.append('\n@groovy.transform.Field static final ').append(TextSegment.name).append('[] $segments = ')
+              .append(TextSegment.name).append('.all(')
+        segments.eachWithIndex { String segment, int index ->
+            if (index > 0) {
+                script.append(', ')
+            }
+            appendLiteral(script, segment)
+        }
+        script.append(')\n').toString()
+    }
+
+    /* Writes the pending static text, and as many line breaks as it contains for the lines to match */
+    private static void appendText(StringBuilder script, List<String> segments, StringBuilder text) {
+        if (text.length() == 0) {
+            return
+        }
+        String segment = text.toString()
+        script.append('$out.writeText($s[').append(segments.size()).append(']);')
+        for (int i = 0; i < segment.length(); i++) {
+            if (segment.charAt(i) == '\n' as char) {
+                script.append('\n')
+            }
+        }
+        segments << segment
+        text.length = 0
+    }
+
+    /* Decodes the escape sequence at the given index, as in a GString */
+    private static int unescape(String input, int index, StringBuilder text) {
+        char c = input.charAt(index + 1)
+        if (c == 'n' as char) {
+            text.append('\n')
+        } else if (c == 't' as char) {
+            text.append('\t')
+        } else if (c == 'r' as char) {
+            text.append('\r')
+        } else if (c == 'b' as char) {
+            text.append('\b')
+        } else if (c == 'f' as char) {
+            text.append('\f')
+        } else if (c == '\\' as char || c == '$' as char || c == '"' as char || c == '\'' as char) {
+            text.append(c)
+        } else if (c == '\n' as char) {
+            // line continuation
+        } else if (c == 'u' as char && index + 6 <= input.length() && isHexadecimal(input.substring(index + 2, index + 6))) {
+            text.append((char) Integer.parseInt(input.substring(index + 2, index + 6), 16))
+            return index + 6
+        } else {
+            text.append('\\')
+            return index + 1
+        }
+        index + 2
+    }
+
+    private static boolean isHexadecimal(String digits) {
+        for (int i = 0; i < digits.length(); i++) {
+            if (Character.digit(digits.charAt(i), 16) < 0) {
+                return false
+            }
+        }
+        true
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        c != '$' as char && Character.isJavaIdentifierStart(c)
+    }
+
+    private static int identifierEnd(String input, int start) {
+        int end = start + 1
+        while (end < input.length() && input.charAt(end) != '$' as char && Character.isJavaIdentifierPart(input.charAt(end))) {
+            end++
+        }
+        end
+    }
+
+    /* Finds the brace closing a ${} expression, skipping the nested braces and the string literals */
+    private static int closingBrace(String input, int start) {
+        int depth = 0
+        int i = start
+        while (i < input.length()) {
+            char c = input.charAt(i)
+            if (c == '{' as char) {
+                depth++
+            } else if (c == '}' as char) {
+                if (depth == 0) {
+                    return i
+                }
+                depth--
+            } else if (c == '\'' as char || c == '"' as char) {
+                i++
+                while (i < input.length() && input.charAt(i) != c) {
+                    if (input.charAt(i) == '\\' as char) {
+                        i++
+                    }
+                    i++
+                }
+            }
+            i++
+        }
+        -1
+    }
+
+    /* Appends an ASCII string literal, split in several constants when too long */
+    private static void appendLiteral(StringBuilder script, String text) {
+        script.append("'")
+        for (int i = 0; i < text.length(); i++) {
+            if (i > 0 && i % MAX_LITERAL_LENGTH == 0) {
+                script.append("' + '")
+            }
+            char c = text.charAt(i)
+            if (c == '\\' as char || c == '\'' as char) {
+                script.append('\\').append(c)
+            } else if (c == '\n' as char) {
+                script.append('\\n')
+            } else if (c == '\r' as char) {
+                script.append('\\r')
+            } else if (c == '\t' as char) {
+                script.append('\\t')
+            } else if (c < (' ' as char) || c > ('~' as char)) {
+                script.append(String.format('\\u%04x', (int) c))
+            } else {
+                script.append(c)
+            }
+        }
+        script.append("'")
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.templates
+
+import groovy.transform.CompileStatic
+
+/**
+ * Base class of the scripts generated by the {@link StreamingTemplateEngine}.
+ * <p>
+ * The generated scripts write their static text segments and the values of their expressions
+ * straight to the {@link TemplateOutput}, instead of building the strings of the page.
+ * The output and the segments are kept in local variables of the script, named <code>$out</code> and <code>$s</code>,
+ * so that the closures of the template call the output directly rather than through their owner,
+ * and the methods declared by the template get them from the properties of the same names.
+ */
+@CompileStatic
+abstract class StreamingTemplateScript extends Script {
+
+    private TemplateOutput output
+    private TextSegment[] segments
+
+    StreamingTemplateScript() {
+        super()
+    }
+
+    StreamingTemplateScript(Binding binding) {
+        super(binding)
+    }
+
+    /**
+     * @param output the output the template is rendered to
+     */
+    void $setOutput(TemplateOutput output) {
+        this.output = output
+    }
+
+    /**
+     * @return the output the template is rendered to
+     */
+    TemplateOutput get$out() {
+        if (output == null) {
+            throw new IllegalStateException("The output of the template ${getClass().name} isn't set")
+        }
+        output
+    }
+
+    /**
+     * Keeps the static text segments of the script, for the methods declared by the template.
+     *
+     * @param segments the static text segments of the script class
+     * @return the segments
+     */
+    TextSegment[] $init(TextSegment[] segments) {
+        this.segments = segments
+    }
+
+    /**
+     * @return the static text segments of the script
+     */
+    TextSegment[] get$s() {
+        segments
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.templates;
+
+import groovy.lang.Closure;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+/**
+ * Output of the streaming templates, written to the client in chunks of a fixed size.
+ * <p>
+ * When the output is a byte stream, the characters are encoded into a reused buffer,
+ * and the static text segments are copied as is when the charset is UTF-8,
+ * so that rendering a page of any size allocates no intermediate string.
+ * Otherwise, the characters are buffered and written to the underlying writer.
+ */
+public class TemplateOutput extends Writer {
+
+    static final int CHUNK_SIZE = 8192;
+
+    private final OutputStream stream;
+    private final Writer writer;
+    private final CharsetEncoder encoder;
+    private final boolean utf8;
+
+    private final char[] chars = new char[CHUNK_SIZE];
+    private int charCount;
+    private final byte[] bytes;
+    private int byteCount;
+
+    /**
+     * @param stream the stream the output is written to
+     * @param charset the charset of the output
+     */
+    public TemplateOutput(OutputStream stream, Charset charset) {
+        this.stream = stream;
+        this.writer = null;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.utf8 = TextSegment.UTF_8.equals(charset);
+        this.bytes = new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * @param writer the writer the output is written to
+     */
+    public TemplateOutput(Writer writer) {
+        this.stream = null;
+        this.writer = writer;
+        this.encoder = null;
+        this.utf8 = false;
+        this.bytes = null;
+    }
+
+    /**
+     * @return true if the output is encoded by this writer, and can also be written as bytes
+     */
+    public boolean isStreaming() {
+        return stream != null;
+    }
+
+    /**
+     * Writes a static text segment, as its UTF-8 bytes if possible.
+     *
+     * @param segment the static text
+     */
+    public void writeText(TextSegment segment) throws IOException {
+        if (utf8) {
+            writeBytes(segment.bytes, 0, segment.bytes.length);
+        } else {
+            write(segment.text);
+        }
+    }
+
+    /**
+     * Writes the value of a <code>${}</code> or <code>$name</code> expression, as a GString would.
+     */
+    public void writeValue(Object value) throws IOException {
+        if (value instanceof String) {
+            write((String) value);
+        } else if (value instanceof Closure) {
+            Closure<?> closure = (Closure<?>) value;
+            if (closure.getMaximumNumberOfParameters() == 0) {
+                InvokerHelper.write(this, closure.call());
+            } else {
+                closure.call(this);
+            }
+        } else {
+            InvokerHelper.write(this, value);
+        }
+    }
+
+    /**
+     * Writes the value of a <code>&lt;%= %&gt;</code> expression, as the <code>print</code> method of Groovy.
+     */
+    public void printValue(Object value) throws IOException {
+        write(InvokerHelper.toString(value));
+    }
+
+    /**
+     * Writes bytes already encoded in the charset of the output, after the pending characters.
+     */
+    public void writeBytes(byte[] b, int off, int len) throws IOException {
+        if (stream == null) {
+            throw new IllegalStateException("The template output is not a byte stream");
+        }
+        encodeChars();
+        if (len >= CHUNK_SIZE) {
+            drainBytes();
+            stream.write(b, off, len);
+        } else {
+            if (byteCount + len > CHUNK_SIZE) {
+                drainBytes();
+            }
+            System.arraycopy(b, off, bytes, byteCount, len);
+            byteCount += len;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (charCount == CHUNK_SIZE) {
+            flushChars();
+        }
+        chars[charCount++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (charCount == CHUNK_SIZE) {
+                flushChars();
+            }
+            int count = Math.min(len, CHUNK_SIZE - charCount);
+            System.arraycopy(cbuf, off, chars, charCount, count);
+            charCount += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            if (charCount == CHUNK_SIZE) {
+                flushChars();
+            }
+            int count = Math.min(len, CHUNK_SIZE - charCount);
+            str.getChars(off, off + count, chars, charCount);
+            charCount += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Writes the buffered output to the underlying stream or writer, and flushes it.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (stream != null) {
+            encodeChars();
+            drainBytes();
+            stream.flush();
+        } else {
+            flushChars();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Flushes the output, without closing the underlying stream or writer,
+     * which belong to the response.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Discards the buffered output, which hasn't been written yet.
+     */
+    public void clear() {
+        charCount = 0;
+        byteCount = 0;
+        if (encoder != null) {
+            encoder.reset();
+        }
+    }
+
+    private void flushChars() throws IOException {
+        if (stream != null) {
+            encodeChars();
+        } else if (charCount > 0) {
+            writer.write(chars, 0, charCount);
+            charCount = 0;
+        }
+    }
+
+    /* Encodes the pending characters, but a trailing high surrogate waiting for the rest of its pair */
+    private void encodeChars() throws IOException {
+        if (charCount == 0) {
+            return;
+        }
+        CharBuffer in = CharBuffer.wrap(chars, 0, charCount);
+        while (true) {
+            ByteBuffer out = ByteBuffer.wrap(bytes, byteCount, CHUNK_SIZE - byteCount);
+            boolean overflow = encoder.encode(in, out, false).isOverflow();
+            byteCount = out.position();
+            if (!overflow) {
+                break;
+            }
+            drainBytes();
+        }
+        charCount = in.remaining();
+        if (charCount > 0) {
+            System.arraycopy(chars, in.position(), chars, 0, charCount);
+        }
+    }
+
+    private void drainBytes() throws IOException {
+        if (byteCount > 0) {
+            stream.write(bytes, 0, byteCount);
+            byteCount = 0;
+        }
+    }
+}
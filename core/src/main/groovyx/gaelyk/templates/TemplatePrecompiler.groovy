@@ -0,0 +1,79 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.templates
+
+import groovy.io.FileType
+import groovy.transform.CompileStatic
+import groovyx.gaelyk.GaelykTemplateServlet
+
+/**
+ * Generates the sources of the precompiled templates of a web application,
+ * to be compiled with {@link StreamingTemplateScript} as script base class.
+ * <p>
+ * Each <code>.gtpl</code> file is translated by the {@link StreamingTemplateEngine} into a script
+ * named after the class the {@link GaelykTemplateServlet} looks up for its path.
+ * The static text segments of the templates are thus encoded to UTF-8 once, when their classes are loaded,
+ * and written as is to the output stream of the responses.
+ * <p>
+ * Usage: <code>TemplatePrecompiler &lt;webapp directory&gt; &lt;target directory&gt; [template encoding]</code>
+ */
+@CompileStatic
+class TemplatePrecompiler {
+
+    static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println 'Usage: TemplatePrecompiler <webapp directory> <target directory> [template encoding]'
+            System.exit(1)
+        }
+        int count = precompile(new File(args[0]), new File(args[1]), args.length > 2 ? args[2] : 'UTF-8')
+        println "Generated the sources of $count precompiled templates in ${args[1]}"
+    }
+
+    /**
+     * Generates the sources of the precompiled templates found in a directory and its subdirectories.
+     *
+     * @param webapp the root directory of the web application
+     * @param target the directory of the generated sources, encoded in UTF-8
+     * @param encoding the encoding of the templates
+     * @return the number of templates
+     */
+    static int precompile(File webapp, File target, String encoding = 'UTF-8') {
+        int count = 0
+        webapp.eachFileRecurse(FileType.FILES) { File file ->
+            if (file.name.endsWith('.gtpl')) {
+                String path = '/' + webapp.toURI().relativize(file.toURI()).path
+                File source = new File(target, GaelykTemplateServlet.precompiledClassNameFor(path).replace('.', '/') + '.groovy')
+                source.parentFile.mkdirs()
+                source.setText(toSource(path, file.getText(encoding)), 'UTF-8')
+                count++
+            }
+        }
+        count
+    }
+
+    /**
+     * @param path the servlet path of the template
+     * @param template the source of the template
+     * @return the source of the precompiled script of the template
+     */
+    static String toSource(String path, String template) {
+        String className = GaelykTemplateServlet.precompiledClassNameFor(path)
+        String script = StreamingTemplateEngine.toScript(template)
+        int dot = className.lastIndexOf('.')
+        // on the first line, for the lines of the script to match the lines of the template
+        dot < 0 ? script : "package ${className.substring(0, dot)}; " + script
+    }
+}
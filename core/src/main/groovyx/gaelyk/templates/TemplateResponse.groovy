@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.templates
+
+import groovy.transform.CompileStatic
+
+import java.nio.charset.Charset
+
+import javax.servlet.ServletOutputStream
+import javax.servlet.http.HttpServletResponse
+import javax.servlet.http.HttpServletResponseWrapper
+
+/**
+ * Response rendering the templates through a {@link TemplateOutput}.
+ * <p>
+ * The output is written to the output stream of the wrapped response, in the charset of the response,
+ * or to its writer if the output stream can't be used, for instance when the template is included
+ * by a groovlet which already got the writer.
+ * The writer and the output stream of this response both write to the same output,
+ * so that the templates and groovlets included by a template are rendered in the right order.
+ * The buffered output is written when the rendering is finished,
+ * and discarded if the response is reset or redirected.
+ */
+@CompileStatic
+class TemplateResponse extends HttpServletResponseWrapper {
+
+    private TemplateOutput output
+    private PrintWriter writer
+    private ServletOutputStream stream
+
+    TemplateResponse(HttpServletResponse response) {
+        super(response)
+    }
+
+    /**
+     * @return the output of the templates, created on first use
+     */
+    TemplateOutput getOutput() {
+        if (output == null) {
+            try {
+                Charset charset = Charset.forName(response.characterEncoding)
+                output = new TemplateOutput(super.getOutputStream(), charset)
+            } catch (IllegalArgumentException | IllegalStateException ignored) {
+                output = new TemplateOutput(super.getWriter())
+            }
+        }
+        output
+    }
+
+    @Override
+    PrintWriter getWriter() {
+        if (writer == null) {
+            writer = new PrintWriter(getOutput())
+        }
+        writer
+    }
+
+    @Override
+    ServletOutputStream getOutputStream() {
+        if (!getOutput().streaming) {
+            return super.getOutputStream()
+        }
+        if (stream == null) {
+            stream = new OutputServletStream(output)
+        }
+        stream
+    }
+
+    @Override
+    void flushBuffer() {
+        output?.flush()
+        super.flushBuffer()
+    }
+
+    @Override
+    void resetBuffer() {
+        output?.clear()
+        super.resetBuffer()
+    }
+
+    @Override
+    void reset() {
+        output?.clear()
+        super.reset()
+    }
+
+    @Override
+    void sendError(int sc) {
+        output?.clear()
+        super.sendError(sc)
+    }
+
+    @Override
+    void sendError(int sc, String msg) {
+        output?.clear()
+        super.sendError(sc, msg)
+    }
+
+    @Override
+    void sendRedirect(String location) {
+        output?.clear()
+        super.sendRedirect(location)
+    }
+
+    /**
+     * Writes the buffered output once the template has been rendered.
+     */
+    void finish() {
+        output?.flush()
+    }
+
+    /**
+     * Output stream writing bytes to the template output, after its pending characters.
+     */
+    private static class OutputServletStream extends ServletOutputStream {
+        private final TemplateOutput output
+        private final byte[] single = new byte[1]
+
+        OutputServletStream(TemplateOutput output) {
+            this.output = output
+        }
+
+        @Override
+        void write(int b) {
+            single[0] = (byte) b
+            output.writeBytes(single, 0, 1)
+        }
+
+        @Override
+        void write(byte[] bytes, int offset, int length) {
+            output.writeBytes(bytes, offset, length)
+        }
+
+        @Override
+        void flush() {
+            output.flush()
+        }
+
+        @Override
+        void close() {
+            output.flush()
+        }
+    }
+}
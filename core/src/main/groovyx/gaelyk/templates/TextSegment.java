@@ -0,0 +1,61 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.templates;
+
+import java.nio.charset.Charset;
+
+/**
+ * Static text of a template, encoded to UTF-8 once when the template class is loaded.
+ */
+public final class TextSegment {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final String text;
+    final byte[] bytes;
+
+    /**
+     * @param text the static text
+     */
+    public TextSegment(String text) {
+        this.text = text;
+        this.bytes = text.getBytes(UTF_8);
+    }
+
+    /**
+     * @param texts the static texts of a template
+     * @return the segments of the texts
+     */
+    public static TextSegment[] all(String... texts) {
+        TextSegment[] segments = new TextSegment[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            segments[i] = new TextSegment(texts[i]);
+        }
+        return segments;
+    }
+
+    /**
+     * @return the static text
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,92 @@
+package groovyx.gaelyk
+
+import groovy.servlet.ServletBinding
+import groovy.transform.CompileStatic
+
+import java.lang.management.ManagementFactory
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+
+import javax.servlet.ServletContext
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import com.google.appengine.api.utils.SystemProperty
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+
+/**
+ * Microbenchmark comparing the garbage allocated per request when the GAE services and variables
+ * are eagerly bound by {@link GaelykBindingEnhancer#bind(Binding)} and when they are resolved on first use
+ * by the {@link LazyServletBinding}, for a groovlet using none of them and for a groovlet using two of them.
+ * The garbage of the servlet binding alone, mostly the writers of its <code>out</code>, <code>html</code> and <code>json</code> variables,
+ * is measured first, as it's the same in both cases.
+ * <p>
+ * Run with <code>gradle benchmark -Pbenchmark=groovyx.gaelyk.BindingAllocationBenchmark</code>
+ */
+@CompileStatic
+class BindingAllocationBenchmark {
+
+    private static final int WARMUP = 20000
+    private static final int ITERATIONS = 100000
+
+    static void main(String[] args) {
+        LocalServiceTestHelper helper = new LocalServiceTestHelper()
+        helper.setUp()
+        SystemProperty.environment.set('Production')
+
+        Map<String, String> headers = ['X-AppEngine-Country': 'CZ', 'X-AppEngine-CityLatLong': '50.087811,14.420460']
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.classLoader, [HttpServletRequest] as Class[],
+                new InvocationHandler() {
+                    Object invoke(Object proxy, Method method, Object[] arguments) {
+                        switch (method.name) {
+                            case 'getParameterNames':   return Collections.enumeration(['name'])
+                            case 'getParameterValues':  return ['Gaelyk'] as String[]
+                            case 'getHeaderNames':      return Collections.emptyEnumeration()
+                            case 'getHeader':           return headers[(String) arguments[0]]
+                        }
+                        return null
+                    }
+                })
+        HttpServletResponse response = [:] as HttpServletResponse
+        ServletContext context = [:] as ServletContext
+
+        GroovyShell shell = new GroovyShell()
+        Script noService = shell.parse('params.name')
+        println "servlet binding alone: ${measure { noService.binding = new ServletBinding(request, response, context); noService.run() }} bytes/request"
+        [
+                'no service': noService,
+                'datastore and memcache': shell.parse('[datastore, memcache, params.name]')
+        ].each { String name, Script script ->
+            Closure<Object> eager = {
+                ServletBinding binding = new ServletBinding(request, response, context)
+                GaelykBindingEnhancer.bind(binding)
+                script.binding = binding
+                script.run()
+            }
+            Closure<Object> lazy = {
+                script.binding = new LazyServletBinding(request, response, context)
+                script.run()
+            }
+            println "$name: eager binding ${measure(eager)} bytes/request, lazy binding ${measure(lazy)} bytes/request"
+        }
+
+        helper.tearDown()
+    }
+
+    private static long measure(Closure<Object> request) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.threadMXBean
+        long thread = Thread.currentThread().id
+        int found = 0
+        for (int i = 0; i < WARMUP; i++) {
+            found += request.call() != null ? 1 : 0
+        }
+        long start = threads.getThreadAllocatedBytes(thread)
+        for (int i = 0; i < ITERATIONS; i++) {
+            found += request.call() != null ? 1 : 0
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - start
+        assert found == WARMUP + ITERATIONS
+        allocated.intdiv(ITERATIONS).longValue()
+    }
+}
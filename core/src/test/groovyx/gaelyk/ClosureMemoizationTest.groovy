@@ -8,6 +8,9 @@ import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestC
 import com.google.appengine.api.datastore.DatastoreServiceFactory
 import com.google.appengine.api.datastore.Entity
 import com.google.appengine.api.datastore.Query
+import com.google.apphosting.api.ApiProxy
+
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Closure memoization test
@@ -69,4 +72,104 @@ class ClosureMemoizationTest extends GroovyTestCase {
 
         assert nbPics == 1 && called == 1
     }
+
+    void testNamedMemoizationSharesResultsAcrossClosures() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        int called = 0
+
+        def first = memcache.memoize(name: 'square', expiration: 1.hour) { int n -> called++; n * n }
+        def second = memcache.memoize(name: 'square') { int n -> called++; -1 }
+
+        assert first(3) == 9
+        assert second(3) == 9
+        assert second(4) == -1
+        assert called == 2
+
+        // the counters are shared by the closures of the same name
+        assert first.counters.is(second.counters)
+        assert first.counters.hits == 1 && first.counters.misses == 2
+    }
+
+    void testClosuresMemoizedOnEachRequestShareTheLocalTier() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        int called = 0
+        // as in a groovlet, the closure is memoized again on each request
+        def request = { memcache.memoize(name: 'perRequest', localSize: 10) { String s -> called++; s.reverse() } }
+
+        assert request()('abc') == 'cba'
+        memcache.clearAll()
+        def again = request()
+
+        assert again('abc') == 'cba'
+        assert called == 1
+        assert again.localSize == 10
+        assert again.counters.hits == 1 && again.counters.misses == 1
+    }
+
+    void testNullResultsAreMemoized() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        int called = 0
+
+        def find = memcache.memoize(name: 'find') { String id -> called++; null }
+
+        assert find('missing') == null
+        assert find("miss${'ing'}") == null
+        assert called == 1
+    }
+
+    void testLocalTierServesResultsWithoutMemcache() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        int called = 0
+
+        def c = memcache.memoize(name: 'local', localSize: 1) { String s -> called++; s.toUpperCase() }
+
+        assert c('a') == 'A'
+        memcache.clearAll()
+        assert c('a') == 'A'
+        assert called == 1
+
+        // the least recently used result is evicted
+        assert c('b') == 'B'
+        memcache.clearAll()
+        assert c('a') == 'A'
+        assert called == 3
+    }
+
+    void testForgetRemovesTheResult() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        int called = 0
+
+        def c = memcache.memoize(name: 'forget', localSize: 10) { called++ }
+
+        assert c() == 0
+        c.forget()
+        assert c() == 1
+    }
+
+    void testConcurrentCallsComputeOnce() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        def env = ApiProxy.currentEnvironment
+        def called = new AtomicInteger()
+
+        def slow = memcache.memoize(name: 'slow') { String s -> called.incrementAndGet(); sleep 200; s * 2 }
+
+        def results = Collections.synchronizedList([])
+        def threads = (1..5).collect {
+            Thread.start {
+                ApiProxy.environmentForCurrentThread = env
+                results << slow('ab')
+            }
+        }
+        threads*.join()
+
+        assert results == ['abab'] * 5
+        assert called.get() == 1
+        assert slow.counters.misses == 1 && slow.counters.hits == 4
+    }
+
+    void testMemoizedClosureNeedsAName() {
+        shouldFail(IllegalArgumentException) {
+            MemcacheServiceFactory.memcacheService.memoize(expiration: 10) { 1 }
+        }
+    }
 }
@@ -154,4 +154,45 @@ class GaelykServletTest extends GroovyTestCase {
         assert GaelykServlet.getPrecompiledClassName('/api/index.groovy') == 'api.index'
         assert GaelykServlet.getPrecompiledClassName('/api/test/index.groovy') == 'api.test.index'
     }
+
+    void testPrecompiledGroovletsAreResolvedOnce() {
+        SystemProperty.environment.set("Production")
+        def writer = new StringWriter()
+        def ctxt = [log: { String msg, Exception e = null -> }] as ServletContext
+        def config = [
+                getServletContext: {-> ctxt },
+                getInitParameter: { String p -> p == 'preferPrecompiled' ? 'true' : null }
+        ] as ServletConfig
+        def request = [
+                getAttribute: { String attr -> },
+                getServletPath: {-> "/groovyx/gaelyk/PrecompiledGroovlet.groovy" },
+                getPathInfo: {-> null },
+                getSession: { boolean b -> [:] as HttpSession },
+                getParameter: { String name -> 'servlet' },
+                getParameterNames: {-> Collections.enumeration(['name']) },
+                getParameterValues: { String name -> ['servlet'] as String[] },
+                getHeaderNames: {-> Collections.enumeration([]) },
+                getHeader: { String name -> }
+        ] as HttpServletRequest
+        def response = [
+                setContentType: { String ct -> },
+                getWriter: { -> new PrintWriter(writer) }
+        ] as HttpServletResponse
+
+        def servlet = new GaelykServlet()
+        servlet.init(config)
+        2.times { servlet.service(request, response) }
+
+        assert writer.toString() == 'precompiled servletprecompiled servlet'
+        assert servlet.@precompiledScripts.size() == 1
+
+        // groovlets compiled during a development session are picked up
+        SystemProperty.environment.set("Development")
+        def localServlet = new GaelykServlet()
+        localServlet.init(config)
+        localServlet.service(request, response)
+
+        assert writer.toString().endsWith('precompiled servlet' * 3)
+        assert localServlet.@precompiledScripts.size() == 0
+    }
 }
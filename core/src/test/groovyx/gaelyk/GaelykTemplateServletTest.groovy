@@ -8,6 +8,7 @@ import javax.servlet.ServletRequest
 import javax.servlet.http.HttpSession
 import javax.servlet.ServletContext
 import javax.servlet.ServletConfig
+import javax.servlet.ServletOutputStream
 import com.google.appengine.api.utils.SystemProperty
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
@@ -147,4 +148,179 @@ class GaelykTemplateServletTest extends GroovyTestCase {
         assert GaelykTemplateServlet.getPrecompiledClassName([getAttribute: {}, getServletPath: {'/api/index.gtpl'}] as HttpServletRequest) == 'api._gtpl_index'
         assert GaelykTemplateServlet.getPrecompiledClassName([getAttribute: {}, getServletPath: {'/api/test/index.gtpl'}] as HttpServletRequest) == 'api.test._gtpl_index'
     }
+
+    private renderTwice(String environment, Closure betweenRequests) {
+        SystemProperty.environment.set(environment)
+        def tempFile = File.createTempFile("template", ".gtpl")
+        tempFile << 'Hello ${params.name}'
+        def realPaths = []
+        def errors = []
+        def writer = new StringWriter()
+
+        def ctxt = [
+                log: { String msg -> },
+                getRealPath: { String p -> realPaths << p; tempFile.absolutePath }
+        ] as ServletContext
+        def config = [
+                getServletContext: {-> ctxt },
+                getInitParameter: { String p -> },
+                getServletName: {-> "groovyx.gaelyk.GaelykTemplateServlet" }
+        ] as ServletConfig
+        def request = [
+                getAttribute: { String attr -> },
+                getServletPath: {-> "/hello.gtpl" },
+                getPathInfo: {-> null },
+                getSession: { boolean b -> [:] as HttpSession },
+                getParameterNames: {-> Collections.enumeration(['name']) },
+                getParameterValues: { String param -> ['Gaelyk'] as String[] },
+                getParameter: { String param -> },
+                getHeaderNames: {-> Collections.enumeration([]) },
+                getHeader: { String name -> },
+                getParameter: { String name -> }
+        ] as HttpServletRequest
+        def response = [
+                setContentType: { String ct -> },
+                sendError: { int err -> errors << err },
+                getWriter: {-> new PrintWriter(writer) }
+        ] as HttpServletResponse
+
+        try {
+            def servlet = new GaelykTemplateServlet()
+            servlet.init(config)
+            servlet.service(request, response)
+            betweenRequests(tempFile)
+            servlet.service(request, response)
+        } finally {
+            tempFile.delete()
+        }
+        [output: writer.toString(), realPaths: realPaths, errors: errors]
+    }
+
+    void testTemplatesAreResolvedOnceInProduction() {
+        def result = renderTwice('Production') { File template -> template.delete() }
+
+        assert result.output == 'Hello GaelykHello Gaelyk'
+        assert result.realPaths == ['/hello.gtpl']
+        assert !result.errors
+    }
+
+    void testTemplatesAreResolvedForEachRequestInLocalMode() {
+        def result = renderTwice('Development') { File template -> template.delete() }
+
+        assert result.output == 'Hello Gaelyk'
+        assert result.realPaths == ['/hello.gtpl', '/hello.gtpl']
+        assert result.errors == [404]
+    }
+
+    void testUnknownTemplatesAreNotCachedWithoutBound() {
+        SystemProperty.environment.set('Production')
+        String servletPath = null
+        def errors = []
+        def ctxt = [
+                log: { String msg -> },
+                getRealPath: { String p -> "/nonexistent$p".toString() }
+        ] as ServletContext
+        def config = [
+                getServletContext: {-> ctxt },
+                getInitParameter: { String p -> },
+                getServletName: {-> "groovyx.gaelyk.GaelykTemplateServlet" }
+        ] as ServletConfig
+        def request = [
+                getAttribute: { String attr -> },
+                getServletPath: {-> servletPath },
+                getPathInfo: {-> null },
+                getSession: { boolean b -> [:] as HttpSession },
+                getParameterNames: {-> Collections.enumeration([]) },
+                getHeaderNames: {-> Collections.enumeration([]) },
+                getHeader: { String name -> },
+                getParameter: { String name -> }
+        ] as HttpServletRequest
+        def response = [
+                setContentType: { String ct -> },
+                sendError: { int err -> errors << err }
+        ] as HttpServletResponse
+
+        def servlet = new GaelykTemplateServlet()
+        servlet.init(config)
+        (PrecompiledScriptCache.DEFAULT_MAX_MISSING + 1).times {
+            servletPath = "/random${it}.gtpl"
+            servlet.service(request, response)
+        }
+
+        assert errors.size() == PrecompiledScriptCache.DEFAULT_MAX_MISSING + 1
+        assert errors.every { it == 404 }
+        assert servlet.@sourceTemplates.size() < PrecompiledScriptCache.DEFAULT_MAX_MISSING
+        assert servlet.@precompiledTemplates.size() < PrecompiledScriptCache.DEFAULT_MAX_MISSING
+    }
+
+    private String renderWithEngine(String engine, String template, String servletPath = '/hello.gtpl') {
+        def tempFile = File.createTempFile("template", ".gtpl")
+        tempFile.setText(template, 'UTF-8')
+        def bytes = new ByteArrayOutputStream()
+        def stream = new ServletOutputStream() {
+            void write(int b) { bytes.write(b) }
+        }
+
+        def ctxt = [
+                log: { String msg -> },
+                getRealPath: { String p -> tempFile.absolutePath }
+        ] as ServletContext
+        def config = [
+                getServletContext: {-> ctxt },
+                getInitParameter: { String p -> p == 'templateEngine' ? engine : null },
+                getServletName: {-> "groovyx.gaelyk.GaelykTemplateServlet" }
+        ] as ServletConfig
+        def request = [
+                getAttribute: { String attr -> },
+                getServletPath: {-> servletPath },
+                getPathInfo: {-> null },
+                getSession: { boolean b -> [:] as HttpSession },
+                getParameterNames: {-> Collections.enumeration(['name']) },
+                getParameterValues: { String param -> ['Gaelyk'] as String[] },
+                getParameter: { String param -> },
+                getHeaderNames: {-> Collections.enumeration([]) },
+                getHeader: { String name -> },
+                getRequestDispatcher: { String p -> [
+                        include: { ServletRequest req, ServletResponse resp -> resp.writer << "<$p>" }
+                ] as RequestDispatcher }
+        ] as HttpServletRequest
+        def response = [
+                setContentType: { String ct -> },
+                getCharacterEncoding: {-> 'UTF-8' },
+                getOutputStream: {-> stream }
+        ] as HttpServletResponse
+
+        try {
+            def servlet = new GaelykTemplateServlet()
+            servlet.init(config)
+            servlet.service(request, response)
+        } finally {
+            tempFile.delete()
+        }
+        new String(bytes.toByteArray(), 'UTF-8')
+    }
+
+    void testStreamingTemplateEngine() {
+        def output = renderWithEngine('streaming', 'Hello ${params.name} \\u00e9t\\u00e9 <% include "/other.gtpl" %> ${"\\u00fc"}')
+
+        assert output == 'Hello Gaelyk \u00e9t\u00e9 </other.gtpl> \u00fc'
+    }
+
+    void testMarkupTemplateEngine() {
+        def output = renderWithEngine('markup', 'p("Hello ${params.name}")')
+
+        assert output == '<p>Hello Gaelyk</p>'
+    }
+
+    void testPrecompiledTemplatesWriteTheirStaticTextAsBytes() {
+        SystemProperty.environment.set('Production')
+
+        def output = renderWithEngine(null, 'not rendered', '/groovyx/gaelyk/streaming.gtpl')
+
+        assert output == 'Hello Gaelyk \u00e9t\u00e9 </other.gtpl>!'
+    }
+
+    void testUnknownTemplateEngine() {
+        shouldFail(IllegalArgumentException) { renderWithEngine('velocity', 'Hello') }
+    }
 }
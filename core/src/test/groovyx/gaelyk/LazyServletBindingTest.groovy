@@ -0,0 +1,104 @@
+package groovyx.gaelyk
+
+import javax.servlet.ServletContext
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import com.google.appengine.api.datastore.DatastoreService
+import com.google.appengine.api.memcache.MemcacheService
+import com.google.appengine.api.utils.SystemProperty
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig
+
+import groovy.text.SimpleTemplateEngine
+
+/**
+ * Test the servlet binding resolves the GAE services and variables when they are first used.
+ */
+class LazyServletBindingTest extends GroovyTestCase {
+
+    private LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(),
+            new LocalMemcacheServiceTestConfig(),
+            new LocalUserServiceTestConfig()
+    )
+
+    private List<String> headersRead = []
+    private LazyServletBinding binding
+
+    protected void setUp() {
+        super.setUp()
+        helper.setUp()
+        SystemProperty.environment.set("Development")
+
+        def headers = ['X-AppEngine-Country': 'CZ', 'X-AppEngine-CityLatLong': '50.087811,14.420460']
+        def request = [
+                getSession: { boolean create -> null },
+                getParameterNames: {-> Collections.enumeration([]) },
+                getHeaderNames: {-> Collections.enumeration([]) },
+                getHeader: { String name -> headersRead << name; headers[name] }
+        ] as HttpServletRequest
+        binding = new LazyServletBinding(request, [:] as HttpServletResponse, [:] as ServletContext)
+    }
+
+    protected void tearDown() {
+        helper.tearDown()
+        super.tearDown()
+    }
+
+    void testVariablesAreResolvedOnFirstUse() {
+        assert !headersRead
+
+        def geo = binding.getVariable('geo')
+
+        assert geo.country == 'CZ'
+        assert geo.latitude == 50.087811
+        assert binding.getVariable('geo').is(geo)
+        assert headersRead.count('X-AppEngine-Country') == 1
+        assert binding.getVariable('datastore') instanceof DatastoreService
+        assert binding.getVariable('user') == null
+        assert binding.getVariable('session') instanceof LazySession
+        assert binding.getVariable('session').is(binding.getVariable('session'))
+    }
+
+    void testVariablesAreAvailableToScripts() {
+        def script = new GroovyShell(binding).parse('''
+            memcache.put('name', 'Gaelyk')
+            [memcache instanceof com.google.appengine.api.memcache.MemcacheService, localMode, app.gaelyk.version, memcache.get('name')]
+        ''')
+
+        def result = script.run()
+
+        assert result[0] && result[1] && result[3] == 'Gaelyk'
+        assert binding.hasVariable('search')
+        assert !binding.hasVariable('unknown')
+        shouldFail(MissingPropertyException) { binding.getVariable('unknown') }
+    }
+
+    void testBoundVariablesTakePrecedence() {
+        binding.setVariable('logger', 'from a plugin')
+        new GroovyShell(binding).evaluate('datastore = "from the script"')
+
+        assert binding.getVariable('logger') == 'from a plugin'
+        assert binding.getVariable('datastore') == 'from the script'
+        assert binding.variables.datastore == 'from the script'
+    }
+
+    void testTemplatesResolveTheVariablesFromTheMap() {
+        def template = new SimpleTemplateEngine().createTemplate('${geo.country} ${localMode} ${memcache instanceof com.google.appengine.api.memcache.MemcacheService}')
+
+        assert template.make(binding.variables).toString() == 'CZ true true'
+    }
+
+    void testVariablesMapHasAllTheVariablesOfTheEnhancer() {
+        def eager = new Binding(request: binding.getVariable('request'))
+        GaelykBindingEnhancer.bind(eager)
+
+        assert GaelykBindingEnhancer.VARIABLE_NAMES == eager.variables.keySet() - 'request'
+        assert binding.variables.keySet().containsAll(GaelykBindingEnhancer.VARIABLE_NAMES)
+        assert binding.variables.memcache instanceof MemcacheService
+        assert 'blobstore' in binding.variables
+    }
+}
@@ -0,0 +1,6 @@
+package groovyx.gaelyk
+
+/*
+ * Groovlet compiled with the test classes, as the precompiled groovlets of an application would be.
+ */
+out << "precompiled ${params.name}"
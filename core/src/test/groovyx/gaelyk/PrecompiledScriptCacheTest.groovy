@@ -0,0 +1,72 @@
+package groovyx.gaelyk
+
+/**
+ * Tests of the cache of the precompiled script classes.
+ */
+class PrecompiledScriptCacheTest extends GroovyTestCase {
+
+    private List<String> resolved = []
+
+    private PrecompiledScriptCache cache = new PrecompiledScriptCache({ String path ->
+        resolved << path
+        path == '/none' ? null : path.substring(1)
+    } as PrecompiledScriptCache.ClassNames)
+
+    void testPrecompiledClassesAreResolvedOnce() {
+        def out = new StringWriter()
+
+        3.times {
+            def script = cache.newInstance('/groovyx.gaelyk.PrecompiledGroovlet', new Binding(params: [name: "run $it"], out: out))
+            assert script instanceof PrecompiledGroovlet
+            script.run()
+        }
+
+        assert out.toString() == 'precompiled run 0precompiled run 1precompiled run 2'
+        assert resolved == ['/groovyx.gaelyk.PrecompiledGroovlet']
+        assert cache.isPrecompiled('/groovyx.gaelyk.PrecompiledGroovlet')
+    }
+
+    void testMissingClassesAreCachedToo() {
+        3.times {
+            assert cache.newInstance('/groovyx.gaelyk.Missing', new Binding()) == null
+            assert cache.newInstance('/none', new Binding()) == null
+            assert cache.newInstance('/java.lang.String', new Binding()) == null
+        }
+
+        assert resolved == ['/groovyx.gaelyk.Missing', '/none', '/java.lang.String']
+        assert !cache.isPrecompiled('/none')
+        assert cache.size() == 3
+
+        cache.clear()
+        assert cache.size() == 0
+        assert cache.newInstance('/none', new Binding()) == null
+        assert resolved.size() == 4
+    }
+
+    void testMissingPathsAreForgottenBeyondTheMaximum() {
+        def bounded = new PrecompiledScriptCache({ String path -> path.substring(1) } as PrecompiledScriptCache.ClassNames, 2)
+
+        assert bounded.isPrecompiled('/groovyx.gaelyk.PrecompiledGroovlet')
+        ['/a', '/b'].each { assert !bounded.isPrecompiled(it) }
+        assert bounded.size() == 3
+
+        // a third missing path clears the missing paths, but keeps the precompiled classes
+        assert !bounded.isPrecompiled('/c')
+        assert bounded.size() == 1
+        assert bounded.isPrecompiled('/groovyx.gaelyk.PrecompiledGroovlet')
+    }
+
+    void testClassesResolvedOnEachRequestWithoutCaching() {
+        assert cache.isPrecompiled('/groovyx.gaelyk.PrecompiledGroovlet')
+        cache.caching = false
+        assert cache.size() == 0
+
+        2.times {
+            assert cache.newInstance('/groovyx.gaelyk.PrecompiledGroovlet', new Binding()) instanceof PrecompiledGroovlet
+            assert !cache.isPrecompiled('/none')
+        }
+
+        assert resolved == ['/groovyx.gaelyk.PrecompiledGroovlet'] + ['/groovyx.gaelyk.PrecompiledGroovlet', '/none'] * 2
+        assert cache.size() == 0
+    }
+}
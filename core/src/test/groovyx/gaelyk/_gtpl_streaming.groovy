@@ -0,0 +1,13 @@
+package groovyx.gaelyk
+
+import groovy.transform.BaseScript
+import groovyx.gaelyk.templates.StreamingTemplateScript
+
+/*
+ * Precompiled template of the /groovyx/gaelyk/streaming.gtpl path, as generated by the TemplatePrecompiler
+ * from 'Hello ${params.name} <e acute>t<e acute> <% include "/other.gtpl" %>!'
+ */
+@BaseScript StreamingTemplateScript template
+
+final groovyx.gaelyk.templates.TemplateOutput $out = get$out(); final groovyx.gaelyk.templates.TextSegment[] $s = $init($segments); $out.writeText($s[0]);$out.writeValue(params.name);$out.writeText($s[1]); include "/other.gtpl" ;$out.writeText($s[2]);
+@groovy.transform.Field static final groovyx.gaelyk.templates.TextSegment[] $segments = groovyx.gaelyk.templates.TextSegment.all('Hello ', ' \u00e9t\u00e9 ', '!')
@@ -5,6 +5,8 @@ import groovyx.gaelyk.routes.HttpMethod
 import groovyx.gaelyk.routes.RedirectionType
 import groovyx.gaelyk.routes.Route
 
+import java.util.concurrent.atomic.AtomicInteger
+
 import javax.servlet.RequestDispatcher
 import javax.servlet.ServletRequest
 import javax.servlet.ServletResponse
@@ -12,8 +14,10 @@ import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 
 import com.google.appengine.api.memcache.MemcacheServiceFactory
+import com.google.apphosting.api.ApiProxy
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig
 
 /**
  * Cache handler tests
@@ -24,25 +28,30 @@ class CacheHandlerTest extends GroovyTestCase {
     // setup the local environement stub services
     private LocalServiceTestHelper helper = new LocalServiceTestHelper(
             new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig()
     )
 
     private recorder = []
 
-    private String dateBefore = "Sat, 29 Oct 1994 19:43:31 GMT"
     private String dateAfter  = "Fri, 29 Oct 2094 19:43:31 GMT"
 
     private String uri = "/index"
 
+    private String contextPath = ""
+
+    private Map<String, String> headers = ['If-Modified-Since': dateAfter]
+
     private request = [
             getRequestURI: { -> recorder << "req.getRequestURI"; uri },
             getQueryString: { -> recorder << "req.getQueryString"; "" },
             getRequestDispatcher: { String s -> recorder << "req.getRequestDispatcher"; requestDispatcher },
-            getHeader: { String h -> recorder << "req.getHeader"; dateAfter },
+            getHeader: { String h -> recorder << "req.getHeader"; headers[h] },
             toString: { -> "mock request" },
             setAttribute: { String name, val -> },
 			getAttribute: { String name -> },
 			getServletPath: {-> recorder << "req.getServletPath"; uri },
-			getPathInfo: {->}
+			getPathInfo: {->},
+            getContextPath: { -> contextPath }
     ] as HttpServletRequest
 
     private requestDispatcher = [
@@ -57,14 +66,21 @@ class CacheHandlerTest extends GroovyTestCase {
     private output = new CustomServletOutputStream(out: stream)
 
     private response = [
-            addHeader: { String h, String v -> recorder << "resp.addHeader" },
+            addHeader: { String h, String v -> recorder << "resp.addHeader"; responseHeaders[h] = v },
             getContentType: { -> recorder << "resp.getContentType"; "text/html" },
             setContentType: { String ct -> recorder << "resp.setContentType" },
             getOutputStream: { -> recorder << "resp.getOutputStream"; output },
             sendError: { int errCode -> recorder << "resp.sendError" },
-            setHeader: { k, v -> recorder << "resp.setHeader" }
+            sendRedirect: { String location -> recorder << "resp.sendRedirect" },
+            isCommitted: { -> false },
+            reset: { -> recorder << "resp.reset" },
+            setHeader: { k, v -> recorder << "resp.setHeader"; responseHeaders[k] = v },
+            setStatus: { int status -> recorder << "resp.setStatus"; responseStatus = status }
     ] as HttpServletResponse
 
+    private Map<String, String> responseHeaders = [:]
+    private int responseStatus
+
     protected void setUp() {
         super.setUp()
         // setting up the local environment
@@ -72,6 +88,9 @@ class CacheHandlerTest extends GroovyTestCase {
     }
 
     protected void tearDown() {
+        CacheHandler.memcacheLeases = false
+        CacheHandler.localCache = null
+        CacheHandler.memcacheCounters.reset()
         // uninstalling the local environment
         helper.tearDown()
         super.tearDown()
@@ -80,15 +99,11 @@ class CacheHandlerTest extends GroovyTestCase {
     void testClearCacheForUri() {
         def memcache = MemcacheServiceFactory.memcacheService
 
-        memcache['content-for-/photos'] = '1234'
-        memcache['content-type-for-/photos'] = 'text/html'
-        memcache['last-modified-/photos'] = new Date().time.toString()
+        memcache['content-for-/photos'] = new CacheEntry('1234'.bytes, 'text/html', new Date().time)
 
         memcache.clearCacheForUri('/photos')
 
         assert memcache['content-for-/photos'] == null
-        assert memcache['content-type-for-/photos'] == null
-        assert memcache['last-modified-/photos'] == null
     }
 
     void testCacheServingWithoutCaching() {
@@ -96,41 +111,590 @@ class CacheHandlerTest extends GroovyTestCase {
         CacheHandler.serve route, request, response
 		// TODO: verify
         // assert recorder == ['req.getRequestURI', 'req.getQueryString', 'req.getRequestURI', 'req.getRequestDispatcher', 'reqDisp.forward']
-		assert recorder == ['req.getServletPath', 'req.getQueryString', 'req.getRequestDispatcher', 'reqDisp.forward']
+		assert recorder == ['req.getServletPath', 'req.getRequestDispatcher', 'reqDisp.forward']
+    }
+
+    private RequestDispatcher writing(String page) {
+        [forward: { ServletRequest req, ServletResponse resp -> recorder << "reqDisp.forward"; resp.outputStream << page }] as RequestDispatcher
     }
 
     void testCacheServingWithCaching() {
+        requestDispatcher = writing('Hello')
         def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
         CacheHandler.serve route, request, response
 
-		// TODO: verify
-//        assert recorder == ['req.getRequestURI', 'req.getQueryString', 'req.getRequestURI', 'req.getHeader', 'resp.addHeader',
-//                'resp.addHeader', 'resp.addHeader', 'req.getRequestDispatcher', 'reqDisp.forward',
-//                'resp.getContentType', 'resp.setContentType', 'resp.getOutputStream', 'resp.getContentType']
-		assert recorder ==  ['req.getServletPath', 'req.getQueryString', 'req.getHeader', 'resp.addHeader', 'resp.addHeader', 'resp.addHeader', 'req.getRequestDispatcher', 'reqDisp.forward', 'resp.getContentType', 'resp.setContentType', 'resp.getOutputStream', 'resp.getContentType']
+		assert recorder ==  ['req.getServletPath', 'req.getQueryString', 'resp.addHeader', 'resp.addHeader', 'resp.addHeader', 'resp.addHeader', 'req.getRequestDispatcher', 'reqDisp.forward', 'resp.getOutputStream', 'resp.getContentType', 'resp.addHeader']
 
+        CacheEntry entry = cachedEntry { it }
+        assert entry.contentType == 'text/html'
+        assert responseHeaders.ETag == entry.etag
+    }
+
+    void testEmptyAndFailedPagesNotCached() {
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        def memcache = MemcacheServiceFactory.memcacheService
+        CacheHandler.localCache = new LocalCache(100000)
+
+        CacheHandler.serve route, request, response
+        [
+                { ServletResponse resp -> resp.outputStream << 'Not found'; resp.sendError(404) },
+                { ServletResponse resp -> resp.setStatus(500); resp.outputStream << 'Error' },
+                { ServletResponse resp -> resp.sendRedirect('/other') }
+        ].each { Closure page ->
+            requestDispatcher = [forward: { ServletRequest req, ServletResponse resp -> recorder << "reqDisp.forward"; page(resp) }] as RequestDispatcher
+            CacheHandler.serve route, request, response
+        }
+        CacheHandler.serve route, request, response
+
+        assert recorder.count('reqDisp.forward') == 5
+        assert !memcache.contains(CacheHandler.contentKey(uri))
+        assert CacheHandler.localCache.count == 0
+        assert !responseHeaders.ETag
+    }
+
+    void testPagesCachedByPreviousVersionsIgnored() {
+        MemcacheServiceFactory.memcacheService.put(CacheHandler.contentKey(uri), "Hello".bytes)
+        requestDispatcher = writing('Hello')
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+
+        CacheHandler.serve route, request, response
+
+        assert 'reqDisp.forward' in recorder
+        def memcache = MemcacheServiceFactory.memcacheService
+        long deadline = System.currentTimeMillis() + 5000
+        while (!(memcache.get(CacheHandler.contentKey(uri)) instanceof CacheEntry) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assert memcache.get(CacheHandler.contentKey(uri)) instanceof CacheEntry
     }
 
     void testCacheServingWithLastModified() {
         def memcache = MemcacheServiceFactory.memcacheService
-        memcache.put("last-modified-$uri".toString(), dateBefore)
+        def lastModified = new Date()
+        memcache.put("content-for-$uri".toString(), new CacheEntry("Hello".bytes, "text/html", lastModified.time))
         def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
         CacheHandler.serve route, request, response
 
-		// TODO: verify
-        // assert recorder == ['req.getRequestURI', 'req.getQueryString', 'req.getRequestURI', 'req.getHeader', 'resp.sendError', 'resp.setHeader']
-		assert recorder == ['req.getServletPath', 'req.getQueryString', 'req.getHeader', 'resp.sendError', 'resp.setHeader']
+		assert recorder == ['req.getServletPath', 'req.getQueryString', 'resp.setHeader', 'resp.setHeader', 'req.getHeader', 'req.getHeader', 'resp.setStatus']
+        assert responseStatus == HttpServletResponse.SC_NOT_MODIFIED
+        assert responseHeaders['Last-Modified'] == lastModified.format("EEE, dd MMM yyyy HH:mm:ss z", TimeZone.getTimeZone("GMT"))
     }
 
     void testCacheServingWithCachingAndInCache() {
         def memcache = MemcacheServiceFactory.memcacheService
-        memcache.put("content-for-$uri".toString(), "Hello")
-        memcache.put("content-type-for-$uri".toString(), "text/html")
+        memcache.put("content-for-$uri".toString(), new CacheEntry("Hello".bytes, "text/html", new Date().time))
+        headers = [:]
         def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
         CacheHandler.serve route, request, response
 
-		// TODO: verify
-        // assert recorder == ['req.getRequestURI', 'req.getQueryString', 'req.getRequestURI', 'req.getHeader', 'resp.setContentType', 'resp.getOutputStream']
-		assert recorder == ['req.getServletPath', 'req.getQueryString', 'req.getHeader', 'resp.setContentType', 'resp.getOutputStream']
+		assert recorder == ['req.getServletPath', 'req.getQueryString', 'resp.setHeader', 'resp.setHeader', 'req.getHeader', 'req.getHeader', 'resp.setContentType', 'resp.getOutputStream']
+    }
+
+    void testCacheServingWithMatchingETag() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        def entry = new CacheEntry("Hello".bytes, "text/html", new Date().time)
+        memcache.put("content-for-$uri".toString(), entry)
+        headers = ['If-None-Match': "\"other\", W/$entry.etag".toString()]
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        CacheHandler.serve route, request, response
+
+        assert recorder == ['req.getServletPath', 'req.getQueryString', 'resp.setHeader', 'resp.setHeader', 'req.getHeader', 'resp.setStatus']
+        assert responseStatus == HttpServletResponse.SC_NOT_MODIFIED
+        assert responseHeaders.ETag == entry.etag
+    }
+
+    void testCacheServingWithOtherETagIgnoresLastModified() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        memcache.put("content-for-$uri".toString(), new CacheEntry("Hello".bytes, "text/html", new Date().time))
+        headers = ['If-None-Match': '"other"', 'If-Modified-Since': dateAfter]
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        CacheHandler.serve route, request, response
+
+        assert recorder == ['req.getServletPath', 'req.getQueryString', 'resp.setHeader', 'resp.setHeader', 'req.getHeader', 'resp.setContentType', 'resp.getOutputStream']
+        assert !responseStatus
+    }
+
+    void testCacheServingFromLocalCache() {
+        CacheHandler.localCache = new LocalCache(100000)
+        requestDispatcher = writing('Hello')
+        headers = [:]
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+
+        CacheHandler.serve route, request, response
+        assert CacheHandler.localCache.count == 1
+
+        // served from the local cache even if the Memcache entry is gone
+        MemcacheServiceFactory.memcacheService.clearAll()
+        recorder.clear()
+        CacheHandler.serve route, request, response
+        assert recorder == ['req.getServletPath', 'req.getQueryString', 'resp.setHeader', 'resp.setHeader', 'req.getHeader', 'req.getHeader', 'resp.setContentType', 'resp.getOutputStream']
+
+        assert CacheHandler.statistics == [
+                memcache: [hits: 0, misses: 1],
+                local: [hits: 1, misses: 1, count: 1, size: CacheHandler.localCache.size, maxSize: 100000]
+        ]
+
+        CacheHandler.clearCacheForUri(uri)
+        assert CacheHandler.localCache.count == 0
+    }
+
+    void testLocalCacheFilledFromMemcache() {
+        CacheHandler.localCache = new LocalCache(100000)
+        MemcacheServiceFactory.memcacheService.put("content-for-$uri".toString(), new CacheEntry("Hello".bytes, "text/html", new Date().time))
+        headers = [:]
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+
+        CacheHandler.serve route, request, response
+        CacheHandler.serve route, request, response
+
+        assert CacheHandler.memcacheCounters.hits == 1
+        assert CacheHandler.localCache.counters.hits == 1
+    }
+
+    void testConcurrentMissesRenderedOnce() {
+        def env = ApiProxy.currentEnvironment
+        def forwards = new AtomicInteger()
+        def served = Collections.synchronizedList([])
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+
+        def threads = (1..5).collect {
+            Thread.start {
+                ApiProxy.environmentForCurrentThread = env
+                def content = new ByteArrayOutputStream()
+                def threadRequest = [
+                        getQueryString: { -> null },
+                        getHeader: { String h -> null },
+                        getAttribute: { String name -> },
+                        setAttribute: { String name, val -> },
+                        getServletPath: { -> uri },
+                        getPathInfo: { -> },
+                        getRequestDispatcher: { String s ->
+                            [forward: { ServletRequest req, ServletResponse resp ->
+                                forwards.incrementAndGet()
+                                Thread.sleep(300)
+                                resp.outputStream << 'Hello'
+                            }] as RequestDispatcher
+                        }
+                ] as HttpServletRequest
+                def threadResponse = [
+                        addHeader: { String h, String v -> },
+                        setHeader: { String h, String v -> },
+                        getContentType: { -> "text/html" },
+                        setContentType: { String ct -> },
+                        getOutputStream: { -> new CustomServletOutputStream(out: content) },
+                        isCommitted: { -> false }
+                ] as HttpServletResponse
+                CacheHandler.serve route, threadRequest, threadResponse
+                served << content.toString()
+            }
+        }
+        threads*.join()
+
+        assert forwards.get() == 1
+        assert served == ['Hello'] * 5
+    }
+
+    void testMissWaitsForLeaseHolder() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        def env = ApiProxy.currentEnvironment
+        CacheHandler.memcacheLeases = true
+        headers = [:]
+
+        // another instance is rendering the page
+        memcache.put(CacheHandler.leaseKey(uri), 1L)
+        Thread.start {
+            ApiProxy.environmentForCurrentThread = env
+            Thread.sleep(200)
+            memcache.put(CacheHandler.contentKey(uri), new CacheEntry("Hello".bytes, "text/html", new Date().time))
+        }
+
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        CacheHandler.serve route, request, response
+
+        assert !('reqDisp.forward' in recorder)
+        assert recorder[-1] == 'resp.getOutputStream'
+    }
+
+    void testMissWaitsForTheNewPageOfLeaseHolder() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        def env = ApiProxy.currentEnvironment
+        CacheHandler.memcacheLeases = true
+        headers = [:]
+        def served = new ByteArrayOutputStream()
+        output = new CustomServletOutputStream(out: served)
+
+        // another instance is replacing the expired page
+        memcache.put(CacheHandler.contentKey(uri), new CacheEntry("Old".bytes, "text/html", System.currentTimeMillis() - 500 * 1000))
+        memcache.put(CacheHandler.leaseKey(uri), 1L)
+        Thread.start {
+            ApiProxy.environmentForCurrentThread = env
+            Thread.sleep(300)
+            memcache.put(CacheHandler.contentKey(uri), new CacheEntry("New".bytes, "text/html", new Date().time))
+        }
+
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        CacheHandler.serve route, request, response
+
+        assert !('reqDisp.forward' in recorder)
+        assert served.toString() == 'New'
+    }
+
+    void testMissRenderedOnceLeaseHolderGivesUp() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        def env = ApiProxy.currentEnvironment
+        CacheHandler.memcacheLeases = true
+        headers = [:]
+        requestDispatcher = writing('Hello')
+
+        // another instance renders a page which can't be cached, and releases its lease
+        memcache.put(CacheHandler.leaseKey(uri), 1L)
+        Thread.start {
+            ApiProxy.environmentForCurrentThread = env
+            Thread.sleep(200)
+            memcache.delete(CacheHandler.leaseKey(uri))
+        }
+
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        long start = System.currentTimeMillis()
+        CacheHandler.serve route, request, response
+
+        assert 'reqDisp.forward' in recorder
+        assert System.currentTimeMillis() - start < CacheHandler.coalescingTimeout / 2
+    }
+
+    void testLeaseTakenAndReleased() {
+        CacheHandler.memcacheLeases = true
+        headers = [:]
+        def memcache = MemcacheServiceFactory.memcacheService
+        def leased = []
+        def leaseRequest = [
+                getQueryString: { -> null },
+                getHeader: { String h -> null },
+                getAttribute: { String name -> },
+                setAttribute: { String name, val -> },
+                getServletPath: { -> uri },
+                getPathInfo: { -> },
+                getRequestDispatcher: { String s ->
+                    [forward: { ServletRequest req, ServletResponse resp -> leased << memcache.contains(CacheHandler.leaseKey(uri)) }] as RequestDispatcher
+                }
+        ] as HttpServletRequest
+
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        CacheHandler.serve route, leaseRequest, response
+
+        assert leased == [true]
+        assert !memcache.contains(CacheHandler.leaseKey(uri))
+    }
+
+    /**
+     * Waits for the page put asynchronously in Memcache.
+     */
+    private CacheEntry cachedEntry(Closure<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 5000
+        CacheEntry entry = MemcacheServiceFactory.memcacheService.get(CacheHandler.contentKey(uri))
+        while (!(entry && condition(entry)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+            entry = MemcacheServiceFactory.memcacheService.get(CacheHandler.contentKey(uri))
+        }
+        entry
+    }
+
+    private Route staleRoute() {
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        route.staleWhileRevalidate = 1000
+        route.staleIfError = 2000
+        route
+    }
+
+    private int queuedTasks() {
+        LocalTaskQueueTestConfig.localTaskQueue.getQueueStateInfo()['default'].countTasks
+    }
+
+    void testStalePageServedWhileRevalidating() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        memcache.put(CacheHandler.contentKey(uri), new CacheEntry("Old".bytes, "text/html", System.currentTimeMillis() - 500 * 1000))
+        headers = [:]
+
+        CacheHandler.serve staleRoute(), request, response
+        CacheHandler.serve staleRoute(), request, response
+
+        assert !('reqDisp.forward' in recorder)
+        assert recorder.count('resp.getOutputStream') == 2
+        // a single revalidation is scheduled
+        assert queuedTasks() == 1
+        assert memcache.contains(CacheHandler.revalidationKey(uri))
+    }
+
+    void testRevalidationTaskRequestsThePageInTheContextOfTheApplication() {
+        MemcacheServiceFactory.memcacheService.put(CacheHandler.contentKey(uri), new CacheEntry("Old".bytes, "text/html", System.currentTimeMillis() - 500 * 1000))
+        headers = [:]
+        contextPath = "/app"
+
+        CacheHandler.serve staleRoute(), request, response
+
+        def tasks = LocalTaskQueueTestConfig.localTaskQueue.getQueueStateInfo()['default'].taskInfo
+        assert tasks*.url == ['/app/index']
+    }
+
+    void testRevalidationRequestRendersThePage() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        memcache.put(CacheHandler.contentKey(uri), new CacheEntry("Old".bytes, "text/html", System.currentTimeMillis() - 500 * 1000))
+        memcache.put(CacheHandler.revalidationKey(uri), 1L)
+        headers = [(CacheHandler.REVALIDATION_HEADER): 'true', 'X-AppEngine-QueueName': 'default']
+        def markedWhileRendering = []
+        requestDispatcher = [forward: { ServletRequest req, ServletResponse resp ->
+            recorder << "reqDisp.forward"
+            markedWhileRendering << memcache.contains(CacheHandler.revalidationKey(uri))
+            resp.outputStream << 'New'
+        }] as RequestDispatcher
+
+        CacheHandler.serve staleRoute(), request, response
+
+        assert 'reqDisp.forward' in recorder
+        assert responseHeaders['Cache-Control'] == 'max-age=100, stale-while-revalidate=1000, stale-if-error=2000'
+        // the marker is removed once the new page is stored
+        assert MemcacheServiceFactory.memcacheService.get(CacheHandler.contentKey(uri)).isFresh(100)
+        // no other revalidation is scheduled while the page is rendered
+        assert markedWhileRendering == [true]
+        assert !memcache.contains(CacheHandler.revalidationKey(uri))
+    }
+
+    void testRevalidationHeaderIgnoredOutsideOfTaskQueue() {
+        MemcacheServiceFactory.memcacheService.put(CacheHandler.contentKey(uri), new CacheEntry("Hello".bytes, "text/html", System.currentTimeMillis()))
+        headers = [(CacheHandler.REVALIDATION_HEADER): 'true']
+
+        CacheHandler.serve staleRoute(), request, response
+
+        assert !('reqDisp.forward' in recorder)
+    }
+
+    void testStalePageServedOnError() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        // expired, and too old to be revalidated in the background
+        memcache.put(CacheHandler.contentKey(uri), new CacheEntry("Old".bytes, "text/html", System.currentTimeMillis() - 1500 * 1000))
+        headers = [:]
+        requestDispatcher = [forward: { ServletRequest req, ServletResponse resp -> throw new IllegalStateException('datastore down') }] as RequestDispatcher
+
+        CacheHandler.serve staleRoute(), request, response
+
+        assert 'resp.reset' in recorder
+        assert recorder[-4..-1] == ['req.getHeader', 'req.getHeader', 'resp.setContentType', 'resp.getOutputStream']
+
+        // too old to be served even on error
+        memcache.put(CacheHandler.contentKey(uri), new CacheEntry("Old".bytes, "text/html", System.currentTimeMillis() - 2500 * 1000))
+        shouldFail(IllegalStateException) {
+            CacheHandler.serve staleRoute(), request, response
+        }
+    }
+
+    void testStalePageServedOnServerErrorStatus() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        memcache.put(CacheHandler.contentKey(uri), new CacheEntry("Old".bytes, "text/html", System.currentTimeMillis() - 1500 * 1000))
+        headers = [:]
+        def served = new ByteArrayOutputStream()
+        output = new CustomServletOutputStream(out: served)
+        requestDispatcher = [forward: { ServletRequest req, ServletResponse resp ->
+            resp.sendError(503)
+            resp.outputStream << 'Unavailable'
+        }] as RequestDispatcher
+
+        CacheHandler.serve staleRoute(), request, response
+
+        assert !('resp.sendError' in recorder)
+        assert 'resp.reset' in recorder
+        assert served.toString() == 'Old'
+
+        // too old to be served, the error is sent
+        memcache.put(CacheHandler.contentKey(uri), new CacheEntry("Old".bytes, "text/html", System.currentTimeMillis() - 2500 * 1000))
+        served.reset()
+        CacheHandler.serve staleRoute(), request, response
+
+        assert recorder.count('resp.sendError') == 1
+        assert served.toString() == ''
+    }
+
+    void testCompressedPageServedAsIs() {
+        def page = ('<p>Hello</p>' * 100).bytes
+        def entry = new CacheEntry(page, "text/html", new Date().time)
+        assert entry.compressed
+        assert entry.content.length < page.length
+        assert entry.decodedContent == page
+
+        MemcacheServiceFactory.memcacheService.put(CacheHandler.contentKey(uri), entry)
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        def served = new ByteArrayOutputStream()
+        output = new CustomServletOutputStream(out: served)
+
+        headers = ['Accept-Encoding': 'gzip, deflate']
+        CacheHandler.serve route, request, response
+        assert served.toByteArray() == entry.content
+        assert responseHeaders['Content-Encoding'] == 'gzip'
+        assert responseHeaders.Vary == 'Accept-Encoding'
+        assert responseHeaders.ETag == entry.gzipEtag
+
+        served.reset()
+        responseHeaders.clear()
+        headers = [:]
+        CacheHandler.serve route, request, response
+        assert served.toByteArray() == page
+        assert !responseHeaders['Content-Encoding']
+        assert responseHeaders.ETag == entry.etag
+    }
+
+    void testAcceptEncodingParsing() {
+        assert CacheHandler.acceptsGzip('gzip')
+        assert CacheHandler.acceptsGzip('deflate, GZIP;q=0.5')
+        assert CacheHandler.acceptsGzip('*')
+        assert !CacheHandler.acceptsGzip('gzip;q=0')
+        assert !CacheHandler.acceptsGzip('deflate, br')
+        assert !CacheHandler.acceptsGzip(null)
+        assert CacheHandler.acceptsDeflate('deflate, br')
+        assert !CacheHandler.acceptsDeflate('gzip, deflate;q=0')
+    }
+
+    void testCompressedPageServedWithDeflate() {
+        def page = ('<p>Hello</p>' * 100).bytes
+        def entry = new CacheEntry(page, "text/html", new Date().time)
+        MemcacheServiceFactory.memcacheService.put(CacheHandler.contentKey(uri), entry)
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        def served = new ByteArrayOutputStream()
+        output = new CustomServletOutputStream(out: served)
+
+        headers = ['Accept-Encoding': 'deflate']
+        CacheHandler.serve route, request, response
+
+        assert responseHeaders['Content-Encoding'] == 'deflate'
+        assert responseHeaders.ETag == entry.deflateEtag
+        assert new java.util.zip.InflaterInputStream(new ByteArrayInputStream(served.toByteArray())).bytes == page
+        // gzip is preferred when both are accepted
+        responseHeaders.clear()
+        headers = ['Accept-Encoding': 'deflate, gzip']
+        CacheHandler.serve route, request, response
+        assert responseHeaders['Content-Encoding'] == 'gzip'
+    }
+
+    void testIncompressiblePagesNotCompressed() {
+        def page = new byte[1000]
+        assert !new CacheEntry(page, "image/png", 0).compressed
+        assert !new CacheEntry("Hello".bytes, "text/html", 0).compressed
+        assert new CacheEntry(page, "image/svg+xml", 0).compressed
+    }
+
+    void testQueryNormalization() {
+        assert CacheHandler.normalizeQuery('b=2&a=1&&a=0', true, []) == 'a=1&a=0&b=2'
+        assert CacheHandler.normalizeQuery('id=3&utm_source=x&utm_medium=y&fbclid=z', false, ['utm_*', 'fbclid']) == 'id=3'
+        assert CacheHandler.normalizeQuery('flag&b=2', true, []) == 'b=2&flag'
+    }
+
+    void testCacheUri() {
+        def route = new Route("/news", "/news.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        route.sortParams = true
+        route.ignoreParams = ['utm_*']
+        route.vary = ['Accept-Language']
+
+        def request = [
+                getQueryString: { -> 'page=2&utm_source=mail&lang=en' },
+                getHeader: { String h -> h == 'Accept-Language' ? 'fr' : null }
+        ] as HttpServletRequest
+
+        assert CacheHandler.cacheUri(route, '/news', request) == '/news?lang=en&page=2#accept-language=fr'
+
+        def plainRoute = new Route("/news", "/news.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        assert CacheHandler.cacheUri(plainRoute, '/news', request) == '/news?page=2&utm_source=mail&lang=en'
+    }
+
+    void testVariesOnTheHeadersOfTheRoute() {
+        def route = new Route(uri, "/index.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        route.vary = ['Accept-Language']
+        headers = ['Accept-Language': 'fr']
+        requestDispatcher = writing('Bonjour')
+
+        CacheHandler.serve route, request, response
+        assert responseHeaders.Vary == 'Accept-Encoding, Accept-Language'
+        String key = CacheHandler.contentKey(uri + '#accept-language=fr')
+        for (int i = 0; i < 500 && !MemcacheServiceFactory.memcacheService.contains(key); i++) {
+            Thread.sleep(10)
+        }
+
+        // the cached page is served with the same header, compressed or not
+        responseHeaders.clear()
+        CacheHandler.serve route, request, response
+        assert recorder.count('reqDisp.forward') == 1
+        assert responseHeaders.Vary == 'Accept-Language'
+    }
+
+    void testLongKeysHashed() {
+        String longUri = '/search?q=' + ('x' * 300)
+        String key = CacheHandler.contentKey(longUri)
+
+        assert key.startsWith('content-for-')
+        assert key.length() == 'content-for-'.length() + 64
+        assert key == CacheHandler.contentKey(longUri)
+        assert key != CacheHandler.contentKey(longUri + 'y')
+        assert CacheHandler.contentKey('/short') == 'content-for-/short'
+        // multi-byte characters count for several bytes
+        assert CacheHandler.contentKey('/' + ('é' * 120)).length() == 'content-for-'.length() + 64
+    }
+
+    void testTaggedPagesInvalidated() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        def route = new Route("/article/@id", "/article.groovy?id=@id", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        route.tags = ['article-@id', 'articles']
+        uri = "/article/42"
+        headers = [:]
+        int forwards = 0
+        requestDispatcher = [forward: { ServletRequest req, ServletResponse resp -> forwards++; resp.outputStream << 'Article' }] as RequestDispatcher
+
+        assert route.tagsFor(route.forUri(uri, request)) == ['article-42', 'articles']
+
+        CacheHandler.serve route, request, response
+        CacheEntry entry = cachedEntry { it }
+        assert entry.tagGenerations.keySet() == [CacheHandler.tagKey('article-42'), CacheHandler.tagKey('articles')] as Set
+        CacheHandler.serve route, request, response
+        assert forwards == 1
+
+        // other articles are not invalidated
+        memcache.clearCacheForTag('article-43')
+        CacheHandler.serve route, request, response
+        assert forwards == 1
+
+        memcache.clearCacheForTag('article-42')
+        CacheHandler.serve route, request, response
+        assert forwards == 2
+
+        cachedEntry { CacheEntry cached -> cached.isCurrent(memcache.getAll(cached.tagGenerations.keySet())) }
+        CacheHandler.clearCacheForTag('articles')
+        CacheHandler.serve route, request, response
+        assert forwards == 3
+    }
+
+    void testTaggedPagesInvalidatedInLocalCache() {
+        CacheHandler.localCache = new LocalCache(100000)
+        def route = new Route("/article/@id", "/article.groovy?id=@id", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 100, false, false, false, 0)
+        route.tags = ['article-@id']
+        uri = "/article/42"
+        headers = [:]
+        int forwards = 0
+        requestDispatcher = [forward: { ServletRequest req, ServletResponse resp -> forwards++; resp.outputStream << 'Article' }] as RequestDispatcher
+
+        CacheHandler.serve route, request, response
+        CacheHandler.serve route, request, response
+        assert forwards == 1
+        assert CacheHandler.localCache.counters.hits == 1
+
+        CacheHandler.clearCacheForTag('article-42')
+        CacheHandler.serve route, request, response
+        assert forwards == 2
+    }
+
+    void testCacheEntryETag() {
+        def entry = new CacheEntry("Hello".bytes, "text/html", 1234567L)
+
+        assert entry.etag == '"8b1a9953c4611296a827abf8c47804d7"'
+        assert entry.notModifiedSince(1234000L)
+        assert !entry.notModifiedSince(1233999L)
+        assert entry.matches('*')
+        assert entry.matches(entry.etag)
+        assert !entry.matches('"8b1a9953"')
     }
 }
@@ -1,5 +1,8 @@
 package groovyx.gaelyk.cache
 
+import groovyx.gaelyk.cache.CachedResponse.CustomServletOutputStream
+import groovyx.gaelyk.templates.TemplateResponse
+
 import javax.servlet.http.HttpServletResponse
 
 /**
@@ -7,21 +10,25 @@ import javax.servlet.http.HttpServletResponse
  */
 class CachedResponseTest extends GroovyTestCase {
 
-    void testCachedResponseWriter() {
-        def response = [:] as HttpServletResponse
+    private ByteArrayOutputStream client = new ByteArrayOutputStream()
 
+    private HttpServletResponse response = [
+            getOutputStream: { -> new CustomServletOutputStream(out: client) },
+            flushBuffer: { -> },
+            getCharacterEncoding: { -> "UTF-8" }
+    ] as HttpServletResponse
+
+    void testCachedResponseWriter() {
         def cachedResponse = new CachedResponse(response)
 
         cachedResponse.writer.print "hello"
         cachedResponse.writer.flush()
 
         assert cachedResponse.output.toByteArray() == "hello".getBytes()
-
+        assert client.toByteArray() == "hello".getBytes()
     }
 
     void testCachedResponseOutputStream() {
-        def response = [:] as HttpServletResponse
-
         def cachedResponse = new CachedResponse(response)
 
         cachedResponse.outputStream.write "goodbye".getBytes()
@@ -29,12 +36,10 @@ class CachedResponseTest extends GroovyTestCase {
         cachedResponse.outputStream.close()
 
         assert cachedResponse.output.toByteArray() == "goodbye".getBytes()
-
+        assert client.toByteArray() == "goodbye".getBytes()
     }
 
     void testCachedResponseOutputStreamWriteAnInt() {
-        def response = [:] as HttpServletResponse
-
         def cachedResponse = new CachedResponse(response)
 
         cachedResponse.outputStream.write 17
@@ -42,6 +47,53 @@ class CachedResponseTest extends GroovyTestCase {
         cachedResponse.outputStream.close()
 
         assert cachedResponse.output.toByteArray()[0] == 17
+    }
+
+    void testOutputStreamedBeforeTheEndOfThePage() {
+        def cachedResponse = new CachedResponse(response)
+
+        cachedResponse.writer.print "first"
+        cachedResponse.flushBuffer()
+
+        assert client.toString() == "first"
+    }
+
+    void testTextPrintedBeforeTheOutputStreamComesFirst() {
+        def cachedResponse = new CachedResponse(response)
+
+        cachedResponse.writer.print "before "
+        def templateResponse = new TemplateResponse(cachedResponse)
+        templateResponse.writer.print "template"
+        templateResponse.finish()
+        cachedResponse.finish()
+
+        assert cachedResponse.output.toByteArray() == "before template".getBytes()
+        assert client.toString() == "before template"
+    }
+
+    void testTooBigPageStreamedButNotCached() {
+        def cachedResponse = new CachedResponse(response)
+        byte[] chunk = new byte[100 * 1000]
+
+        11.times { cachedResponse.outputStream.write chunk }
+
+        assert cachedResponse.output.overflowed
+        assert cachedResponse.output.toByteArray() == null
+        assert client.size() == 1100 * 1000
+    }
+
+    void testCacheBufferGrowsUpToItsMaximumSize() {
+        def buffer = new CacheBuffer(20000)
+
+        buffer.write new byte[9000]
+        buffer.write new byte[9000]
+        assert buffer.size() == 18000
+        assert !buffer.overflowed
+
+        buffer.write new byte[3000]
+        assert buffer.overflowed
 
+        buffer.release()
+        assert buffer.toByteArray() == null
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2009-2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gaelyk.cache
+
+import groovyx.gaelyk.datastore.Order
+
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.GeoPt
+import com.google.appengine.api.datastore.KeyFactory
+import com.google.appengine.api.datastore.Text
+import com.google.appengine.api.memcache.Expiration
+import com.google.appengine.api.memcache.MemcacheService
+import com.google.appengine.api.memcache.MemcacheServiceFactory
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+
+/**
+ * Tests of the compact Memcache codec and of its use by the Memcache extension methods.
+ */
+class CompactMemcacheCodecTest extends GroovyTestCase {
+
+    private LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalMemcacheServiceTestConfig(),
+            new LocalDatastoreServiceTestConfig()
+    )
+
+    private CompactMemcacheCodec codec = new CompactMemcacheCodec()
+
+    protected void setUp() {
+        super.setUp()
+        helper.setUp()
+    }
+
+    protected void tearDown() {
+        MemcacheValues.codec = null
+        helper.tearDown()
+        super.tearDown()
+    }
+
+    private roundTrip(value) {
+        codec.decode(codec.encode(value))
+    }
+
+    void testCommonValues() {
+        def values = [null, true, false, 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 42L, Long.MIN_VALUE, Long.MAX_VALUE,
+                3.14d, -0.5f, (short) -12, (byte) 7, 'c' as char, '', 'Gaelyk', 'élève ☃', new Date(1234567890123L),
+                [1, 'two', [3.0d]], [a: 1, b: [c: null]], ['x', 'y'] as Set]
+
+        values.each { value ->
+            def decoded = roundTrip(value)
+            assert decoded == value
+            assert decoded?.getClass() == value?.getClass() || value instanceof Collection || value instanceof Map
+        }
+
+        assert roundTrip("${1 + 1} GStrings") == '2 GStrings'
+        assert roundTrip([1, 2, 3] as byte[]) == [1, 2, 3] as byte[]
+        assert roundTrip([b: 2, a: 1]).keySet().toList() == ['b', 'a']
+    }
+
+    void testEntitiesAndKeys() {
+        def parent = KeyFactory.createKey('author', 'glaforge')
+        def entity = new Entity('book', 12L, parent)
+        entity.title = 'Groovy in Action'
+        entity.setUnindexedProperty('summary', new Text('A book about Groovy'))
+        entity.location = new GeoPt(48.8f, 2.3f)
+        entity.tags = ['groovy', 'java']
+
+        def decoded = roundTrip(entity)
+
+        assert decoded == entity
+        assert decoded.properties == entity.properties
+        assert decoded.isUnindexedProperty('summary')
+        assert !decoded.isUnindexedProperty('title')
+        assert roundTrip(parent) == parent
+
+        def incomplete = roundTrip(new Entity('book', parent))
+        assert !incomplete.key.complete
+        assert incomplete.parent == parent
+    }
+
+    void testAnnotatedEntities() {
+        def order = roundTrip(new Order(id: 42))
+
+        assert order instanceof Order
+        assert order.id == 42
+    }
+
+    void testBigNumbers() {
+        [new BigDecimal('12.50'), -0.001, 1e-40, 123456789012345678901234567890.5, 0.0].each { BigDecimal value ->
+            BigDecimal decoded = roundTrip(value)
+            assert decoded == value
+            assert decoded.scale() == value.scale()
+        }
+        assert roundTrip([price: 1.5]) == [price: 1.5]
+        assert roundTrip(-(2G ** 100)) == -(2G ** 100)
+        assert roundTrip(0G) == 0G
+
+        def bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).withStream { it.writeObject(12.50) }
+        assert codec.encode(12.50).length * 10 < bytes.size()
+    }
+
+    void testOtherValuesAreSerialized() {
+        assert roundTrip(new StringBuilder('Gaelyk')).toString() == 'Gaelyk'
+
+        shouldFail(IllegalArgumentException) {
+            codec.encode(new Object())
+        }
+    }
+
+    void testEncodingIsSmallerThanJavaSerialization() {
+        def value = [id: 1234L, name: 'Gaelyk', tags: ['groovy', 'gae'], active: true]
+        def bytes = new ByteArrayOutputStream()
+        new ObjectOutputStream(bytes).withStream { it.writeObject(value) }
+
+        assert codec.encode(value).length * 5 < bytes.size()
+    }
+
+    void testExtensionMethodsUseTheCodec() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        memcache.put('native', [before: 'codec'])
+
+        MemcacheValues.codec = codec
+        memcache['map'] = [a: 1]
+        memcache.putAll([list: [1, 2], raw: [9] as byte[]], 60)
+
+        assert memcache.getIdentifiable('map').value instanceof byte[]
+        assert memcache['map'] == [a: 1]
+        assert memcache.getAll(['map', 'list']) == [map: [a: 1], list: [1, 2]]
+        assert memcache['raw'] == [9] as byte[]
+        assert memcache.async['list'].get() == [1, 2]
+        assert memcache.batch()['map'].value == [a: 1]
+
+        // values put without the codec are read as is
+        assert memcache['native'] == [before: 'codec']
+
+        // like the native methods, with a String key
+        memcache.put('put', [b: 2])
+        memcache.put('expiring', [c: 3], Expiration.byDeltaSeconds(60))
+        assert !memcache.put('put', 'ignored', null, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)
+        memcache.async.put('async', [d: 4]).get()
+        assert memcache.getIdentifiable('put').value instanceof byte[]
+        assert memcache.getIdentifiable('async').value instanceof byte[]
+        assert memcache.get('put') == [b: 2]
+        assert memcache['expiring'] == [c: 3]
+        assert memcache['async'] == [d: 4]
+    }
+}
@@ -0,0 +1,66 @@
+package groovyx.gaelyk.cache
+
+import java.text.SimpleDateFormat
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+/**
+ * Tests for the HTTP dates formatting and parsing.
+ */
+class HttpDateCodecTest extends GroovyTestCase {
+
+    void testFormat() {
+        assert HttpDateCodec.format(784111777000L) == 'Sun, 06 Nov 1994 08:49:37 GMT'
+        assert HttpDateCodec.format(784111777999L) == 'Sun, 06 Nov 1994 08:49:37 GMT'
+    }
+
+    void testParse() {
+        assert HttpDateCodec.parse('Sun, 06 Nov 1994 08:49:37 GMT') == 784111777000L
+        assert HttpDateCodec.parse('Sun, 6 Nov 1994 08:49:37 GMT') == 784111777000L
+        assert HttpDateCodec.parse('yesterday') == null
+        assert HttpDateCodec.parse('') == null
+        assert HttpDateCodec.parse(null) == null
+    }
+
+    void testCurrentSecondReused() {
+        boolean reused = false
+        // retry if the second changes in between
+        for (int i = 0; i < 3 && !reused; i++) {
+            long now = System.currentTimeMillis()
+            String formatted = HttpDateCodec.format(now)
+            // other dates don't replace the current second
+            assert HttpDateCodec.format(now + 3600 * 1000L) != formatted
+            reused = HttpDateCodec.format(now).is(formatted)
+        }
+        assert reused
+    }
+
+    void testConcurrentFormattingAndParsing() {
+        def reference = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+        reference.timeZone = TimeZone.getTimeZone("GMT")
+        long start = System.currentTimeMillis()
+        List<Long> dates = (0..<2000).collect { int i -> start + (i % 50) * 1000L + i * 7L - (i % 3) * 86400 * 1000L }
+        Map<Long, String> expected = dates.collectEntries { long date -> [(date): reference.format(new Date(date))] }
+
+        def executor = Executors.newFixedThreadPool(8)
+        try {
+            def results = executor.invokeAll((1..8).collect { int thread ->
+                { ->
+                    int errors = 0
+                    for (int i = 0; i < 10; i++) {
+                        for (Long date in (thread % 2 ? dates : dates.reverse())) {
+                            String formatted = HttpDateCodec.format(date)
+                            if (formatted != expected[date] || HttpDateCodec.parse(formatted) != date - date % 1000) {
+                                errors++
+                            }
+                        }
+                    }
+                    errors
+                } as Callable<Integer>
+            })
+            assert results*.get() == [0] * 8
+        } finally {
+            executor.shutdown()
+        }
+    }
+}
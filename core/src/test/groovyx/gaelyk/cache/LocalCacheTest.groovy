@@ -0,0 +1,78 @@
+package groovyx.gaelyk.cache
+
+/**
+ * Tests for the in-memory tier of the page cache.
+ */
+class LocalCacheTest extends GroovyTestCase {
+
+    private long later = System.currentTimeMillis() + 60000
+
+    private CacheEntry page(int length) {
+        new CacheEntry(new byte[length], 'image/png', System.currentTimeMillis())
+    }
+
+    void testHitsAndMisses() {
+        def cache = new LocalCache(10000)
+
+        assert cache.get('/a') == null
+        def entry = page(100)
+        cache.put('/a', entry, later)
+
+        assert cache.get('/a').is(entry)
+        assert cache.counters.hits == 1
+        assert cache.counters.misses == 1
+        assert cache.counters.hitRatio == 0.5d
+    }
+
+    void testLeastRecentlyUsedPagesEvicted() {
+        def cache = new LocalCache(1000)
+
+        cache.put('/a', page(300), later)
+        cache.put('/b', page(300), later)
+        assert cache.get('/a')
+        cache.put('/c', page(300), later)
+
+        assert cache.count == 2
+        assert cache.get('/a')
+        assert cache.get('/b') == null
+        assert cache.get('/c')
+        assert cache.size <= cache.maxSize
+    }
+
+    void testSizeAccounting() {
+        def cache = new LocalCache(10000)
+
+        cache.put('/a', page(1000), later)
+        long size = cache.size
+        assert size > 1000
+
+        cache.put('/a', page(2000), later)
+        assert cache.size == size + 1000
+
+        cache.remove('/a')
+        assert cache.size == 0
+        assert cache.count == 0
+    }
+
+    void testPagesBiggerThanTheCacheNotCached() {
+        def cache = new LocalCache(1000)
+
+        cache.put('/big', page(2000), later)
+
+        assert cache.count == 0
+        assert cache.get('/big') == null
+    }
+
+    void testExpiredPagesDiscarded() {
+        def cache = new LocalCache(10000)
+
+        cache.put('/expired', page(10), System.currentTimeMillis() - 1)
+        cache.put('/expiring', page(10), System.currentTimeMillis() + 50)
+        assert cache.count == 1
+
+        Thread.sleep(100)
+
+        assert cache.get('/expiring') == null
+        assert cache.size == 0
+    }
+}
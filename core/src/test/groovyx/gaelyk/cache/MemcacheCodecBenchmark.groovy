@@ -0,0 +1,70 @@
+package groovyx.gaelyk.cache
+
+import groovy.transform.CompileStatic
+
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.KeyFactory
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+
+/**
+ * Microbenchmark comparing the size and the encoding and decoding time of the {@link CompactMemcacheCodec}
+ * with the Java serialization used by the App Engine SDK, for a map, a list of maps and a datastore entity.
+ * <p>
+ * Run with <code>gradle benchmark -Pbenchmark=groovyx.gaelyk.cache.MemcacheCodecBenchmark</code>
+ */
+@CompileStatic
+class MemcacheCodecBenchmark {
+
+    private static final int WARMUP = 20000
+    private static final int ITERATIONS = 100000
+
+    static void main(String[] args) {
+        // datastore keys need an application environment
+        LocalServiceTestHelper helper = new LocalServiceTestHelper()
+        helper.setUp()
+
+        Map<String, Object> map = [id: 1234L, name: 'Gaelyk', tags: ['groovy', 'gae', 'toolkit'], active: true, rating: 4.5d] as Map<String, Object>
+        List<Object> list = (0..<20).collect { int i -> [id: i, title: "Article $i".toString(), published: new Date(1350000000000L + i)] } as List<Object>
+        Entity entity = new Entity(KeyFactory.createKey('article', 42L))
+        entity.setProperty('title', 'Caching with Gaelyk')
+        entity.setProperty('views', 1234L)
+        entity.setProperty('tags', ['memcache', 'performance'])
+        entity.setUnindexedProperty('published', new Date(1350000000000L))
+
+        CompactMemcacheCodec codec = new CompactMemcacheCodec()
+        [map: map, 'list of maps': list, entity: entity].each { String name, Object value ->
+            Closure<Object> compact = { codec.decode(codec.encode(value)) }
+            Closure<Object> serialization = { deserialize(serialize(value)) }
+            println "$name: compact codec ${codec.encode(value).length} bytes, ${measure(compact)} ns/round trip, " +
+                    "Java serialization ${serialize(value).length} bytes, ${measure(serialization)} ns/round trip"
+        }
+
+        helper.tearDown()
+    }
+
+    private static byte[] serialize(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+        ObjectOutputStream out = new ObjectOutputStream(bytes)
+        out.writeObject(value)
+        out.close()
+        bytes.toByteArray()
+    }
+
+    private static Object deserialize(byte[] bytes) {
+        new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject()
+    }
+
+    private static long measure(Closure<Object> roundTrip) {
+        int found = 0
+        for (int i = 0; i < WARMUP; i++) {
+            found += roundTrip.call() != null ? 1 : 0
+        }
+        long start = System.nanoTime()
+        for (int i = 0; i < ITERATIONS; i++) {
+            found += roundTrip.call() != null ? 1 : 0
+        }
+        long elapsed = System.nanoTime() - start
+        assert found == WARMUP + ITERATIONS
+        elapsed.intdiv(ITERATIONS).longValue()
+    }
+}
@@ -91,4 +91,66 @@ class MemcacheExtensionMethodsTest extends GroovyTestCase {
         assert async.name.get() == 'Guillaume'
         assert async['age'].get() == 34
     }
+
+    void testGetAndPutSeveralKeysAtOnce() {
+        def memcache = MemcacheServiceFactory.memcacheService
+
+        def id = 2
+        memcache.putAll(["item-1": 'one', "item-${id}": 'two'], 1.hour)
+
+        assert memcache['item-2'] == 'two'
+        assert memcache.getAll(['item-1', "item-${id}", 'item-3']) == ['item-1': 'one', 'item-2': 'two']
+
+        // the subscript notation still takes a list as a single key
+        memcache[['item-1', 'item-2']] = 'list key'
+        assert memcache[['item-1', 'item-2']] == 'list key'
+    }
+
+    void testAsyncGetAndPutSeveralKeysAtOnce() {
+        def async = MemcacheServiceFactory.memcacheService.async
+
+        async.putAll([a: 1, b: 2], 10.minutes).get()
+
+        assert async.getAll(['a', 'b', 'c']).get() == [a: 1, b: 2]
+    }
+
+    void testBatchFetchesPendingKeysWithASingleCall() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        memcache.putAll([title: 'Gaelyk', summary: 'Groovy toolkit'], 1.hour)
+
+        def batch = memcache.batch()
+        def title = batch['title']
+        def summary = batch['summary']
+        def missing = batch["miss${'ing'}"]
+
+        assert batch.calls == 0
+        assert !title.done
+
+        assert "$title: $summary" == 'Gaelyk: Groovy toolkit'
+        assert missing.get() == null
+        assert summary.done && missing.done
+        assert batch.calls == 1
+
+        assert batch['title'].value == 'Gaelyk'
+        assert batch.calls == 1
+    }
+
+    void testBatchValuesTestedLikeTheirValuesAndComparedThroughThem() {
+        def memcache = MemcacheServiceFactory.memcacheService
+        memcache.putAll([title: 'Gaelyk', empty: ''], 1.hour)
+
+        def batch = memcache.batch()
+
+        assert batch['title']
+        assert !batch['missing']
+        assert !batch['empty']
+        assert batch['title'].value == 'Gaelyk'
+        assert batch['missing'].value == null
+        // the deferred values are kept in collections without calling Memcache
+        def title = batch['title']
+        assert [title] as Set == [title] as Set
+        assert batch['title'] != batch['title']
+        // one call for each key used right after being read
+        assert batch.calls == 3
+    }
 }
@@ -0,0 +1,169 @@
+package groovyx.gaelyk.datastore
+
+import groovyx.gaelyk.cache.MemcacheValues
+import spock.lang.Specification
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory
+import com.google.appengine.api.datastore.Entity
+import com.google.appengine.api.datastore.EntityNotFoundException
+import com.google.appengine.api.memcache.MemcacheServiceFactory
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper
+
+class EntityCacheSpec extends Specification {
+
+    LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig())
+
+    def datastore = DatastoreServiceFactory.datastoreService
+    def memcache = MemcacheServiceFactory.memcacheService
+
+    def setup() {
+        helper.setUp()
+        EntityCache.cacheKind('photo')
+    }
+
+    def cleanup() {
+        EntityCache.uncacheKind('photo')
+        EntityCache.uncacheKind('CachedPogo')
+        EntityCache.invalidationDelay = 1000
+        EntityCache.asyncInvalidationDelay = 10000
+        helper.tearDown()
+    }
+
+    def "Entities of cached kinds are read through Memcache"() {
+        Entity photo = new Entity('photo')
+        photo.title = 'first'
+        def key = datastore.put(photo)
+
+        expect:
+        key.get().title == 'first'
+        memcache.contains(EntityCache.cacheKey(key))
+
+        when: 'the entity is changed behind the cache'
+        photo.title = 'second'
+        datastore.put(photo)
+
+        then:
+        key.get().title == 'first'
+    }
+
+    def "Other kinds are not cached"() {
+        def key = datastore.put(new Entity('album'))
+
+        expect:
+        key.get()
+        !memcache.contains(EntityCache.cacheKey(key))
+    }
+
+    def "Saving and deleting invalidate the cached entity"() {
+        Entity photo = new Entity('photo')
+        photo.title = 'first'
+        def key = photo.save()
+        key.get()
+
+        when:
+        photo.title = 'second'
+        photo.save()
+
+        then: 'the entity is read from the datastore, and not cached again right away'
+        !memcache.contains(EntityCache.cacheKey(key))
+        key.get().title == 'second'
+        !memcache.contains(EntityCache.cacheKey(key))
+
+        when:
+        key.delete()
+        key.get()
+
+        then:
+        thrown(EntityNotFoundException)
+    }
+
+    def "Entities are read from the datastore inside transactions"() {
+        Entity photo = new Entity('photo')
+        photo.title = 'first'
+        def key = datastore.put(photo)
+        key.get()
+        photo.title = 'second'
+        datastore.put(photo)
+
+        when:
+        def title = null
+        datastore.withTransaction {
+            title = key.get().title
+        }
+
+        then:
+        title == 'second'
+    }
+
+    def "Writes of a transaction are invalidated again once committed"() {
+        Entity photo = new Entity('photo')
+        photo.title = 'first'
+        def key = photo.save()
+        def cached = MemcacheValues.encode(key.get())
+
+        when:
+        datastore.withTransaction {
+            photo.title = 'second'
+            photo.save()
+            // a get outside of the transaction caches the previous version before the commit
+            memcache.put(EntityCache.cacheKey(key), cached)
+        }
+
+        then:
+        !memcache.contains(EntityCache.cacheKey(key))
+        key.get().title == 'second'
+    }
+
+    def "Asynchronous writes are invalidated again once completed"() {
+        Entity photo = new Entity('photo')
+        photo.title = 'first'
+        def key = photo.save()
+        def cached = MemcacheValues.encode(key.get())
+
+        when:
+        photo.title = 'second'
+        def saved = photo.asyncSave()
+        // a get caches the previous version before the write completes
+        memcache.put(EntityCache.cacheKey(key), cached)
+        saved.get()
+
+        then:
+        !memcache.contains(EntityCache.cacheKey(key))
+        key.get().title == 'second'
+
+        when:
+        def deleted = key.asyncDelete()
+        memcache.put(EntityCache.cacheKey(key), cached)
+        deleted.get()
+
+        then:
+        !memcache.contains(EntityCache.cacheKey(key))
+    }
+
+    def "Annotated classes can be cached"() {
+        EntityCache.invalidationDelay = 0
+        def obj = new GroovyShell().evaluate '''
+            @groovyx.gaelyk.datastore.Entity(cached = true)
+            class CachedPogo {
+                String title
+            }
+
+            new CachedPogo(title: 'cached')
+        '''
+        def key = obj.save()
+
+        expect:
+        EntityCache.isCached('CachedPogo')
+        obj.getClass().getMethod('get', long).invoke(null, key.id).title == 'cached'
+        memcache.contains(EntityCache.cacheKey(key))
+
+        when:
+        obj.delete()
+
+        then:
+        !memcache.contains(EntityCache.cacheKey(key))
+        obj.getClass().getMethod('get', long).invoke(null, key.id) == null
+    }
+}
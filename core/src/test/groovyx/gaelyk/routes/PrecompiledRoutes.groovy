@@ -0,0 +1,11 @@
+package groovyx.gaelyk.routes
+
+/**
+ * Routes script compiled with the test classes, as the precompiled routes of an application would be.
+ */
+class PrecompiledRoutes extends RoutesBaseScript {
+    def run() {
+        get "/precompiled", forward: "/precompiled.groovy"
+        jabber presence, to: "/presence.groovy"
+    }
+}
@@ -0,0 +1,68 @@
+package groovyx.gaelyk.routes
+
+import groovy.transform.CompileStatic
+
+import javax.servlet.http.HttpServletRequest
+
+/**
+ * Microbenchmark comparing the compiled {@link RouteDispatcher} with the former linear scan
+ * over all the routes, for 10, 100 and 1000 routes.
+ * <p>
+ * Run with <code>gradle benchmark -Pbenchmark=groovyx.gaelyk.routes.RouteDispatcherBenchmark</code>
+ */
+@CompileStatic
+class RouteDispatcherBenchmark {
+
+    private static final int WARMUP = 20000
+    private static final int ITERATIONS = 100000
+
+    static void main(String[] args) {
+        for (int size in [10, 100, 1000]) {
+            SortedSet<Route> routes = createRoutes(size)
+            RouteDispatcher dispatcher = new RouteDispatcher(routes)
+            List<String> uris = (0..<size).collect { int i -> i % 2 ? "/section$i/item/42".toString() : "/page$i".toString() }
+            HttpServletRequest request = [setAttribute: { String name, value -> }] as HttpServletRequest
+
+            Closure<Integer> linear = { String uri ->
+                for (Route route in routes) {
+                    if (route.method == HttpMethod.ALL || route.method.toString() == 'GET') {
+                        if (route.forUri(uri, request).matches) return 1
+                    }
+                }
+                return 0
+            }
+            Closure<Integer> compiled = { String uri ->
+                for (Route route in dispatcher.candidates('GET', uri)) {
+                    if (route.forUri(uri, request).matches) return 1
+                }
+                return 0
+            }
+
+            println "$size routes: linear scan ${measure(linear, uris)} ns/request, compiled dispatcher ${measure(compiled, uris)} ns/request"
+        }
+    }
+
+    private static SortedSet<Route> createRoutes(int size) {
+        SortedSet<Route> routes = new TreeSet<Route>()
+        for (int i = 0; i < size; i++) {
+            String pattern = i % 2 ? "/section$i/item/@id" : "/page$i"
+            HttpMethod method = i % 3 ? HttpMethod.GET : HttpMethod.ALL
+            routes << new Route(pattern, "/destination.groovy", method, RedirectionType.FORWARD, null, null, 0, false, false, false, i)
+        }
+        routes
+    }
+
+    private static long measure(Closure<Integer> lookup, List<String> uris) {
+        int found = 0
+        for (int i = 0; i < WARMUP; i++) {
+            found += lookup.call(uris[i % uris.size()])
+        }
+        long start = System.nanoTime()
+        for (int i = 0; i < ITERATIONS; i++) {
+            found += lookup.call(uris[i % uris.size()])
+        }
+        long elapsed = System.nanoTime() - start
+        assert found == WARMUP + ITERATIONS
+        elapsed.intdiv(ITERATIONS).longValue()
+    }
+}
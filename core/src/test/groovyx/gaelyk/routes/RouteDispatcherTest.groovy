@@ -0,0 +1,88 @@
+package groovyx.gaelyk.routes
+
+import static groovyx.gaelyk.TestUtil.request as r
+
+/**
+ * Tests for the compiled routes dispatch table.
+ */
+class RouteDispatcherTest extends GroovyTestCase {
+
+    private Route route(String route, HttpMethod method = HttpMethod.ALL, int index) {
+        new Route(route, "/destination.groovy", method, RedirectionType.FORWARD, null, null, 0, false, false, false, index)
+    }
+
+    void testLiteralSegments() {
+        def inputOutputExpected = [
+            "/":                                [""],
+            "/company/about":                   ["company", "about"],
+            "/blog/":                           ["blog", ""],
+            "/blog/@year/@month":               ["blog"],
+            "/blog/archive/*.html":             ["blog", "archive"],
+            "/index.html":                      ["index.html"],
+            "/**":                              [],
+            "/**/*.groovy":                     [],
+            "/@file.@extension":                [],
+            "relative/path":                    [],
+        ]
+
+        inputOutputExpected.each { route, segments ->
+            assert RouteDispatcher.literalSegments(route) == segments
+        }
+    }
+
+    void testOnlyPossibleRoutesAreCandidates() {
+        def blog    = route("/blog/@year", 0)
+        def about   = route("/company/about", 1)
+        def company = route("/company/@page", 2)
+        def any     = route("/**", 3)
+
+        def dispatcher = new RouteDispatcher([blog, about, company, any])
+
+        assert dispatcher.candidates("GET", "/blog/2009") as List == [blog, any]
+        assert dispatcher.candidates("GET", "/company/about") as List == [about, company, any]
+        assert dispatcher.candidates("GET", "/company/team") as List == [company, any]
+        assert dispatcher.candidates("GET", "/elsewhere") as List == [any]
+        assert dispatcher.candidates("GET", "/company/about;jsessionid=17o5jy7lz9t4t") as List == [about, company, any]
+        assert dispatcher.candidates("GET", "/company/about?x=y") as List == [about, company, any]
+    }
+
+    void testCandidatesKeepIndexOrder() {
+        def any     = route("/**", -10)
+        def first   = route("/a/b/c", 5)
+        def second  = route("/a/@b", 1)
+        def third   = route("/a/b/@c", 3)
+
+        def dispatcher = new RouteDispatcher(new TreeSet<Route>([first, second, third, any]))
+
+        assert dispatcher.candidates("GET", "/a/b/c") as List == [any, second, third, first]
+    }
+
+    void testRoutesAreGroupedByMethod() {
+        def get    = route("/item/@id", HttpMethod.GET, 0)
+        def post   = route("/item/@id", HttpMethod.POST, 1)
+        def all    = route("/item/@id", HttpMethod.ALL, 2)
+
+        def dispatcher = new RouteDispatcher([get, post, all])
+
+        assert dispatcher.candidates("GET", "/item/1") as List == [get, all]
+        assert dispatcher.candidates("POST", "/item/1") as List == [post, all]
+        assert dispatcher.candidates("OPTIONS", "/item/1") as List == [all]
+    }
+
+    void testSameMatchesAsLinearScan() {
+        def routes = new TreeSet<Route>()
+        ["/", "/*", "/*.*", "/company/about", "/*/@from/*/@to", "/say/@from/to/@to", "/script/@id",
+         "/blog/@year/@month/@day/@title", "/@file.@extension", "/**/@file.@extension", "/**/*.groovy",
+         "/blog/", "/blog/archive"].eachWithIndex { String rt, int i -> routes << route(rt, i) }
+
+        def dispatcher = new RouteDispatcher(routes)
+
+        ["/", "/about", "/cv.doc", "/company/about", "/groovy/glaforge/gaelyk/me", "/say/me/to/you",
+         "/script/42", "/blog/2009/11/27/Thanksgiving", "/blog/", "/blog/archive", "/foo/bar/x.groovy",
+         "/nowhere/at/all"].each { String uri ->
+            def linear = routes.find { it.forUri(uri, r(uri)).matches }
+            def compiled = dispatcher.candidates("GET", uri).find { it.forUri(uri, r(uri)).matches }
+            assert linear.is(compiled)
+        }
+    }
+}
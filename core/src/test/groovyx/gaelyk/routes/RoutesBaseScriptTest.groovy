@@ -35,4 +35,50 @@ class RoutesBaseScriptTest extends GroovyTestCase {
         assert routes.size() == 12
 
     }
+
+    void testStaleCacheOptions() {
+        def config = new CompilerConfiguration()
+        config.scriptBaseClass = RoutesBaseScript.class.name
+
+        RoutesBaseScript script = new GroovyShell(new Binding(), config).parse("""\
+            get "/news/@id?", forward: "/news.groovy", cache: 60, staleWhileRevalidate: 3600, staleIfError: 86400
+            get "/foo",       forward: "/foo.groovy",  cache: 60
+        """.stripIndent())
+
+        script.run()
+
+        assert script.routes*.staleWhileRevalidate == [3600, 3600, 0]
+        assert script.routes*.staleIfError == [86400, 86400, 0]
+    }
+
+    void testCacheKeyOptions() {
+        def config = new CompilerConfiguration()
+        config.scriptBaseClass = RoutesBaseScript.class.name
+
+        RoutesBaseScript script = new GroovyShell(new Binding(), config).parse("""\
+            get "/news", forward: "/news.groovy", cache: 60, sortParams: true, ignoreParams: ['utm_*'], vary: ['Accept-Language']
+            get "/foo",  forward: "/foo.groovy",  cache: 60
+        """.stripIndent())
+
+        script.run()
+
+        assert script.routes*.sortParams == [true, false]
+        assert script.routes*.ignoreParams == [['utm_*'], []]
+        assert script.routes*.vary == [['Accept-Language'], []]
+    }
+
+    void testCacheTags() {
+        def config = new CompilerConfiguration()
+        config.scriptBaseClass = RoutesBaseScript.class.name
+
+        RoutesBaseScript script = new GroovyShell(new Binding(), config).parse("""\
+            get "/article/@id", forward: "/article.groovy?id=@id", cache: 60, tags: ['article-@id', 'articles']
+        """.stripIndent())
+
+        script.run()
+
+        Route route = script.routes[0]
+        assert route.tags == ['article-@id', 'articles']
+        assert route.tagsFor(route.forUri('/article/42', groovyx.gaelyk.TestUtil.request('/article/42'))) == ['article-42', 'articles']
+    }
 }
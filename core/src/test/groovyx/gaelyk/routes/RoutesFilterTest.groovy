@@ -13,6 +13,7 @@ import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig
 import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig
 import com.google.appengine.api.utils.SystemProperty
 import groovyx.gaelyk.GaelykBindingEnhancer
+import groovyx.gaelyk.plugins.PluginsHandler
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 import javax.servlet.FilterChain
@@ -80,6 +81,9 @@ class RoutesFilterTest extends GroovyTestCase {
     }
 
     protected void tearDown() {
+        filter.destroy()
+        PluginsHandler.instance.reinit()
+
         // uninstalling the local environment
         helper.tearDown()
 
@@ -245,4 +249,124 @@ class RoutesFilterTest extends GroovyTestCase {
         assert dispatched == "/validate.gtpl"
         assert attributes[RoutesFilter.ORIGINAL_URI] == "/validate"
     }
+
+    void testValidatorEvaluatedOncePerRequest() {
+        int validations = 0
+        PluginsHandler.instance.routes << new Route("/counted/@id", "/counted.groovy?id=@id", HttpMethod.GET, RedirectionType.FORWARD,
+                { validations++; id.isNumber() }, null, 0, false, false, false, 1000)
+        filter.loadRoutes()
+
+        def dispatched = ""
+
+        def dispatcher = [
+                forward: { ServletRequest req, ServletResponse resp -> }
+        ] as RequestDispatcher
+
+        def request = [
+                getRequestURI: {-> "/counted/42" },
+                getQueryString: {-> "" },
+                getMethod: {-> "GET" },
+                getRequestDispatcher: { String s -> dispatched = s; return dispatcher },
+                setAttribute: { String name, val -> },
+                getAttribute: { String name -> },
+                getServletPath: {-> '' },
+                getPathInfo: {-> '/counted/42' }
+        ] as HttpServletRequest
+
+        filter.doFilter(request, [:] as HttpServletResponse, [:] as FilterChain)
+
+        assert dispatched == "/counted.groovy?id=42"
+        assert validations == 1
+    }
+
+    void testRoutesReloadedWhenRoutesFileChanges() {
+        File routesFile = File.createTempFile('routes', '.groovy')
+        routesFile.text = 'get "/first", forward: "/first.groovy"'
+
+        def watchingFilter = new RoutesFilter()
+        watchingFilter.init([getInitParameter: { String s -> routesFile.absolutePath }] as FilterConfig)
+        try {
+            assert watchingFilter.routes*.route == ['/first']
+
+            routesFile.text = 'get "/second", forward: "/second.groovy"'
+
+            long deadline = System.currentTimeMillis() + 30000
+            while (watchingFilter.routes*.route != ['/second'] && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50)
+            }
+            assert watchingFilter.routes*.route == ['/second']
+        } finally {
+            watchingFilter.destroy()
+            routesFile.delete()
+        }
+    }
+
+    void testRoutesReloadedByAdministrator() {
+        File routesFile = File.createTempFile('routes', '.groovy')
+        routesFile.text = 'get "/first", forward: "/first.groovy"'
+
+        // routes are not reloaded automatically in production
+        SystemProperty.environment.set("Production")
+        def reloadingFilter = new RoutesFilter()
+        reloadingFilter.init([getInitParameter: { String s -> s == 'routes.location' ? routesFile.absolutePath : '/_gaelyk/routes/reload' }] as FilterConfig)
+
+        def reloadRequest = [
+                getMethod: {-> "POST" },
+                setAttribute: { String name, val -> },
+                getAttribute: { String name -> },
+                getServletPath: {-> '/_gaelyk/routes/reload' },
+                getPathInfo: {-> null }
+        ] as HttpServletRequest
+
+        int error = 0
+        def output = new StringWriter()
+        def response = [
+                sendError: { int code -> error = code },
+                setContentType: { String type -> },
+                getWriter: {-> new PrintWriter(output) }
+        ] as HttpServletResponse
+
+        try {
+            // not an administrator
+            reloadingFilter.doFilter(reloadRequest, response, [:] as FilterChain)
+            assert error == HttpServletResponse.SC_FORBIDDEN
+
+            helper.tearDown()
+            helper.setEnvIsLoggedIn(true).setEnvIsAdmin(true).setEnvEmail('admin@example.com').setEnvAuthDomain('example.com')
+            helper.setUp()
+
+            routesFile.text = 'get "/second", forward: "/second.groovy"\nget "/third", forward: "/third.groovy"'
+            error = 0
+            reloadingFilter.doFilter(reloadRequest, response, [:] as FilterChain)
+
+            assert !error
+            assert output.toString() == '2 routes loaded'
+            assert reloadingFilter.routes*.route == ['/second', '/third']
+        } finally {
+            reloadingFilter.destroy()
+            routesFile.delete()
+        }
+    }
+
+    void testPrecompiledRoutesPreferredToRoutesFile() {
+        def precompiledFilter = new RoutesFilter()
+        precompiledFilter.init([getInitParameter: { String s ->
+            [
+                'routes.location': 'src/test/groovyx/gaelyk/routes/routes.sample',
+                'routes.class': PrecompiledRoutes.name,
+                'preferPrecompiled': 'true'
+            ][s]
+        }] as FilterConfig)
+        try {
+            assert precompiledFilter.routes*.route == ['/precompiled', '/_ah/xmpp/presence/@value/']
+            assert precompiledFilter.routesLoadingTime >= 0
+        } finally {
+            precompiledFilter.destroy()
+        }
+    }
+
+    void testPrecompiledClassNamedAfterRoutesFile() {
+        assert RoutesFilter.getPrecompiledClassName('WEB-INF/routes.groovy') == 'routes'
+        assert RoutesFilter.getPrecompiledClassName('/WEB-INF/api.groovy') == 'api'
+    }
 }
@@ -17,6 +17,7 @@ package groovyx.gaelyk.routes
 
 import static groovyx.gaelyk.TestUtil.request as r
 
+import com.google.appengine.api.users.UserService
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper
 import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig
 
@@ -126,6 +127,49 @@ class RoutesTest extends GroovyTestCase {
         }
     }
 
+    void testNonMatchingRoutesShareTheSameResult() {
+        def rt = new Route("/blog/@year", "/blog.groovy?year=@year", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 0, false, false, false, 0)
+
+        assert rt.forUri("/elsewhere", r("/elsewhere")).is(RouteMatch.NO_MATCH)
+        assert rt.forUri("/blog", r("/blog")).is(RouteMatch.NO_MATCH)
+    }
+
+    void testMatchIsAMapLikeInPreviousVersions() {
+        def rt = new Route("/blog/@year", "/blog.groovy?year=@year", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 0, false, false, false, 0)
+        Map result = rt.forUri("/blog/2012", r("/blog/2012"))
+
+        assert result == [matches: true, variables: [year: '2012'], destination: '/blog.groovy?year=2012']
+        assert result['variables'] == [year: '2012']
+        result.variables.month = '10'
+        result.origin = 'test'
+        assert result.variables == [year: '2012', month: '10']
+        assert result.origin == 'test'
+
+        Map plain = new Route("/about", "/about.groovy", HttpMethod.ALL, RedirectionType.FORWARD, null, null, 0, false, false, false, 0).forUri("/about", r("/about"))
+        plain.variables.page = 'team'
+        assert plain.variables == [page: 'team']
+
+        assert rt.forUri("/elsewhere", r("/elsewhere")) == [matches: false]
+        shouldFail(UnsupportedOperationException) {
+            RouteMatch.NO_MATCH.origin = 'test'
+        }
+    }
+
+    void testDestinationVariablesReplacement() {
+        def routeDestinationAndExpected = [
+            ["/blog/@year/@month", "/blog.groovy?year=@year&month=@month", "/blog/2009/11"]: "/blog.groovy?year=2009&month=11",
+            ["/show/@id/@idx", "/show.groovy?idx=@idx&id=@id", "/show/1/2"]:               "/show.groovy?idx=2&id=1",
+            ["/price/@amount", "/price.groovy?amount=@amount", "/price/\$10"]:              "/price.groovy?amount=\$10",
+            ["/mail/@user", "/mail.groovy?to=@user@example.com", "/mail/me"]:               "/mail.groovy?to=me@example.com",
+            ["/static", "/static.gtpl", "/static"]:                                         "/static.gtpl",
+        ]
+
+        routeDestinationAndExpected.each { List<String> definition, String expected ->
+            def rt = new Route(definition[0], definition[1], HttpMethod.ALL, RedirectionType.FORWARD, null, null, 0, false, false, false, 0)
+            assert rt.forUri(definition[2], r(definition[2])).destination == expected
+        }
+    }
+
     void testValidatorClosure() {
         def d = "/destination"
         def m = HttpMethod.GET
@@ -141,6 +185,34 @@ class RoutesTest extends GroovyTestCase {
         assert !new Route("/admin", d, m, rt, { request.getAttribute('user') == 'dummy' }, null, 0, false, false, false, 0).forUri("/admin",r("/admin")).matches
     }
 
+    void testValidatorOnlyResolvesReferencedVariables() {
+        def d = "/destination"
+        def m = HttpMethod.GET
+        def rt = RedirectionType.FORWARD
+
+        assert new Route("/users/@id", d, m, rt, { users instanceof UserService && id == '42' && !undefined }, null, 0, false, false, false, 0).forUri("/users/42", r("/users/42")).matches
+        assert new Route("/local", d, m, rt, { localMode != null && request.getAttribute('x') == 'X' }, null, 0, false, false, false, 0).forUri("/local", r("/local")).matches
+        assert new Route("/assign/@id", d, m, rt, { id = id.toUpperCase(); id == 'ABC' }, null, 0, false, false, false, 0).forUri("/assign/abc", r("/assign/abc")).matches
+    }
+
+    void testValidatorSharedAcrossThreads() {
+        def route = new Route("/blog/@year", "/destination", HttpMethod.GET, RedirectionType.FORWARD, { Thread.sleep(1); year.isNumber() }, null, 0, false, false, false, 0)
+
+        def results = Collections.synchronizedList([])
+        def threads = (1..8).collect { int i ->
+            Thread.start {
+                20.times { int j ->
+                    String uri = j % 2 ? "/blog/${i}00$j" : "/blog/x$i"
+                    results << (route.forUri(uri, r(uri)).matches == (j % 2 == 1))
+                }
+            }
+        }
+        threads*.join()
+
+        assert results.size() == 160
+        assert results.every()
+    }
+
     void testIgnoreRoute() {
         assert new Route("/ignore", null, HttpMethod.ALL, RedirectionType.FORWARD, null, null, 0, true, false, false, 0).forUri("/ignore",r("/ignore")).matches
     }
@@ -0,0 +1,97 @@
+package groovyx.gaelyk.templates
+
+import groovy.text.SimpleTemplateEngine
+
+import java.nio.charset.Charset
+
+/**
+ * Tests of the streaming template engine, rendering the templates as the simple template engine.
+ */
+class StreamingTemplateEngineTest extends GroovyTestCase {
+
+    private StreamingTemplateEngine engine = new StreamingTemplateEngine()
+
+    private Map binding = [x: 1, a: [b: 2], items: ['one', 'two'], m: [k: 'v']]
+
+    void testSameOutputAsSimpleTemplateEngine() {
+        def simple = new SimpleTemplateEngine()
+        [
+            'plain text',
+            'escapes: a\\nb a\\$x a\\\\b \\u0041 "double" \'single\' """',
+            'line continuation a\\\nb',
+            'line1\r\nline2\rline3\n',
+            'paths: $a.b. $a.b! ${x}$x',
+            '<% if (x) { %>yes<% } else { %>no<% } %>',
+            '<%= x %> <%= m %> ${m} $m',
+            '${ items.collect { it.toUpperCase() } }',
+            '<% out << "a" %>b',
+            '<% // comment %>after the comment',
+            '<% def item(name) { %><li>$name</li><% } %><ul><% items.each { item(it) } %></ul>',
+            '<ul>\n<% items.each { item -> %>\n  <li>$item: ${item.size()}</li>\n<% } %>\n</ul>',
+            '\u00e9t\u00e9 ${"\u00fc"}'
+        ].each { String template ->
+            assert engine.createTemplate(template).make(binding).toString() ==
+                   simple.createTemplate(template).make(binding).toString()
+        }
+    }
+
+    void testScriptLinesMatchTemplateLines() {
+        def script = StreamingTemplateEngine.toScript('<ul>\n<% items.each { %>\n  <li>$it</li>\n<% } %>\n</ul>')
+
+        assert script.readLines()[0..4] == [
+                'final groovyx.gaelyk.templates.TemplateOutput $out = get$out(); ' +
+                        'final groovyx.gaelyk.templates.TextSegment[] $s = $init($segments); $out.writeText($s[0]);',
+                ' items.each { ;$out.writeText($s[1]);',
+                '$out.writeValue(it);$out.writeText($s[2]);',
+                ' } ;$out.writeText($s[3]);',
+                ''
+        ]
+        assert script.contains("TextSegment.all('<ul>\\n', '\\n  <li>', '</li>\\n', '\\n</ul>')")
+    }
+
+    void testUnterminatedBlocks() {
+        shouldFail(GroovyRuntimeException) { StreamingTemplateEngine.toScript('a <% if (x) { b') }
+        shouldFail(GroovyRuntimeException) { StreamingTemplateEngine.toScript('a ${ x b') }
+    }
+
+    void testLargePagesAreWrittenInChunks() {
+        def template = engine.createTemplate('<% items.each { %>\u00e9t\u00e9 ${it}\n<% } %>')
+        def chunks = []
+        def stream = new ByteArrayOutputStream() {
+            void write(byte[] b, int off, int len) {
+                chunks << len
+                super.write(b, off, len)
+            }
+        }
+
+        template.make(items: (1..5000)).writeTo(new TemplateOutput(stream, Charset.forName('UTF-8')))
+
+        assert new String(stream.toByteArray(), 'UTF-8') == (1..5000).collect { "\u00e9t\u00e9 ${it}\n" }.join('')
+        assert chunks.size() > 1
+        assert chunks.every { it <= TemplateOutput.CHUNK_SIZE }
+    }
+
+    void testOtherCharsets() {
+        def template = engine.createTemplate('\u00e9t\u00e9 ${"\u00fc" * 10000} ' + 'x' * 20000)
+        def stream = new ByteArrayOutputStream()
+
+        template.make(binding).writeTo(new TemplateOutput(stream, Charset.forName('ISO-8859-1')))
+
+        assert new String(stream.toByteArray(), 'ISO-8859-1') == '\u00e9t\u00e9 ' + '\u00fc' * 10000 + ' ' + 'x' * 20000
+    }
+
+    void testLongStaticText() {
+        String text = '\u00e9' * 70000
+
+        assert engine.createTemplate(text + '$x').make(binding).toString() == text + '1'
+    }
+
+    void testSurrogatePairsAcrossChunks() {
+        String text = 'a' * (TemplateOutput.CHUNK_SIZE - 1) + '\uD83D\uDE00 end'
+        def stream = new ByteArrayOutputStream()
+
+        engine.createTemplate('${text}').make(text: text).writeTo(new TemplateOutput(stream, Charset.forName('UTF-8')))
+
+        assert new String(stream.toByteArray(), 'UTF-8') == text
+    }
+}
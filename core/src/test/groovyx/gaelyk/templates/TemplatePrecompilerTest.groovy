@@ -0,0 +1,59 @@
+package groovyx.gaelyk.templates
+
+import groovyx.gaelyk.GaelykTemplateServlet
+
+import java.nio.charset.Charset
+
+import org.codehaus.groovy.control.CompilerConfiguration
+
+/**
+ * Tests of the generation of the precompiled templates.
+ */
+class TemplatePrecompilerTest extends GroovyTestCase {
+
+    private File webapp
+    private File target
+
+    protected void setUp() {
+        super.setUp()
+        webapp = File.createTempFile('webapp', '')
+        webapp.delete()
+        target = new File(webapp, 'target')
+        new File(webapp, 'WEB-INF/pages').mkdirs()
+        new File(webapp, 'WEB-INF/pages/list-items.gtpl').setText('<% items.each { %><li>$it \u00e9</li><% } %>', 'UTF-8')
+        new File(webapp, 'index.gtpl').setText('Hello ${name}', 'UTF-8')
+        new File(webapp, 'index.groovy').text = 'println "not a template"'
+    }
+
+    protected void tearDown() {
+        webapp.deleteDir()
+        super.tearDown()
+    }
+
+    void testSourcesAreNamedAfterTheClassesOfTheServlet() {
+        assert TemplatePrecompiler.precompile(webapp, target) == 2
+
+        assert GaelykTemplateServlet.precompiledClassNameFor('/WEB-INF/pages/list-items.gtpl') == 'web_inf.pages._gtpl_list_items'
+        assert new File(target, 'web_inf/pages/_gtpl_list_items.groovy').text.startsWith('package web_inf.pages; final groovyx.gaelyk.templates.TemplateOutput $out')
+        assert new File(target, '_gtpl_index.groovy').text.startsWith('final groovyx.gaelyk.templates.TemplateOutput $out')
+        assert target.list().sort() == ['_gtpl_index.groovy', 'web_inf']
+    }
+
+    void testPrecompiledTemplatesWriteTheirStaticTextAsBytes() {
+        TemplatePrecompiler.precompile(webapp, target)
+        def configuration = new CompilerConfiguration(scriptBaseClass: StreamingTemplateScript.name)
+        def loader = new GroovyClassLoader(getClass().classLoader, configuration)
+        loader.addClasspath(target.absolutePath)
+
+        Class scriptClass = loader.loadClass('web_inf.pages._gtpl_list_items')
+        def stream = new ByteArrayOutputStream()
+        def output = new TemplateOutput(stream, Charset.forName('UTF-8'))
+        StreamingTemplateScript script = scriptClass.newInstance(new Binding(items: [1, 2]))
+        script.$setOutput(output)
+        script.run()
+        output.flush()
+
+        assert scriptClass.$segments*.text == ['<li>', ' \u00e9</li>']
+        assert new String(stream.toByteArray(), 'UTF-8') == '<li>1 \u00e9</li><li>2 \u00e9</li>'
+    }
+}
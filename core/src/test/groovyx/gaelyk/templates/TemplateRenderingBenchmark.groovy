@@ -0,0 +1,104 @@
+package groovyx.gaelyk.templates
+
+import groovy.text.SimpleTemplateEngine
+import groovy.text.Template
+import groovy.transform.CompileStatic
+
+import java.nio.charset.Charset
+
+/**
+ * Microbenchmark comparing the rendering time of a listing page
+ * with the <code>SimpleTemplateEngine</code>, writing to the response writer,
+ * and with the {@link StreamingTemplateEngine}, writing to the response writer,
+ * or to the response output stream with its static text already encoded,
+ * as the precompiled templates generated by the {@link TemplatePrecompiler}.
+ * <p>
+ * Run with <code>gradle benchmark -Pbenchmark=groovyx.gaelyk.templates.TemplateRenderingBenchmark</code>
+ */
+@CompileStatic
+class TemplateRenderingBenchmark {
+
+    private static final int WARMUP = 2000
+    private static final int ITERATIONS = 10000
+    private static final Charset UTF_8 = Charset.forName('UTF-8')
+
+    private static final String TEMPLATE = '''<html>
+    <head><title>${title}</title></head>
+    <body>
+        <h1>${title}</h1>
+        <table class="listing">
+            <tr><th>Id</th><th>Title</th><th>Author</th><th>Published</th></tr>
+            <% articles.each { article -> %>
+            <tr class="article">
+                <td class="id">${article.id}</td>
+                <td class="title"><a href="/articles/${article.id}">${article.title}</a></td>
+                <td class="author">${article.author} &mdash; r\\u00e9dacteur</td>
+                <td class="published">${article.published}</td>
+            </tr>
+            <% } %>
+        </table>
+    </body>
+</html>'''
+
+    static void main(String[] args) {
+        List<Map> articles = (1..200).collect { int i ->
+            [id: i, title: "Article $i".toString(), author: 'Guillaume', published: '2012-10-18']
+        } as List<Map>
+        Map binding = [title: 'Articles', articles: articles]
+
+        Template simple = new SimpleTemplateEngine().createTemplate(TEMPLATE)
+        Template streaming = new StreamingTemplateEngine().createTemplate(TEMPLATE)
+        CountingStream stream = new CountingStream()
+
+        long simpleTime = measure {
+            Writer writer = new PrintWriter(new OutputStreamWriter(stream, UTF_8))
+            simple.make(binding).writeTo(writer)
+            writer.flush()
+        }
+        long simpleBytes = stream.reset()
+        long writerTime = measure {
+            Writer writer = new PrintWriter(new OutputStreamWriter(stream, UTF_8))
+            streaming.make(binding).writeTo(writer)
+            writer.flush()
+        }
+        long writerBytes = stream.reset()
+        long streamingTime = measure {
+            streaming.make(binding).writeTo(new TemplateOutput(stream, UTF_8))
+        }
+        long streamingBytes = stream.reset()
+
+        assert simpleBytes == writerBytes && simpleBytes == streamingBytes
+        println "page of ${simpleBytes.intdiv(WARMUP + ITERATIONS)} bytes: simple template engine ${simpleTime} us/page, " +
+                "streaming template engine ${writerTime} us/page to a writer, ${streamingTime} us/page to a stream"
+    }
+
+    private static long measure(Closure render) {
+        for (int i = 0; i < WARMUP; i++) {
+            render.call()
+        }
+        long start = System.nanoTime()
+        for (int i = 0; i < ITERATIONS; i++) {
+            render.call()
+        }
+        (System.nanoTime() - start).intdiv(ITERATIONS * 1000L).longValue()
+    }
+
+    /* Response output stream discarding the bytes written */
+    private static class CountingStream extends OutputStream {
+        long count
+
+        void write(int b) {
+            count++
+        }
+
+        void write(byte[] b, int off, int len) {
+            count += len
+        }
+
+        long reset() {
+            long written = count
+            count = 0
+            written
+        }
+    }
+}